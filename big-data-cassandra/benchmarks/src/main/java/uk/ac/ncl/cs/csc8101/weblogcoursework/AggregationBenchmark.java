@@ -0,0 +1,55 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per hit of counting urls per hour in HourCloseAggregator, with closed hours, days
+ * and weeks handed to a sink that drops them in place of the cassandra writes.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class AggregationBenchmark {
+
+    private static final int LINES = 100000;
+
+    private final UrlDictionary urlDictionary = new UrlDictionary();
+    private int[] urlIds;
+    private long[] hitMillis;
+
+    @Setup
+    public void setup() {
+        final SyntheticLogCorpus corpus = new SyntheticLogCorpus(42, LINES);
+        final LogLineParser parser = new LogLineParser();
+        final LogRecord record = new LogRecord();
+        urlIds = new int[LINES];
+        hitMillis = new long[LINES];
+        for(int i = 0; i < LINES; i++) {
+            parser.parse(corpus.getLine(i), record);
+            urlIds[i] = urlDictionary.idFor(record.getUrl());
+            hitMillis[i] = record.getEpochMillis();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void countHits(final Blackhole blackhole) {
+        final HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        final HourCloseAggregator.Source source = aggregator.register(new HourCloseAggregator.Sink() {
+            @Override
+            public void write(TimeResolution resolution, UrlHourCounter total) {
+                blackhole.consume(total);
+            }
+        });
+        for(int i = 0; i < LINES; i++) {
+            source.add(urlIds[i], hitMillis[i]);
+        }
+        source.close();
+    }
+}
@@ -0,0 +1,92 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Cost per line of the whole of MessageHandler.handle(byte[], int, int) short of cassandra:
+ * parsing, url dictionary lookup, hourly counting, reordering and session tracking, with every write
+ * dropped. MessageHandler connects to cassandra when loaded, so the same steps are driven here
+ * directly on the classes it delegates to.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class IngestPathBenchmark {
+
+    private static final int LINES = 100000;
+
+    private SyntheticLogCorpus corpus;
+    private final LogLineParser parser = new LogLineParser();
+    private final LogRecord record = new LogRecord();
+    private final UrlDictionary urlDictionary = new UrlDictionary();
+    private final UrlDictionary.Local urlIds = urlDictionary.newLocal();
+    // SiteSession requires hits in time order per thread, so each replay is shifted past the last
+    private long replayOffsetMillis = 0;
+    private long corpusSpanMillis;
+
+    @Setup
+    public void setup() {
+        corpus = new SyntheticLogCorpus(42, LINES);
+        parser.parse(corpus.getLine(0), record);
+        final long firstMillis = record.getEpochMillis();
+        parser.parse(corpus.getLine(LINES-1), record);
+        corpusSpanMillis = record.getEpochMillis()-firstMillis;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void handle(final Blackhole blackhole) {
+        final HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        final HourCloseAggregator.Source hourTotals = aggregator.register(new HourCloseAggregator.Sink() {
+            @Override
+            public void write(TimeResolution resolution, UrlHourCounter total) {
+                blackhole.consume(total);
+            }
+        });
+        final SessionStore sessions = new OnHeapSessionStore();
+        final Consumer<SessionState> writer = new Consumer<SessionState>() {
+            @Override
+            public void accept(SessionState session) {
+                blackhole.consume(session.getId());
+                blackhole.consume(session.getSketch().cardinality());
+            }
+        };
+
+        final ReorderBuffer reorderBuffer = new ReorderBuffer(TimeUnit.SECONDS.toMillis(10));
+        final ReorderBuffer.Sink sessionTracker = new ReorderBuffer.Sink() {
+            private long watermarkMillis = Long.MIN_VALUE;
+
+            @Override
+            public void hit(String id, long millis, int hashedUrl) {
+                if(millis > watermarkMillis) {
+                    watermarkMillis = millis;
+                    sessions.expire(millis, writer);
+                }
+                sessions.hit(id, millis, hashedUrl);
+            }
+        };
+
+        final byte[] bytes = corpus.getBytes();
+        for(int i = 0; i < LINES; i++) {
+            if(!parser.parse(bytes, corpus.getOffset(i), corpus.getLength(i), record)) {
+                continue;
+            }
+            final int urlId = record.getUrlId(urlIds);
+            hourTotals.add(urlId, record.getEpochMillis());
+
+            reorderBuffer.add(record.getClientId(), record.getEpochMillis()+replayOffsetMillis,
+                    urlDictionary.getHashedValue(urlId), sessionTracker);
+        }
+        hourTotals.close();
+        reorderBuffer.flush(sessionTracker);
+        sessions.expire(Long.MAX_VALUE, writer);
+        replayOffsetMillis += corpusSpanMillis+1;
+    }
+}
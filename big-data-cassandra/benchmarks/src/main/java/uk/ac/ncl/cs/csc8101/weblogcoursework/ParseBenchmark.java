@@ -0,0 +1,60 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost per line of LogLineParser, from Strings as the kafka consumers parse and from
+ * a byte block as BulkIngest does.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ParseBenchmark {
+
+    private static final int LINES = 100000;
+
+    private SyntheticLogCorpus corpus;
+    private final LogLineParser parser = new LogLineParser();
+    private final LogRecord record = new LogRecord();
+
+    @Setup
+    public void setup() {
+        corpus = new SyntheticLogCorpus(42, LINES);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseStrings(Blackhole blackhole) {
+        for(int i = 0; i < LINES; i++) {
+            blackhole.consume(parser.parse(corpus.getLine(i), record));
+            blackhole.consume(record.getEpochMillis());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseBytes(Blackhole blackhole) {
+        final byte[] bytes = corpus.getBytes();
+        for(int i = 0; i < LINES; i++) {
+            blackhole.consume(parser.parse(bytes, corpus.getOffset(i), corpus.getLength(i), record));
+            blackhole.consume(record.getEpochMillis());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void parseAndDecodeFields(Blackhole blackhole) {
+        final byte[] bytes = corpus.getBytes();
+        for(int i = 0; i < LINES; i++) {
+            parser.parse(bytes, corpus.getOffset(i), corpus.getLength(i), record);
+            blackhole.consume(record.getClientId());
+            blackhole.consume(record.getUrl());
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Cost per hit of updating and expiring sessions, as MessageHandler does for query2, in each
+ * SessionStore. Expired sessions are read as writeSession reads them, then dropped.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SessionStoreBenchmark {
+
+    private static final int LINES = 100000;
+
+    @Param({"onHeap", "offHeap"})
+    public String store;
+
+    private String[] clientIds;
+    private long[] hitMillis;
+    private int[] hashedUrls;
+    // SiteSession requires hits in time order per thread, so each replay is shifted past the last
+    private long replayOffsetMillis = 0;
+
+    @Setup
+    public void setup() {
+        final SyntheticLogCorpus corpus = new SyntheticLogCorpus(42, LINES);
+        final LogLineParser parser = new LogLineParser();
+        final LogRecord record = new LogRecord();
+        final UrlDictionary urlDictionary = new UrlDictionary();
+        clientIds = new String[LINES];
+        hitMillis = new long[LINES];
+        hashedUrls = new int[LINES];
+        for(int i = 0; i < LINES; i++) {
+            parser.parse(corpus.getLine(i), record);
+            clientIds[i] = record.getClientId();
+            hitMillis[i] = record.getEpochMillis();
+            hashedUrls[i] = urlDictionary.getHashedValue(urlDictionary.idFor(record.getUrl()));
+        }
+    }
+
+    private SessionStore newStore() {
+        return "offHeap".equals(store) ? new OffHeapSessionStore() : new OnHeapSessionStore();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LINES)
+    public void hitAndExpire(final Blackhole blackhole) {
+        final SessionStore sessions = newStore();
+        final Consumer<SessionState> writer = new Consumer<SessionState>() {
+            @Override
+            public void accept(SessionState session) {
+                blackhole.consume(session.getId());
+                blackhole.consume(session.getHitCount());
+                blackhole.consume(session.getSketch().cardinality());
+            }
+        };
+
+        long watermarkMillis = Long.MIN_VALUE;
+        for(int i = 0; i < LINES; i++) {
+            final long millis = hitMillis[i]+replayOffsetMillis;
+            if(millis > watermarkMillis) {
+                watermarkMillis = millis;
+                sessions.expire(millis, writer);
+            }
+            sessions.hit(clientIds[i], millis, hashedUrls[i]);
+        }
+        sessions.expire(Long.MAX_VALUE, writer);
+        replayOffsetMillis += hitMillis[LINES-1]-hitMillis[0]+1;
+    }
+}
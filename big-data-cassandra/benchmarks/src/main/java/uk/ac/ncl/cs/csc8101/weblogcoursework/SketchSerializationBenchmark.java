@@ -0,0 +1,46 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of writing a session's distinct url sketch to the "query3" blob format and reading it
+ * back, for sessions that touched few urls (sparse) up to many (dense).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SketchSerializationBenchmark {
+
+    @Param({"5", "50", "5000"})
+    public int distinctUrls;
+
+    private SparseHyperLogLog sketch;
+    private ByteBuffer serialized;
+
+    @Setup
+    public void setup() throws IOException {
+        sketch = new SparseHyperLogLog(SiteSession.SKETCH_RSD);
+        for(int i = 0; i < distinctUrls; i++) {
+            sketch.offerHashed(MurmurHash.hash("/english/page"+i+".html"));
+        }
+        serialized = sketch.toByteBuffer();
+    }
+
+    @Benchmark
+    public ByteBuffer serialize() throws IOException {
+        return sketch.toByteBuffer();
+    }
+
+    @Benchmark
+    public SparseHyperLogLog deserialize() throws IOException {
+        return SparseHyperLogLog.fromByteBuffer(serialized);
+    }
+}
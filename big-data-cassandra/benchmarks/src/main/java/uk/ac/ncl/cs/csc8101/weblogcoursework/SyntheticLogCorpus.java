@@ -0,0 +1,66 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Benchmark fixture of log lines from SyntheticLogGenerator, shaped like the coursework log: time
+ * ordered, Zipfian url popularity, sessions separated by idle periods and a few heavy hitter clients.
+ * The same seed always gives the same corpus.
+ * <p>
+ * The lines are held both as Strings, as KafkaConsumer receives them, and packed in one byte
+ * array, as BulkIngest reads them.
+ */
+public class SyntheticLogCorpus {
+
+    private static final int CLIENTS = 20000;
+    private static final int URLS = 5000;
+
+    private final String[] lines;
+    private final byte[] bytes;
+    // (offset, length) of each line in bytes
+    private final int[] positions;
+
+    /**
+     * @param seed the seed of the generator
+     * @param lineCount the number of lines
+     */
+    public SyntheticLogCorpus(long seed, int lineCount) {
+        final SyntheticLogGenerator generator =
+                new SyntheticLogGenerator(seed, CLIENTS, URLS, SyntheticLogGenerator.DEFAULT_START_MILLIS);
+
+        lines = new String[lineCount];
+        positions = new int[lineCount*2];
+        final StringBuilder all = new StringBuilder(lineCount*80);
+        for(int i = 0; i < lineCount; i++) {
+            final String line = generator.next();
+            lines[i] = line;
+            positions[i*2] = all.length();
+            positions[i*2+1] = line.length();
+            all.append(line).append('\n');
+        }
+        bytes = all.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    public int size() {
+        return lines.length;
+    }
+
+    public String getLine(int index) {
+        return lines[index];
+    }
+
+    /**
+     * @return every line, each ended by a newline
+     */
+    public byte[] getBytes() {
+        return bytes;
+    }
+
+    public int getOffset(int index) {
+        return positions[index*2];
+    }
+
+    public int getLength(int index) {
+        return positions[index*2+1];
+    }
+}
@@ -0,0 +1,154 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.*;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.QueryTimeoutException;
+import com.datastax.driver.core.exceptions.UnavailableException;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Issues asynchronous writes through an InFlightLimiter, releasing permits from driver callbacks
+ * rather than blocking on the oldest outstanding future, so one slow write doesn't hold up the rest.
+ * <p>
+ * Writes that fail with a timeout or unavailable error are retried, up to a bound, keeping their permit.
+ * All the statements issued by the handlers are idempotent inserts, so a retry can't double count.
+ * Failures are counted per statement, and the latency of each successful attempt is recorded.
+ */
+public class AsyncWriter implements StatementWriter {
+
+    private final Session session;
+    private final InFlightLimiter limiter;
+    private final int maxRetries;
+    private final Timer latency;
+
+    private final ConcurrentHashMap<String, AtomicLong> failureCounts = new ConcurrentHashMap<>();
+    private final AtomicLong retryCount = new AtomicLong();
+
+    /**
+     * @param session the session to write through
+     * @param limiter bounds the writes in flight
+     * @param maxRetries the number of times a failed write is reissued before it is dropped
+     */
+    public AsyncWriter(Session session, InFlightLimiter limiter, int maxRetries) {
+        this(session, limiter, maxRetries, new Timer());
+    }
+
+    /**
+     * @param session the session to write through
+     * @param limiter bounds the writes in flight
+     * @param maxRetries the number of times a failed write is reissued before it is dropped
+     * @param latency records the latency of successful writes, may be shared between writers
+     */
+    public AsyncWriter(Session session, InFlightLimiter limiter, int maxRetries, Timer latency) {
+        this.session = session;
+        this.limiter = limiter;
+        this.maxRetries = maxRetries;
+        this.latency = latency;
+    }
+
+    /**
+     * Issues a write, waiting for a permit if the limit of writes in flight has been reached.
+     *
+     * @param statement the write
+     */
+    @Override
+    public void execute(Statement statement) throws InterruptedException {
+        limiter.acquire();
+        submit(statement, 0);
+    }
+
+    /**
+     * Waits for all the writes issued so far, including their retries, to complete.
+     */
+    @Override
+    public void awaitOutstanding() throws InterruptedException {
+        limiter.awaitIdle();
+    }
+
+    /**
+     * @return the number of writes dropped after exhausting their retries, keyed by query string
+     */
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        final Map<String, Long> result = new TreeMap<>();
+        for(Map.Entry<String, AtomicLong> entry : failureCounts.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().get());
+        }
+        return result;
+    }
+
+    public long getRetryCount() {
+        return retryCount.get();
+    }
+
+    public Timer getLatency() {
+        return latency;
+    }
+
+    private void submit(final Statement statement, final int attempt) {
+        final long startNanos = System.nanoTime();
+        final ResultSetFuture resultSetFuture;
+        try {
+            resultSetFuture = session.executeAsync(statement);
+        } catch (RuntimeException e) {
+            limiter.release(System.nanoTime() - startNanos, false);
+            countFailure(statement);
+            System.err.println("ERROR(AsyncWriter): "+e);
+            return;
+        }
+
+        Futures.addCallback(resultSetFuture, new FutureCallback<ResultSet>() {
+            @Override
+            public void onSuccess(ResultSet resultSet) {
+                final long latencyNanos = System.nanoTime() - startNanos;
+                latency.update(latencyNanos, TimeUnit.NANOSECONDS);
+                limiter.release(latencyNanos, false);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                final boolean timedOut = throwable instanceof QueryTimeoutException;
+                final boolean retryable = timedOut
+                        || throwable instanceof UnavailableException
+                        || throwable instanceof NoHostAvailableException;
+
+                if(retryable && attempt < maxRetries) {
+                    // keep the permit for the retry, as blocking in a driver callback is not allowed
+                    limiter.observe(System.nanoTime() - startNanos, timedOut);
+                    retryCount.incrementAndGet();
+                    submit(statement, attempt+1);
+                    return;
+                }
+
+                limiter.release(System.nanoTime() - startNanos, timedOut);
+                countFailure(statement);
+                System.err.println("ERROR(AsyncWriter) after "+(attempt+1)+" attempt(s): "+throwable);
+            }
+        });
+    }
+
+    private void countFailure(Statement statement) {
+        failureCounts.computeIfAbsent(failureKey(statement), k -> new AtomicLong()).incrementAndGet();
+    }
+
+    private static String failureKey(Statement statement) {
+        if(statement instanceof BoundStatement) {
+            return ((BoundStatement) statement).preparedStatement().getQueryString();
+        }
+        if(statement instanceof BatchStatement) {
+            // keyed by the query of its writes, rather than every value they bind
+            final Iterator<Statement> statements = ((BatchStatement) statement).getStatements().iterator();
+            return "BATCH " + (statements.hasNext() ? failureKey(statements.next()) : "");
+        }
+        return statement.toString();
+    }
+}
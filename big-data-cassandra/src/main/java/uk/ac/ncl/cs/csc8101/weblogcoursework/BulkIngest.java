@@ -0,0 +1,340 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Command line script to load a log file straight into the cassandra tables, bypassing kafka, for bulk backfills.
+ * <p>
+ * Runs as a pipeline of stages connected by bounded queues:
+ * <ol>
+ *     <li>one thread decompresses the file into large blocks of whole lines</li>
+ *     <li>parse workers split each block into lines and route them by client id hash, as LogPartitioner does</li>
+ *     <li>a dispatcher hands the routed lines to the handler threads in block order, so each handler
+ *     still sees its clients' hits in time order</li>
+ *     <li>one thread per MessageHandler parses and processes its lines straight from the block bytes,
+ *     as one batch per block so the writes are grouped</li>
+ * </ol>
+ * The log file may be gzipped or a LogArchive. An archive's blocks are decompressed by the parse workers,
+ * in parallel, rather than by the single reading thread.
+ * <p>
+ * Usage: BulkIngest [logFile [handlers [parseWorkers]]]
+ */
+public class BulkIngest {
+
+    private static final File dataDir = new File("/home/ubuntu/data/cassandra/");
+    private static final File logFile = new File(dataDir, "csc8101_logfile_2015.gz");
+
+    private static final int BLOCK_SIZE = 4*1024*1024;
+    private static final int QUEUE_DEPTH = 16;
+
+    // marks the end of the input on each queue
+    private static final Block END_OF_INPUT = new Block(new byte[0], 0);
+    private static final Slice END_OF_SLICES = new Slice(new byte[0], new int[0], 0);
+
+    public static void main(String[] args) throws Exception {
+
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.BulkIngest
+
+        final File file = args.length > 0 ? new File(args[0]) : logFile;
+        final int numHandlers = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+        final int numParseWorkers = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final Meter meter = metricRegistry.meter("throughput");
+        final ConsoleReporter reporter = ConsoleReporter.forRegistry(metricRegistry)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        reporter.start(1, TimeUnit.MINUTES);
+
+        final ExecutorService parseWorkers = Executors.newFixedThreadPool(numParseWorkers);
+        // routed blocks, in file order
+        final BlockingQueue<Future<Slice[]>> routedBlocks = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+
+        final List<BlockingQueue<Slice>> handlerQueues = new ArrayList<>();
+        final ExecutorService handlerThreads = Executors.newFixedThreadPool(numHandlers);
+        final List<Future<?>> handlerResults = new ArrayList<>();
+        for(int i = 0; i < numHandlers; i++) {
+            final BlockingQueue<Slice> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+            handlerQueues.add(queue);
+            handlerResults.add(handlerThreads.submit(new HandlerStage(queue, new MessageHandler(), meter)));
+        }
+
+        final Thread dispatcher = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Slice[] slices;
+                    // a null result marks the end of the input
+                    while((slices = routedBlocks.take().get()) != null) {
+                        for(int i = 0; i < slices.length; i++) {
+                            if(slices[i].lineCount > 0) {
+                                handlerQueues.get(i).put(slices[i]);
+                            }
+                        }
+                    }
+                    for(BlockingQueue<Slice> queue : handlerQueues) {
+                        queue.put(END_OF_SLICES);
+                    }
+                } catch (Exception e) {
+                    System.err.println("ERROR(BulkIngest) dispatching");
+                    e.printStackTrace();
+                    System.exit(1);
+                }
+            }
+        }, "BulkIngest-dispatcher");
+        dispatcher.start();
+
+        // left open until the dispatcher is done, as its blocks are read by the parse workers
+        final LogArchive.Reader archive = LogArchive.isArchive(file) ? LogArchive.open(file) : null;
+        if(archive != null) {
+            for(int i = 0; i < archive.getBlocks().size(); i++) {
+                routedBlocks.put(parseWorkers.submit(new ArchiveRouteStage(archive, i, numHandlers)));
+            }
+        } else {
+            try (
+                    final FileInputStream fileInputStream = new FileInputStream(file);
+                    final GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream, 1024*1024)
+            ) {
+                Block block;
+                final BlockReader blockReader = new BlockReader(gzipInputStream);
+                while((block = blockReader.next()) != END_OF_INPUT) {
+                    routedBlocks.put(parseWorkers.submit(new RouteStage(block, numHandlers)));
+                }
+            }
+        }
+        routedBlocks.put(parseWorkers.submit(new Callable<Slice[]>() {
+            @Override
+            public Slice[] call() {
+                return null;
+            }
+        }));
+
+        dispatcher.join();
+        if(archive != null) {
+            archive.close();
+        }
+        parseWorkers.shutdown();
+        for(Future<?> handlerResult : handlerResults) {
+            handlerResult.get();
+        }
+        handlerThreads.shutdown();
+
+        MessageHandler.close();
+
+        reporter.report();
+        reporter.stop();
+    }
+
+    /**
+     * Reads the decompressed stream in large blocks, each ending with a whole line.
+     */
+    private static class BlockReader {
+
+        private final InputStream inputStream;
+        // the start of a line carried over from the previous block
+        private byte[] carry = new byte[0];
+        private boolean finished = false;
+
+        private BlockReader(InputStream inputStream) {
+            this.inputStream = inputStream;
+        }
+
+        private Block next() throws IOException {
+            if(finished) {
+                return END_OF_INPUT;
+            }
+
+            byte[] bytes = new byte[Math.max(BLOCK_SIZE, carry.length*2)];
+            System.arraycopy(carry, 0, bytes, 0, carry.length);
+            int length = carry.length;
+
+            int read;
+            while(length < bytes.length && (read = inputStream.read(bytes, length, bytes.length-length)) != -1) {
+                length += read;
+            }
+            if(length < bytes.length) {
+                finished = true;
+                carry = new byte[0];
+                return length == 0 ? END_OF_INPUT : new Block(bytes, length);
+            }
+
+            int end = length;
+            while(end > 0 && bytes[end-1] != '\n') {
+                end--;
+            }
+            if(end == 0) {
+                // no line break in the whole block, so read on with a larger one
+                carry = bytes;
+                return next();
+            }
+            carry = Arrays.copyOfRange(bytes, end, length);
+            return new Block(bytes, end);
+        }
+    }
+
+    /**
+     * Splits a block into lines and routes each line to a handler by client id.
+     */
+    private static class RouteStage implements Callable<Slice[]> {
+
+        private final Block block;
+        private final int numHandlers;
+
+        private RouteStage(Block block, int numHandlers) {
+            this.block = block;
+            this.numHandlers = numHandlers;
+        }
+
+        @Override
+        public Slice[] call() {
+            final byte[] bytes = block.bytes;
+            final int[][] lines = new int[numHandlers][];
+            final int[] lineCounts = new int[numHandlers];
+            for(int i = 0; i < numHandlers; i++) {
+                lines[i] = new int[1024];
+            }
+
+            int lineStart = 0;
+            while(lineStart < block.length) {
+                // the client id runs to the first space, hashed as String.hashCode does so routing matches LogPartitioner
+                int hash = 0;
+                int pos = lineStart;
+                while(pos < block.length && bytes[pos] != ' ' && bytes[pos] != '\n') {
+                    hash = 31*hash + (bytes[pos] & 0xFF);
+                    pos++;
+                }
+                while(pos < block.length && bytes[pos] != '\n') {
+                    pos++;
+                }
+                int lineEnd = pos;
+                if(lineEnd > lineStart && bytes[lineEnd-1] == '\r') {
+                    lineEnd--;
+                }
+
+                if(lineEnd > lineStart) {
+                    int handler = hash % numHandlers;
+                    if(handler < 0) {
+                        handler = handler*-1;
+                    }
+                    int count = lineCounts[handler];
+                    if(count*2+2 > lines[handler].length) {
+                        lines[handler] = Arrays.copyOf(lines[handler], lines[handler].length*2);
+                    }
+                    lines[handler][count*2] = lineStart;
+                    lines[handler][count*2+1] = lineEnd-lineStart;
+                    lineCounts[handler] = count+1;
+                }
+                lineStart = pos+1;
+            }
+
+            final Slice[] slices = new Slice[numHandlers];
+            for(int i = 0; i < numHandlers; i++) {
+                slices[i] = new Slice(bytes, lines[i], lineCounts[i]);
+            }
+            return slices;
+        }
+    }
+
+    /**
+     * Decompresses a block of a LogArchive, then routes its lines as RouteStage does.
+     */
+    private static class ArchiveRouteStage implements Callable<Slice[]> {
+
+        private final LogArchive.Reader archive;
+        private final int block;
+        private final int numHandlers;
+
+        private ArchiveRouteStage(LogArchive.Reader archive, int block, int numHandlers) {
+            this.archive = archive;
+            this.block = block;
+            this.numHandlers = numHandlers;
+        }
+
+        @Override
+        public Slice[] call() throws IOException {
+            final byte[] bytes = archive.readBlock(block);
+            return new RouteStage(new Block(bytes, bytes.length), numHandlers).call();
+        }
+    }
+
+    /**
+     * Feeds a MessageHandler the lines routed to it, until the end of the input.
+     */
+    private static class HandlerStage implements Runnable {
+
+        private final BlockingQueue<Slice> queue;
+        private final MessageHandler messageHandler;
+        private final Meter meter;
+
+        private HandlerStage(BlockingQueue<Slice> queue, MessageHandler messageHandler, Meter meter) {
+            this.queue = queue;
+            this.messageHandler = messageHandler;
+            this.meter = meter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // each slice is handled as one batch, so its writes are grouped by partition
+                final MessageBatch batch = new MessageBatch(1024);
+                Slice slice;
+                while((slice = queue.take()) != END_OF_SLICES) {
+                    for(int i = 0; i < slice.lineCount; i++) {
+                        batch.add(slice.bytes, slice.lines[i*2], slice.lines[i*2+1]);
+                    }
+                    messageHandler.handleBatch(batch);
+                    batch.clear();
+                    meter.mark(slice.lineCount);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("ERROR(BulkIngest) handler interrupted");
+            }
+            messageHandler.flush();
+        }
+    }
+
+    private static class Block {
+        private final byte[] bytes;
+        private final int length;
+
+        private Block(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
+    }
+
+    /**
+     * The lines of a block routed to one handler, as (offset, length) pairs.
+     */
+    private static class Slice {
+        private final byte[] bytes;
+        private final int[] lines;
+        private final int lineCount;
+
+        private Slice(byte[] bytes, int[] lines, int lineCount) {
+            this.bytes = bytes;
+            this.lines = lines;
+            this.lineCount = lineCount;
+        }
+    }
+}
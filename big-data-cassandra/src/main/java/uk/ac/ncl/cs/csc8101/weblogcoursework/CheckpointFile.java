@@ -0,0 +1,234 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.function.Consumer;
+
+/**
+ * A checkpoint of the in memory state of the handlers, written and read through memory mapped
+ * regions of a file, so a large session state goes straight to the page cache rather than through
+ * stream buffers.
+ * <p>
+ * A checkpoint is written to a temporary file next to its target and only renamed over it once
+ * forced to disk, so a crash part way through leaves the previous checkpoint in place.
+ * Values are written in big endian order; strings as their UTF-8 length and bytes, and sessions
+ * as id, first and last hit times, hit count and the serialized form of their sketch.
+ */
+public class CheckpointFile {
+
+    private static final int MAGIC = 0x43484b31;
+    private static final int REGION_BYTES = 16 << 20;
+
+    /**
+     * Starts a checkpoint, replacing the one in the given file when committed.
+     *
+     * @param file the checkpoint file
+     * @return the writer, to commit or close
+     */
+    public static Writer create(File file) throws IOException {
+        return new Writer(file);
+    }
+
+    /**
+     * Opens a committed checkpoint.
+     *
+     * @param file the checkpoint file
+     * @return the reader, to close when done
+     * @throws IOException if the file can't be read or is not a checkpoint
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * Writes a checkpoint, mapping the file a region at a time as it grows. Not thread safe.
+     */
+    public static class Writer implements Closeable {
+
+        private final File file;
+        private final File temporaryFile;
+        private final FileChannel channel;
+        private long regionStart = 0;
+        private MappedByteBuffer region;
+        private boolean committed = false;
+
+        private Writer(File file) throws IOException {
+            this.file = file;
+            this.temporaryFile = new File(file.getPath()+".tmp");
+            this.channel = FileChannel.open(temporaryFile.toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.region = channel.map(FileChannel.MapMode.READ_WRITE, 0, REGION_BYTES);
+            putInt(MAGIC);
+        }
+
+        public void putInt(int value) throws IOException {
+            ensure(4).putInt(value);
+        }
+
+        public void putLong(long value) throws IOException {
+            ensure(8).putLong(value);
+        }
+
+        public void putString(String value) throws IOException {
+            putBytes(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Writes the remaining bytes of a buffer, preceded by their length.
+         */
+        public void putBytes(ByteBuffer bytes) throws IOException {
+            putInt(bytes.remaining());
+            ensure(bytes.remaining()).put(bytes.duplicate());
+        }
+
+        public void putSession(SessionState session) throws IOException {
+            putString(session.getId());
+            putLong(session.getFirstHitMillis());
+            putLong(session.getLastHitMillis());
+            putLong(session.getHitCount());
+            putBytes(session.getSketch().toByteBuffer());
+        }
+
+        /**
+         * Writes every open session of a store, in order of last hit.
+         */
+        public void putSessions(SessionStore sessions) throws IOException {
+            // the visitor can't throw, so the first failure is passed out through this
+            final IOException[] failure = new IOException[1];
+            sessions.forEach(new Consumer<SessionState>() {
+                @Override
+                public void accept(SessionState session) {
+                    if(failure[0] == null) {
+                        try {
+                            putSession(session);
+                        } catch (IOException e) {
+                            failure[0] = e;
+                        }
+                    }
+                }
+            });
+            if(failure[0] != null) {
+                throw failure[0];
+            }
+        }
+
+        /**
+         * Forces the checkpoint to disk and puts it in place of the previous one.
+         */
+        public void commit() throws IOException {
+            final long length = regionStart+region.position();
+            region.force();
+            channel.truncate(length);
+            channel.force(true);
+            channel.close();
+            Files.move(temporaryFile.toPath(), file.toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            committed = true;
+        }
+
+        /**
+         * Abandons the checkpoint unless it has been committed, leaving the previous one in place.
+         */
+        @Override
+        public void close() throws IOException {
+            if(!committed) {
+                channel.close();
+                Files.deleteIfExists(temporaryFile.toPath());
+            }
+        }
+
+        private MappedByteBuffer ensure(int bytes) throws IOException {
+            if(region.remaining() < bytes) {
+                // mapping past the end grows the file
+                regionStart += region.position();
+                region = channel.map(FileChannel.MapMode.READ_WRITE, regionStart, Math.max(REGION_BYTES, bytes));
+            }
+            return region;
+        }
+    }
+
+    /**
+     * Reads a checkpoint in the order it was written, mapping the file a region at a time. Not thread safe.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final long length;
+        private long regionStart = 0;
+        private MappedByteBuffer region;
+
+        private Reader(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            this.length = channel.size();
+            this.region = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(REGION_BYTES, length));
+            if(length < 4 || getInt() != MAGIC) {
+                channel.close();
+                throw new IOException("not a checkpoint: "+file);
+            }
+        }
+
+        public int getInt() throws IOException {
+            return ensure(4).getInt();
+        }
+
+        public long getLong() throws IOException {
+            return ensure(8).getLong();
+        }
+
+        public String getString() throws IOException {
+            final ByteBuffer bytes = getBytes();
+            return StandardCharsets.UTF_8.decode(bytes).toString();
+        }
+
+        /**
+         * @return a view of bytes written by Writer#putBytes, only valid until the next read
+         */
+        public ByteBuffer getBytes() throws IOException {
+            final int size = getInt();
+            final MappedByteBuffer buffer = ensure(size);
+            final ByteBuffer bytes = buffer.slice();
+            bytes.limit(size);
+            buffer.position(buffer.position()+size);
+            return bytes;
+        }
+
+        /**
+         * @return a session written by Writer#putSession
+         */
+        public SiteSession getSession() throws IOException {
+            final String id = getString();
+            final long firstHitMillis = getLong();
+            final long lastHitMillis = getLong();
+            final long hitCount = getLong();
+            final SparseHyperLogLog sketch = SparseHyperLogLog.fromByteBuffer(getBytes());
+            return new SiteSession(id, firstHitMillis, lastHitMillis, hitCount, sketch);
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private MappedByteBuffer ensure(int bytes) throws IOException {
+            if(region.remaining() < bytes) {
+                regionStart += region.position();
+                if(length-regionStart < bytes) {
+                    throw new EOFException("checkpoint truncated");
+                }
+                region = channel.map(FileChannel.MapMode.READ_ONLY, regionStart,
+                        Math.min(Math.max(REGION_BYTES, bytes), length-regionStart));
+            }
+            return region;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.stream.Counter;
+import com.clearspring.analytics.stream.StreamSummary;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Weighted client to partition assignment, balancing the expected load of the partitions.
+ * <p>
+ * Built from a sample of the traffic. A StreamSummary finds the heaviest clients (crawlers, proxies)
+ * in bounded memory, while every other client is left where LogPartitioner would hash it. The heavy
+ * clients are then placed, heaviest first, on the partition with the least expected load so far,
+ * counting the hashed light traffic already on it. Each client still maps to exactly one partition,
+ * as session tracking requires.
+ * <p>
+ * Assignments are saved as a text file of the partition count followed by one "clientId partition"
+ * line per heavy client. The same file must be used for the whole of a run, or clients would move.
+ */
+public class ClientLoadAssignment {
+
+    private final int numPartitions;
+    private final Map<String, Integer> heavyClients;
+    // expected hits per partition with plain hashing, and with this assignment
+    private final long[] hashedLoads;
+    private final long[] expectedLoads;
+
+    private ClientLoadAssignment(int numPartitions, Map<String, Integer> heavyClients, long[] hashedLoads, long[] expectedLoads) {
+        this.numPartitions = numPartitions;
+        this.heavyClients = heavyClients;
+        this.hashedLoads = hashedLoads;
+        this.expectedLoads = expectedLoads;
+    }
+
+    public int getNumPartitions() {
+        return numPartitions;
+    }
+
+    /**
+     * @param clientId the client
+     * @return the partition assigned to a heavy client, or -1 if the client should be hashed
+     */
+    public int getPartition(String clientId) {
+        final Integer partition = heavyClients.get(clientId);
+        return partition == null ? -1 : partition;
+    }
+
+    public int getHeavyClientCount() {
+        return heavyClients.size();
+    }
+
+    /**
+     * @return the sampled hits per partition with plain hash partitioning. Empty for a loaded assignment
+     */
+    public long[] getHashedLoads() {
+        return hashedLoads.clone();
+    }
+
+    /**
+     * @return the sampled hits per partition with this assignment. Empty for a loaded assignment
+     */
+    public long[] getExpectedLoads() {
+        return expectedLoads.clone();
+    }
+
+    public void save(File file) throws IOException {
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(file))) {
+            writer.write(Integer.toString(numPartitions));
+            writer.newLine();
+            for(Map.Entry<String, Integer> entry : heavyClients.entrySet()) {
+                writer.write(entry.getKey()+" "+entry.getValue());
+                writer.newLine();
+            }
+        }
+    }
+
+    public static ClientLoadAssignment load(File file) throws IOException {
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            final int numPartitions = Integer.parseInt(reader.readLine().trim());
+            final Map<String, Integer> heavyClients = new HashMap<>();
+            String line;
+            while((line = reader.readLine()) != null) {
+                final int space = line.lastIndexOf(' ');
+                if(space > 0) {
+                    heavyClients.put(line.substring(0, space), Integer.parseInt(line.substring(space+1)));
+                }
+            }
+            return new ClientLoadAssignment(numPartitions, heavyClients, new long[0], new long[0]);
+        }
+    }
+
+    /**
+     * Accumulates a sample of the traffic and builds an assignment from it. Not thread safe.
+     */
+    public static class Builder {
+
+        private final int numPartitions;
+        private final int heavyClients;
+        private final StreamSummary<String> summary;
+        private final LogPartitioner logPartitioner = new LogPartitioner(null);
+        private final long[] hashedLoads;
+
+        /**
+         * @param numPartitions the number of partitions of the topic
+         * @param heavyClients the number of heaviest clients to place explicitly
+         */
+        public Builder(int numPartitions, int heavyClients) {
+            this.numPartitions = numPartitions;
+            this.heavyClients = heavyClients;
+            // track more clients than are placed, so the counts of those placed are accurate
+            this.summary = new StreamSummary<>(heavyClients*10);
+            this.hashedLoads = new long[numPartitions];
+        }
+
+        /**
+         * @param clientId the client of a sampled hit
+         */
+        public void offer(String clientId) {
+            summary.offer(clientId);
+            hashedLoads[logPartitioner.partition(clientId, numPartitions)]++;
+        }
+
+        public ClientLoadAssignment build() {
+
+            final List<Counter<String>> heaviest = new ArrayList<>(summary.topK(heavyClients));
+            Collections.sort(heaviest, new Comparator<Counter<String>>() {
+                @Override
+                public int compare(Counter<String> a, Counter<String> b) {
+                    return Long.compare(b.getCount(), a.getCount());
+                }
+            });
+
+            // the light traffic stays hashed, so start from the hashed load without the heavy clients
+            final long[] expectedLoads = hashedLoads.clone();
+            for(Counter<String> counter : heaviest) {
+                final int partition = logPartitioner.partition(counter.getItem(), numPartitions);
+                expectedLoads[partition] = Math.max(0, expectedLoads[partition]-counter.getCount());
+            }
+
+            final Map<String, Integer> assignment = new HashMap<>();
+            for(Counter<String> counter : heaviest) {
+                int lightest = 0;
+                for(int partition = 1; partition < numPartitions; partition++) {
+                    if(expectedLoads[partition] < expectedLoads[lightest]) {
+                        lightest = partition;
+                    }
+                }
+                assignment.put(counter.getItem(), lightest);
+                expectedLoads[lightest] += counter.getCount();
+            }
+
+            return new ClientLoadAssignment(numPartitions, assignment,
+                    Arrays.copyOf(hashedLoads, numPartitions), expectedLoads);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.Meter;
+import kafka.consumer.ConsumerIterator;
+import kafka.consumer.ConsumerTimeoutException;
+import kafka.consumer.KafkaStream;
+import kafka.javaapi.TopicMetadata;
+import kafka.javaapi.TopicMetadataRequest;
+import kafka.javaapi.consumer.SimpleConsumer;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Processes kafka streams as three stages connected by RingBuffers, so a stall in one doesn't hold up the others:
+ * <ol>
+ *     <li>consume: one thread per stream, moving messages off kafka. Kafka gives each partition to a
+ *     single stream, so a stream carries one or more whole partitions</li>
+ *     <li>handle: threads each owning a MessageHandler, which parse, aggregate and track sessions
+ *     a batch of messages at a time.
+ *     Every stream feeds exactly one of them, so each still sees its clients' hits in order</li>
+ *     <li>write: a shared WriteStage issuing the handlers' writes to cassandra</li>
+ * </ol>
+ * The thread counts of the later stages are derived from the partition count, see forPartitions.
+ * <p>
+ * With a checkpoint file, the pipeline periodically makes its state consistent with the stream offsets:
+ * it stops the consume stage, so every message taken from kafka is on a handler queue, and queues a
+ * checkpoint marker behind them. Each handler checkpoints once it reaches the marker, then the
+ * aggregates are flushed, outstanding writes awaited, the state written to the file and only then
+ * are the offsets committed. A restarted consumer restores the file and resumes from those offsets,
+ * so nothing is lost or counted twice. Hits still held for reordering are released at each checkpoint.
+ * <p>
+ * The checkpoint is a single local file holding the state of the whole process, not a snapshot per
+ * partition, so it only matches the committed offsets while this process is the group's one consumer
+ * and holds every partition. Failover between consumer processes, which would need the state of each
+ * partition to move with it on a rebalance, is not supported: run one consumer process per group and
+ * restart it in place on the same checkpoint file.
+ */
+public class ConsumerPipeline {
+
+    private static final int HANDLER_QUEUE_CAPACITY = 8192;
+    private static final int WRITE_QUEUE_CAPACITY = 8192;
+
+    /**
+     * How long a stream is polled before the consume stage checks for a checkpoint, to be used as
+     * the kafka consumer.timeout.ms.
+     */
+    public static final long POLL_TIMEOUT_MS = 1000;
+    // how long a stream may be idle before it is taken to have ended
+    private static final long END_OF_STREAM_IDLE_MS = 100000;
+
+    // marks the end of a stream on a handler queue
+    private static final byte[] END_OF_STREAM = new byte[0];
+    // marks the point on a handler queue at which it checkpoints
+    private static final byte[] CHECKPOINT = new byte[0];
+
+    private final int numHandlers;
+    private final int numWriters;
+    private final boolean offHeapSessions;
+    private final Meter meter;
+
+    /**
+     * @param numHandlers the number of MessageHandler threads
+     * @param numWriters the number of threads issuing writes
+     * @param offHeapSessions true to keep open sessions in an OffHeapSessionStore
+     * @param meter marked for each record handled, a message holding a block of them
+     */
+    public ConsumerPipeline(int numHandlers, int numWriters, boolean offHeapSessions, Meter meter) {
+        this.numHandlers = numHandlers;
+        this.numWriters = numWriters;
+        this.offHeapSessions = offHeapSessions;
+        this.meter = meter;
+    }
+
+    /**
+     * A pipeline with a handler thread per partition, up to the number of processors, and a writer
+     * thread per two handlers, unless overridden by -DhandlerThreads and -DwriterThreads.
+     *
+     * @param partitions the number of partitions of the topic
+     */
+    public static ConsumerPipeline forPartitions(int partitions, boolean offHeapSessions, Meter meter) {
+        final int defaultHandlers = Math.max(1, Math.min(partitions, Runtime.getRuntime().availableProcessors()));
+        final int numHandlers = Integer.getInteger("handlerThreads", defaultHandlers);
+        final int numWriters = Integer.getInteger("writerThreads", Math.max(1, (numHandlers+1)/2));
+        return new ConsumerPipeline(numHandlers, numWriters, offHeapSessions, meter);
+    }
+
+    /**
+     * Asks a broker how many partitions a topic has.
+     *
+     * @param host the broker host
+     * @param port the broker port
+     * @param topic the topic
+     * @return the number of partitions
+     * @throws IllegalStateException if the broker doesn't know the topic
+     */
+    public static int partitionCount(String host, int port, String topic) {
+        final SimpleConsumer consumer = new SimpleConsumer(host, port, 10000, 64*1024, "partitionCount");
+        try {
+            final List<TopicMetadata> metadata =
+                    consumer.send(new TopicMetadataRequest(Collections.singletonList(topic))).topicsMetadata();
+            if(metadata.isEmpty() || metadata.get(0).partitionsMetadata().isEmpty()) {
+                throw new IllegalStateException("no partitions found for topic "+topic);
+            }
+            return metadata.get(0).partitionsMetadata().size();
+        } finally {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Processes the streams until each of them times out, then flushes the handlers and completes their writes.
+     *
+     * @param streams the streams, each carrying one or more whole partitions
+     */
+    public void run(List<KafkaStream<byte[], byte[]>> streams) throws Exception {
+        run(streams, null, 0, null);
+    }
+
+    /**
+     * Restores the checkpoint in the given file, if there is one, then processes the streams until each
+     * of them times out, checkpointing on a fixed interval. Once the handlers have been flushed and their
+     * writes completed, a final checkpoint is taken.
+     *
+     * @param streams the streams of every partition of the topic, positioned at the offsets committed
+     *                with the checkpoint. The process must be the only consumer of its group
+     * @param checkpointFile the checkpoint file, or null for no checkpoints
+     * @param checkpointIntervalMs the time between checkpoints
+     * @param commitOffsets commits the offsets of every message taken from the streams,
+     *                      e.g. by ConsumerConnector#commitOffsets
+     */
+    public void run(List<KafkaStream<byte[], byte[]>> streams, final File checkpointFile, long checkpointIntervalMs,
+                    final Runnable commitOffsets) throws Exception {
+
+        if(checkpointFile != null && MessageHandler.restoreCheckpoint(checkpointFile)) {
+            System.out.println("restored checkpoint "+checkpointFile);
+        }
+
+        final WriteStage writeStage = new WriteStage(MessageHandler.newAsyncWriter(), numWriters, WRITE_QUEUE_CAPACITY);
+        // held by the consume stage to take a message, and by a checkpoint to stop it doing so
+        final ReadWriteLock consumeLock = new ReentrantReadWriteLock(true);
+        // the checkpointing thread, and each handler until it finishes
+        final Phaser checkpointBarrier = new Phaser(1);
+
+        final int handlers = Math.min(numHandlers, streams.size());
+        final List<RingBuffer<byte[]>> handlerQueues = new ArrayList<>();
+        final int[] streamsPerHandler = new int[handlers];
+        for(int i = 0; i < streams.size(); i++) {
+            streamsPerHandler[i % handlers]++;
+        }
+
+        final ExecutorService handlerThreads = Executors.newFixedThreadPool(handlers);
+        final List<MessageHandler> messageHandlers = new ArrayList<>();
+        final List<HandleStage> handleStages = new ArrayList<>();
+        final List<Future<?>> handlerResults = new ArrayList<>();
+        for(int i = 0; i < handlers; i++) {
+            final RingBuffer<byte[]> queue = new RingBuffer<>(HANDLER_QUEUE_CAPACITY);
+            handlerQueues.add(queue);
+            final MessageHandler messageHandler = new MessageHandler(
+                    offHeapSessions ? new OffHeapSessionStore() : new OnHeapSessionStore(), writeStage);
+            messageHandlers.add(messageHandler);
+            final HandleStage handleStage = new HandleStage(queue, streamsPerHandler[i], messageHandler, meter, checkpointBarrier);
+            handleStages.add(handleStage);
+            checkpointBarrier.register();
+            handlerResults.add(handlerThreads.submit(handleStage));
+        }
+
+        final ExecutorService consumerThreads = Executors.newFixedThreadPool(streams.size());
+        for(int i = 0; i < streams.size(); i++) {
+            consumerThreads.submit(new ConsumeStage(streams.get(i), handlerQueues.get(i % handlers), consumeLock));
+        }
+        consumerThreads.shutdown();
+
+        ScheduledExecutorService checkpoints = null;
+        if(checkpointFile != null) {
+            checkpoints = Executors.newSingleThreadScheduledExecutor();
+            checkpoints.scheduleWithFixedDelay(new Runnable() {
+                @Override
+                public void run() {
+                    consumeLock.writeLock().lock();
+                    try {
+                        for(HandleStage handleStage : handleStages) {
+                            if(!handleStage.finished) {
+                                handleStage.queue.put(CHECKPOINT);
+                            }
+                        }
+                        checkpointBarrier.arriveAndAwaitAdvance();
+                        checkpoint(checkpointFile, messageHandlers, commitOffsets);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        consumeLock.writeLock().unlock();
+                    }
+                }
+            }, checkpointIntervalMs, checkpointIntervalMs, TimeUnit.MILLISECONDS);
+        }
+
+        for(Future<?> handlerResult : handlerResults) {
+            handlerResult.get();
+        }
+        handlerThreads.shutdown();
+        if(checkpoints != null) {
+            // lets a checkpoint in progress complete
+            checkpoints.shutdown();
+            checkpoints.awaitTermination(1, TimeUnit.MINUTES);
+        }
+
+        MessageHandler.flushRestoredSessions(writeStage);
+        if(checkpointFile != null) {
+            checkpoint(checkpointFile, messageHandlers, commitOffsets);
+        }
+        writeStage.close();
+    }
+
+    private static void checkpoint(File checkpointFile, List<MessageHandler> messageHandlers, Runnable commitOffsets) {
+        try {
+            if(MessageHandler.writeCheckpoint(checkpointFile, messageHandlers)) {
+                commitOffsets.run();
+            }
+        } catch (Exception e) {
+            // the offsets stay at the previous checkpoint, so a restart replays from there
+            System.err.println("ERROR(ConsumerPipeline) checkpoint failed");
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Moves the messages of a stream to a handler queue, until the stream has been idle for END_OF_STREAM_IDLE_MS.
+     * The iterator advances the offset to be committed as soon as it has a message, so the consume lock is held
+     * from polling the stream to queueing the message.
+     */
+    private static class ConsumeStage implements Runnable {
+
+        private final KafkaStream<byte[], byte[]> stream;
+        private final RingBuffer<byte[]> queue;
+        private final ReadWriteLock consumeLock;
+
+        private ConsumeStage(KafkaStream<byte[], byte[]> stream, RingBuffer<byte[]> queue, ReadWriteLock consumeLock) {
+            this.stream = stream;
+            this.queue = queue;
+            this.consumeLock = consumeLock;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final ConsumerIterator<byte[], byte[]> it = stream.iterator();
+                long lastMessageMillis = System.currentTimeMillis();
+                boolean open = true;
+                while (open) {
+                    consumeLock.readLock().lock();
+                    try {
+                        if(it.hasNext()) {
+                            queue.put(it.next().message());
+                            lastMessageMillis = System.currentTimeMillis();
+                        } else {
+                            open = false;
+                        }
+                    } catch (ConsumerTimeoutException e) {
+                        // no message within POLL_TIMEOUT_MS, the iterator can be polled again
+                        open = System.currentTimeMillis()-lastMessageMillis < END_OF_STREAM_IDLE_MS;
+                    } finally {
+                        consumeLock.readLock().unlock();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("ERROR(ConsumerPipeline) consumer interrupted");
+            } finally {
+                // never during a checkpoint, so a handler can't finish while one is waiting for it
+                consumeLock.readLock().lock();
+                try {
+                    queue.put(END_OF_STREAM);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    consumeLock.readLock().unlock();
+                }
+            }
+        }
+    }
+
+    /**
+     * Feeds a MessageHandler the messages of its streams in batches, until all of them have ended,
+     * checkpointing it at each marker. Each batch is what has been fetched since the last, so batches
+     * grow with the load and a lightly loaded handler still sees each message without delay.
+     */
+    private static class HandleStage implements Runnable {
+
+        private final RingBuffer<byte[]> queue;
+        private final int numStreams;
+        private final MessageHandler messageHandler;
+        private final Meter meter;
+        private final Phaser checkpointBarrier;
+        private volatile boolean finished = false;
+
+        private HandleStage(RingBuffer<byte[]> queue, int numStreams, MessageHandler messageHandler, Meter meter,
+                            Phaser checkpointBarrier) {
+            this.queue = queue;
+            this.numStreams = numStreams;
+            this.messageHandler = messageHandler;
+            this.meter = meter;
+            this.checkpointBarrier = checkpointBarrier;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final MessageBatch batch = new MessageBatch(256);
+                int openStreams = numStreams;
+                while(openStreams > 0) {
+                    // whatever the consume stage has queued since the last batch joins this one, up to a marker
+                    byte[] message = queue.take();
+                    while(message != null && message != END_OF_STREAM && message != CHECKPOINT) {
+                        batch.add(message);
+                        message = batch.size() < HANDLER_QUEUE_CAPACITY ? queue.poll() : null;
+                    }
+                    if(!batch.isEmpty()) {
+                        meter.mark(messageHandler.handleBatch(batch));
+                        batch.clear();
+                    }
+
+                    if(message == END_OF_STREAM) {
+                        openStreams--;
+                    } else if(message == CHECKPOINT) {
+                        messageHandler.checkpoint();
+                        checkpointBarrier.arrive();
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("ERROR(ConsumerPipeline) handler interrupted");
+            }
+            messageHandler.flush();
+            finished = true;
+            // a finished handler holds no state, so checkpoints no longer wait for it
+            checkpointBarrier.arriveAndDeregister();
+        }
+    }
+}
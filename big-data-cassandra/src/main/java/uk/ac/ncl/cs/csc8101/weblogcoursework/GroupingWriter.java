@@ -0,0 +1,125 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.BoundStatement;
+import com.datastax.driver.core.RegularStatement;
+import com.datastax.driver.core.Statement;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * StatementWriter that holds writes back until flush, then issues those of the same query and
+ * partition together as an unlogged batch, so a partition's rows cost one request and one
+ * mutation on its replicas rather than one each. Writes alone in their partition are issued as
+ * they are, and writes with no routing key are issued immediately.
+ * <p>
+ * Unlogged batches only hold writes to a single partition, so they carry no batch log overhead.
+ * The number of writes held is bounded, reaching it flushes them early.
+ * <p>
+ * Not thread safe, use one per MessageHandler in front of its, possibly shared, writer.
+ */
+public class GroupingWriter implements StatementWriter {
+
+    private final StatementWriter writer;
+    private final int maxBatchStatements;
+    private final int maxHeld;
+
+    // (query, routing key) to the writes held for it, in order of first write
+    private final Map<List<Object>, List<Statement>> held = new LinkedHashMap<>();
+    private int heldCount = 0;
+    private long batchCount = 0;
+
+    /**
+     * @param writer issues the writes and batches
+     * @param maxBatchStatements the most writes put in one batch
+     * @param maxHeld the most writes held back before they are flushed
+     */
+    public GroupingWriter(StatementWriter writer, int maxBatchStatements, int maxHeld) {
+        this.writer = writer;
+        this.maxBatchStatements = maxBatchStatements;
+        this.maxHeld = maxHeld;
+    }
+
+    @Override
+    public void execute(Statement statement) throws InterruptedException {
+        final String query = queryOf(statement);
+        final ByteBuffer routingKey = statement.getRoutingKey();
+        if(query == null || routingKey == null) {
+            writer.execute(statement);
+            return;
+        }
+
+        final List<Object> key = Arrays.<Object>asList(query, routingKey);
+        List<Statement> statements = held.get(key);
+        if(statements == null) {
+            statements = new ArrayList<>();
+            held.put(key, statements);
+        }
+        statements.add(statement);
+        if(++heldCount >= maxHeld) {
+            flush();
+        }
+    }
+
+    /**
+     * Issues the writes held back, batched by partition.
+     */
+    public void flush() throws InterruptedException {
+        if(heldCount == 0) {
+            return;
+        }
+        for(List<Statement> statements : held.values()) {
+            if(statements.size() == 1) {
+                writer.execute(statements.get(0));
+                continue;
+            }
+            for(int from = 0; from < statements.size(); from += maxBatchStatements) {
+                final List<Statement> chunk = statements.subList(from, Math.min(statements.size(), from+maxBatchStatements));
+                if(chunk.size() == 1) {
+                    writer.execute(chunk.get(0));
+                } else {
+                    writer.execute(new BatchStatement(BatchStatement.Type.UNLOGGED).addAll(chunk));
+                    batchCount++;
+                }
+            }
+        }
+        held.clear();
+        heldCount = 0;
+    }
+
+    /**
+     * Issues the writes held back, then waits for all the writes issued so far to complete.
+     */
+    @Override
+    public void awaitOutstanding() throws InterruptedException {
+        flush();
+        writer.awaitOutstanding();
+    }
+
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        return writer.getFailureCounts();
+    }
+
+    /**
+     * @return the number of batches issued
+     */
+    public long getBatchCount() {
+        return batchCount;
+    }
+
+    private static String queryOf(Statement statement) {
+        if(statement instanceof BoundStatement) {
+            return ((BoundStatement) statement).preparedStatement().getQueryString();
+        }
+        if(statement instanceof RegularStatement) {
+            return ((RegularStatement) statement).getQueryString();
+        }
+        return null;
+    }
+}
@@ -0,0 +1,482 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Aggregates url access counts per absolute hour and emits each (url, hour) total exactly once,
+ * when the event time watermark passes the end of the hour.
+ * <p>
+ * Shared by all consumer threads. Each thread registers a Source, which pre-aggregates its own
+ * time ordered hits for the hour it has open and merges them into the shared totals when it moves
+ * on to a later hour. Hits a little out of order are still added to their hour, as a source only
+ * moves its watermark past an hour once it has seen a hit the allowed lateness after the hour's end.
+ * An hour is closed once every registered source's watermark has passed it, so the totals are
+ * complete and can be written as plain idempotent rows rather than counter updates. Hits arriving
+ * later still are counted by getLateHits and dropped.
+ * Memory is proportional to the distinct urls in the open hour(s), not the data time span.
+ * Urls are counted by their UrlDictionary id, in primitive maps, and only resolved back to
+ * Strings when a closed hour is emitted.
+ * <p>
+ * Closed hours are also rolled up into day and week totals, which are emitted the same way once
+ * their last hour closes, so range queries can read coarse buckets (see TimeRangePlan).
+ * Those take memory proportional to the distinct urls of the open week.
+ * <p>
+ * The shared totals are only touched once per (url, hour) per source, so they are simply
+ * guarded by the aggregator's monitor. A registered source that never sees a hit holds back
+ * the watermark until it is closed.
+ * <p>
+ * Closed hours are emitted either inline, by the source whose progress closes them, or by a
+ * Flusher thread on a fixed interval, so the sources' threads never wait on the writes.
+ * getWritesSaved counts the rows this saves over each source writing its own (url, hour) counts.
+ * <p>
+ * The open totals can be written to and restored from a CheckpointFile, so a consumer restarted in
+ * place carries on from the checkpoint without losing or double counting hits.
+ */
+public class HourCloseAggregator {
+
+    public static final long HOUR_MS = TimeUnit.HOURS.toMillis(1);
+
+    /**
+     * Receives the total for each closed (url, hour).
+     */
+    public interface Sink {
+        /**
+         * @param resolution the resolution of the total
+         * @param total the total, for the bucket of the resolution given as its hour
+         */
+        void write(TimeResolution resolution, UrlHourCounter total);
+
+        /**
+         * Called after the totals of newly closed hours have been passed to write. Once every source
+         * has closed this is the hour after the latest counted, never Long.MAX_VALUE, as later hours
+         * may still be counted by a later run.
+         *
+         * @param closedBeforeHour every hour before this has now been emitted
+         */
+        default void hoursClosed(long closedBeforeHour) {}
+    }
+
+    private final UrlDictionary urlDictionary;
+    private final long allowedLatenessMillis;
+    // url id to count, per open hour, day and week
+    private final TreeMap<Long, LongLongMap> openHours = new TreeMap<>();
+    private final TreeMap<Long, LongLongMap> openDays = new TreeMap<>();
+    private final TreeMap<Long, LongLongMap> openWeeks = new TreeMap<>();
+    private final CopyOnWriteArrayList<Source> sources = new CopyOnWriteArrayList<>();
+    private long closedBeforeHour = Long.MIN_VALUE;
+    // the latest hour any hit has been counted for
+    private long latestHour = Long.MIN_VALUE;
+    private long lateHits = 0;
+    // (url, hour) counts merged from the sources, and (url, hour) totals emitted
+    private long sourceRows = 0;
+    private long emittedRows = 0;
+
+    /**
+     * An aggregator closing each hour as soon as every source has seen a hit in a later one.
+     *
+     * @param urlDictionary resolves the url ids passed to Source#add
+     */
+    public HourCloseAggregator(UrlDictionary urlDictionary) {
+        this(urlDictionary, 0);
+    }
+
+    /**
+     * @param urlDictionary resolves the url ids passed to Source#add
+     * @param allowedLatenessMillis how far out of order a source's hits may be and still be counted,
+     *                              normally that of the handlers' ReorderBuffer
+     */
+    public HourCloseAggregator(UrlDictionary urlDictionary, long allowedLatenessMillis) {
+        if(allowedLatenessMillis < 0) {
+            throw new IllegalArgumentException("allowed lateness must not be negative: "+allowedLatenessMillis);
+        }
+        this.urlDictionary = urlDictionary;
+        this.allowedLatenessMillis = allowedLatenessMillis;
+    }
+
+    /**
+     * Registers a new, single threaded, source of hits.
+     *
+     * @param sink receives the totals of any hours this source closes
+     * @return the source
+     */
+    public Source register(Sink sink) {
+        final Source source = new Source(sink);
+        sources.add(source);
+        return source;
+    }
+
+    /**
+     * Registers a new, single threaded, source of hits that leaves emitting closed hours to a Flusher.
+     *
+     * @return the source
+     */
+    public Source register() {
+        return register(null);
+    }
+
+    /**
+     * Starts a thread emitting closed hours on a fixed interval.
+     *
+     * @param sink receives the totals of closed hours
+     * @param interval the time between emits
+     * @param unit the unit of interval
+     * @return the flusher, to close when done
+     */
+    public Flusher startFlusher(Sink sink, long interval, TimeUnit unit) {
+        final Flusher flusher = new Flusher(sink, unit.toNanos(interval));
+        flusher.thread.start();
+        return flusher;
+    }
+
+    /**
+     * @return the number of hits discarded because their hour had already been emitted
+     */
+    public synchronized long getLateHits() {
+        return lateHits;
+    }
+
+    /**
+     * @return the number of (url, hour) rows saved by writing one total per (url, hour) emitted
+     * rather than one per source that counted it
+     */
+    public synchronized long getWritesSaved() {
+        return sourceRows-emittedRows;
+    }
+
+    /**
+     * Writes the totals of the open hours, days and weeks. Sources should have merged their own
+     * counts first, see Source#checkpoint.
+     *
+     * @param out the checkpoint
+     */
+    public synchronized void writeTo(CheckpointFile.Writer out) throws IOException {
+        out.putLong(publishedBeforeHour(closedBeforeHour));
+        out.putLong(latestHour);
+        out.putLong(lateHits);
+        writeBuckets(out, openHours);
+        writeBuckets(out, openDays);
+        writeBuckets(out, openWeeks);
+    }
+
+    /**
+     * Replaces the open totals with those of a checkpoint written by writeTo.
+     *
+     * @param in the checkpoint
+     */
+    public synchronized void readFrom(CheckpointFile.Reader in) throws IOException {
+        closedBeforeHour = in.getLong();
+        latestHour = in.getLong();
+        lateHits = in.getLong();
+        readBuckets(in, openHours);
+        readBuckets(in, openDays);
+        readBuckets(in, openWeeks);
+    }
+
+    private void writeBuckets(CheckpointFile.Writer out, TreeMap<Long, LongLongMap> openBuckets) throws IOException {
+        out.putInt(openBuckets.size());
+        for(Map.Entry<Long, LongLongMap> entry : openBuckets.entrySet()) {
+            // copied out first, as the visitor can't throw
+            final long[] urlIds = new long[entry.getValue().size()];
+            final long[] counts = new long[urlIds.length];
+            entry.getValue().forEach(new LongLongMap.Visitor() {
+                private int i = 0;
+
+                @Override
+                public void visit(long urlId, long count) {
+                    urlIds[i] = urlId;
+                    counts[i++] = count;
+                }
+            });
+            out.putLong(entry.getKey());
+            out.putInt(urlIds.length);
+            for(int i = 0; i < urlIds.length; i++) {
+                out.putString(urlDictionary.getUrl((int)urlIds[i]));
+                out.putLong(counts[i]);
+            }
+        }
+    }
+
+    private void readBuckets(CheckpointFile.Reader in, TreeMap<Long, LongLongMap> openBuckets) throws IOException {
+        openBuckets.clear();
+        final int buckets = in.getInt();
+        for(int i = 0; i < buckets; i++) {
+            final LongLongMap totals = openBucket(openBuckets, in.getLong());
+            final int urls = in.getInt();
+            for(int j = 0; j < urls; j++) {
+                totals.addTo(urlDictionary.idFor(in.getString()), in.getLong());
+            }
+        }
+    }
+
+    private synchronized void addToOpenHour(long hour, LongLongMap counts) {
+        sourceRows += counts.size();
+        if(hour < closedBeforeHour) {
+            counts.forEach(new LongLongMap.Visitor() {
+                @Override
+                public void visit(long urlId, long count) {
+                    lateHits += count;
+                }
+            });
+            return;
+        }
+        latestHour = Math.max(latestHour, hour);
+        final LongLongMap totals = openHour(hour);
+        counts.forEach(new LongLongMap.Visitor() {
+            @Override
+            public void visit(long urlId, long count) {
+                totals.addTo(urlId, count);
+            }
+        });
+    }
+
+    private synchronized void addToOpenHour(long hour, int urlId) {
+        if(hour < closedBeforeHour) {
+            lateHits++;
+            return;
+        }
+        latestHour = Math.max(latestHour, hour);
+        openHour(hour).addTo(urlId, 1);
+    }
+
+    private LongLongMap openHour(long hour) {
+        return openBucket(openHours, hour);
+    }
+
+    private static LongLongMap openBucket(TreeMap<Long, LongLongMap> openBuckets, long bucket) {
+        LongLongMap totals = openBuckets.get(bucket);
+        if(totals == null) {
+            totals = new LongLongMap();
+            openBuckets.put(bucket, totals);
+        }
+        return totals;
+    }
+
+    private void emitClosedHours(Sink sink) {
+        // the writes are issued outside the monitor, as the sink may block
+        final ClosedHours closedHours = takeClosedHours();
+        if(closedHours == null) {
+            return;
+        }
+        for(int i = 0; i < closedHours.totals.size(); i++) {
+            sink.write(closedHours.resolutions.get(i), closedHours.totals.get(i));
+        }
+        if(closedHours.closedBeforeHour != Long.MIN_VALUE) {
+            sink.hoursClosed(closedHours.closedBeforeHour);
+        }
+    }
+
+    /**
+     * Once every source has closed, hours after the latest seen are not closed for a later run,
+     * so the watermark published or checkpointed is capped at the hour after the latest counted.
+     *
+     * @return the watermark to publish, Long.MIN_VALUE if nothing has been counted
+     */
+    private long publishedBeforeHour(long watermarkHour) {
+        if(watermarkHour != Long.MAX_VALUE) {
+            return watermarkHour;
+        }
+        return latestHour == Long.MIN_VALUE ? Long.MIN_VALUE : latestHour+1;
+    }
+
+    private synchronized ClosedHours takeClosedHours() {
+
+        if(sources.isEmpty()) {
+            // nothing has been counted yet, and with no source to hold it back the watermark would close every hour
+            return null;
+        }
+        long watermarkHour = Long.MAX_VALUE;
+        for(Source source : sources) {
+            watermarkHour = Math.min(watermarkHour, source.watermarkHour);
+        }
+        if(watermarkHour <= closedBeforeHour) {
+            return null;
+        }
+        closedBeforeHour = watermarkHour;
+
+        final ClosedHours closed = new ClosedHours(publishedBeforeHour(watermarkHour));
+        final Iterator<Map.Entry<Long, LongLongMap>> iterator =
+                openHours.headMap(watermarkHour).entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<Long, LongLongMap> entry = iterator.next();
+            iterator.remove();
+            final long hour = entry.getKey();
+            final LongLongMap dayTotals = openBucket(openDays, TimeResolution.DAY.bucketOf(hour));
+            final LongLongMap weekTotals = openBucket(openWeeks, TimeResolution.WEEK.bucketOf(hour));
+            entry.getValue().forEach(new LongLongMap.Visitor() {
+                @Override
+                public void visit(long urlId, long count) {
+                    closed.add(TimeResolution.HOUR, urlId, hour, count);
+                    emittedRows++;
+                    dayTotals.addTo(urlId, count);
+                    weekTotals.addTo(urlId, count);
+                }
+            });
+        }
+        closeBuckets(TimeResolution.DAY, openDays, watermarkHour, closed);
+        closeBuckets(TimeResolution.WEEK, openWeeks, watermarkHour, closed);
+        return closed;
+    }
+
+    private static void closeBuckets(final TimeResolution resolution, TreeMap<Long, LongLongMap> openBuckets,
+                                     long watermarkHour, final ClosedHours closed) {
+        final Iterator<Map.Entry<Long, LongLongMap>> iterator = openBuckets.entrySet().iterator();
+        while(iterator.hasNext()) {
+            final Map.Entry<Long, LongLongMap> entry = iterator.next();
+            final long bucket = entry.getKey();
+            // closed once the hour after its last has closed
+            if(resolution.firstHour(bucket+1) > watermarkHour) {
+                return;
+            }
+            iterator.remove();
+            entry.getValue().forEach(new LongLongMap.Visitor() {
+                @Override
+                public void visit(long urlId, long count) {
+                    closed.add(resolution, urlId, bucket, count);
+                }
+            });
+        }
+    }
+
+    /**
+     * Per thread view of the aggregator. Not thread safe.
+     */
+    public class Source {
+
+        private final Sink sink;
+        // url id to count, for the open hour
+        private final LongLongMap partialCounts = new LongLongMap(1024);
+        private long openHour = Long.MIN_VALUE;
+        // all hits for hours before this have been merged into the shared totals
+        private volatile long watermarkHour = Long.MIN_VALUE;
+        // the time of the first hit that would move the watermark on
+        private long nextWatermarkMillis = Long.MIN_VALUE;
+
+        private Source(Sink sink) {
+            this.sink = sink;
+        }
+
+        /**
+         * Counts a hit. Hits are expected in time order, give or take the allowed lateness.
+         * Late hits are added to the shared totals if their hour is still open, and discarded otherwise.
+         *
+         * @param urlId the UrlDictionary id of the url of the hit
+         * @param epochMillis the time of the hit, in milliseconds since unix epoch
+         */
+        public void add(int urlId, long epochMillis) {
+            final long hour = epochMillis / HOUR_MS;
+
+            if(hour == openHour) {
+                partialCounts.addTo(urlId, 1);
+            } else if(hour < openHour) {
+                addToOpenHour(hour, urlId);
+            } else {
+                mergePartialCounts();
+                openHour = hour;
+                partialCounts.addTo(urlId, 1);
+            }
+
+            if(epochMillis >= nextWatermarkMillis) {
+                // never past the open hour, so its partial counts are merged before it can close
+                watermarkHour = Math.floorDiv(epochMillis-allowedLatenessMillis, HOUR_MS);
+                nextWatermarkMillis = (watermarkHour+1)*HOUR_MS+allowedLatenessMillis;
+                if(sink != null) {
+                    emitClosedHours(sink);
+                }
+            }
+        }
+
+        /**
+         * Merges the counts of the open hour into the shared totals, so they are included in a
+         * checkpoint. The hour stays open.
+         */
+        public void checkpoint() {
+            mergePartialCounts();
+        }
+
+        /**
+         * Marks this source as finished, so it no longer holds back the watermark,
+         * and emits any hours that closes.
+         */
+        public void close() {
+            mergePartialCounts();
+            watermarkHour = Long.MAX_VALUE;
+            if(sink != null) {
+                emitClosedHours(sink);
+            }
+        }
+
+        private void mergePartialCounts() {
+            if(!partialCounts.isEmpty()) {
+                addToOpenHour(openHour, partialCounts);
+                partialCounts.clear();
+            }
+        }
+    }
+
+    /**
+     * Emits closed hours to one sink from a thread of its own. Emits are serialized, so the sink
+     * sees hours in order and each hoursClosed follows the writes of every hour before it.
+     */
+    public class Flusher {
+
+        private final Sink sink;
+        private final long intervalNanos;
+        private final Thread thread;
+        private volatile boolean closed = false;
+
+        private Flusher(Sink sink, long intervalNanos) {
+            this.sink = sink;
+            this.intervalNanos = intervalNanos;
+            this.thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while(!closed) {
+                        LockSupport.parkNanos(Flusher.this.intervalNanos);
+                        flush();
+                    }
+                }
+            }, "HourCloseAggregator-flusher");
+            thread.setDaemon(true);
+        }
+
+        /**
+         * Emits the hours closed since the last emit, from the calling thread.
+         */
+        public synchronized void flush() {
+            emitClosedHours(sink);
+        }
+
+        /**
+         * Stops the thread, then emits any hours still to be emitted.
+         */
+        public void close() throws InterruptedException {
+            closed = true;
+            LockSupport.unpark(thread);
+            thread.join();
+            flush();
+        }
+    }
+
+    private class ClosedHours {
+        private final long closedBeforeHour;
+        private final List<TimeResolution> resolutions = new ArrayList<>();
+        private final List<UrlHourCounter> totals = new ArrayList<>();
+
+        private ClosedHours(long closedBeforeHour) {
+            this.closedBeforeHour = closedBeforeHour;
+        }
+
+        private void add(TimeResolution resolution, long urlId, long bucket, long count) {
+            resolutions.add(resolution);
+            totals.add(new UrlHourCounter(urlDictionary.getUrl((int)urlId), (int)bucket, count));
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Permit based limit on the number of outstanding asynchronous writes, with the window sized by AIMD.
+ * <p>
+ * Each completion that is faster than the target latency grows the limit additively, by roughly one
+ * permit per window's worth of completions. A completion slower than the target shrinks it by a small
+ * factor and a timeout halves it. Decreases are applied at most once per target latency interval,
+ * so a burst of slow completions caused by the same congestion is only counted once.
+ * <p>
+ * Permits are taken by the submitting thread and returned from driver callbacks, so release never blocks.
+ */
+public class InFlightLimiter {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final long targetLatencyNanos;
+    private final LongSupplier nanoClock;
+
+    private double limit;
+    private int inFlight = 0;
+    private long lastDecreaseNanos;
+
+    /**
+     * @param minLimit the smallest window
+     * @param initialLimit the starting window
+     * @param maxLimit the largest window
+     * @param targetLatencyNanos completions slower than this shrink the window
+     */
+    public InFlightLimiter(int minLimit, int initialLimit, int maxLimit, long targetLatencyNanos) {
+        this(minLimit, initialLimit, maxLimit, targetLatencyNanos, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return System.nanoTime();
+            }
+        });
+    }
+
+    /**
+     * @param nanoClock the time source the decrease interval is measured by, as System.nanoTime
+     */
+    InFlightLimiter(int minLimit, int initialLimit, int maxLimit, long targetLatencyNanos, LongSupplier nanoClock) {
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.nanoClock = nanoClock;
+        this.limit = initialLimit;
+        this.lastDecreaseNanos = nanoClock.getAsLong() - targetLatencyNanos - 1;
+    }
+
+    /**
+     * Takes a permit, waiting until the number in flight is below the current limit.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while(inFlight >= (int)limit) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Returns a permit and adjusts the limit based on how the operation went.
+     *
+     * @param latencyNanos the time the operation took
+     * @param timedOut true if the operation failed with a timeout
+     */
+    public synchronized void release(long latencyNanos, boolean timedOut) {
+        inFlight--;
+        observe(latencyNanos, timedOut);
+        notifyAll();
+    }
+
+    /**
+     * Adjusts the limit based on how an operation went, without returning its permit.
+     * Used for attempts that are about to be retried.
+     *
+     * @param latencyNanos the time the operation took
+     * @param timedOut true if the operation failed with a timeout
+     */
+    public synchronized void observe(long latencyNanos, boolean timedOut) {
+        final long now = nanoClock.getAsLong();
+        if(timedOut || latencyNanos > targetLatencyNanos) {
+            if(now-lastDecreaseNanos > targetLatencyNanos) {
+                limit = Math.max(minLimit, limit * (timedOut ? 0.5 : 0.9));
+                lastDecreaseNanos = now;
+            }
+        } else {
+            limit = Math.min(maxLimit, limit + 1.0/limit);
+        }
+    }
+
+    /**
+     * Waits until all permits have been returned.
+     */
+    public synchronized void awaitIdle() throws InterruptedException {
+        while(inFlight > 0) {
+            wait();
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int)limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+}
@@ -1,6 +1,7 @@
 package uk.ac.ncl.cs.csc8101.weblogcoursework;
 
 import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Gauge;
 import com.codahale.metrics.Meter;
 import com.codahale.metrics.MetricRegistry;
 
@@ -9,15 +10,14 @@ import kafka.consumer.ConsumerConfig;
 import kafka.consumer.KafkaStream;
 import kafka.javaapi.consumer.ConsumerConnector;
 import kafka.serializer.Decoder;
-import kafka.serializer.StringDecoder;
+import kafka.serializer.DefaultDecoder;
 import kafka.utils.VerifiableProperties;
 
+import java.io.File;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -33,6 +33,20 @@ public class KafkaConsumer {
 
         final MetricRegistry metricRegistry = new MetricRegistry();
         final Meter meter = metricRegistry.meter("throughput");
+        metricRegistry.register("tooLateHits", MessageHandler.getTooLateHits());
+        metricRegistry.register("lateHourHits", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return MessageHandler.getLateHourHits();
+            }
+        });
+        MessageHandler.getQuarantine().registerMetrics(metricRegistry);
+        metricRegistry.register("urlHourWritesSaved", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return MessageHandler.getUrlHourWritesSaved();
+            }
+        });
         final ConsoleReporter reporter = ConsoleReporter.forRegistry(metricRegistry)
                 .convertRatesTo(TimeUnit.SECONDS)
                 .convertDurationsTo(TimeUnit.MILLISECONDS)
@@ -44,32 +58,40 @@ public class KafkaConsumer {
         properties.setProperty("group.id", "myclient");
         properties.setProperty("zookeeper.session.timeout.ms", "400");
         properties.setProperty("zookeeper.sync.time.ms", "200");
-        properties.setProperty("auto.commit.interval.ms", "1000");
+        // offsets are committed with each checkpoint, once everything before them is written or checkpointed
+        properties.setProperty("auto.commit.enable", "false");
         properties.setProperty("auto.offset.reset", "smallest");
-        properties.setProperty("consumer.timeout.ms", "100000");
+        properties.setProperty("consumer.timeout.ms", String.valueOf(ConsumerPipeline.POLL_TIMEOUT_MS));
 
         final ConsumerConfig consumerConfig = new ConsumerConfig(properties);
 
         final String topic = "csc8101";
-        final int numThreads = 4;
+        // a stream per partition, so as the group's only consumer this process gets each partition on a
+        // stream of its own. The checkpoint relies on it holding every partition, see ConsumerPipeline
+        final int numPartitions = ConsumerPipeline.partitionCount("localhost", 9092, topic);
+        // -DoffHeapSessions=true keeps open sessions in direct memory, for large client bases
+        final boolean offHeapSessions = Boolean.getBoolean("offHeapSessions");
+        // -DallowedLatenessMs=n lets hits arrive up to n ms out of order, see MessageHandler
+        // -DhandlerThreads=n and -DwriterThreads=n override the stage sizes, see ConsumerPipeline
+        // -DcheckpointFile=path and -DcheckpointIntervalMs=n set where and how often the state is checkpointed
+        final File checkpointFile = new File(System.getProperty("checkpointFile", "csc8101.checkpoint"));
+        final long checkpointIntervalMs = Long.getLong("checkpointIntervalMs", TimeUnit.MINUTES.toMillis(1));
 
         final ConsumerConnector consumerConnector = Consumer.createJavaConsumerConnector(consumerConfig);
         final Map<String, Integer> topicCountMap = new HashMap<>();
-        topicCountMap.put(topic, numThreads);
-        final Decoder<String> decoder = new StringDecoder(new VerifiableProperties());
-        final Map<String, List<KafkaStream<String, String>>> streamsMap =
+        topicCountMap.put(topic, numPartitions);
+        // messages are handed over as raw bytes, which the handlers parse without decoding to Strings
+        final Decoder<byte[]> decoder = new DefaultDecoder(new VerifiableProperties());
+        final Map<String, List<KafkaStream<byte[], byte[]>>> streamsMap =
                 consumerConnector.createMessageStreams(topicCountMap, decoder, decoder);
 
-        final ExecutorService executorService = Executors.newFixedThreadPool(numThreads);
-
-        for(final KafkaStream<String, String> stream : streamsMap.get(topic)) {
-            final MessageHandler messageHandler = new MessageHandler();
-            final RunnableConsumer runnableConsumer = new RunnableConsumer(stream, messageHandler, meter);
-            executorService.submit(runnableConsumer);
-        }
-
-        executorService.shutdown();
-        executorService.awaitTermination(Long.MAX_VALUE, TimeUnit.HOURS);
+        ConsumerPipeline.forPartitions(numPartitions, offHeapSessions, meter).run(streamsMap.get(topic),
+                checkpointFile, checkpointIntervalMs, new Runnable() {
+                    @Override
+                    public void run() {
+                        consumerConnector.commitOffsets();
+                    }
+                });
 
         consumerConnector.shutdown();
 
@@ -6,13 +6,17 @@ import com.codahale.metrics.MetricRegistry;
 
 import kafka.javaapi.producer.Producer;
 import kafka.producer.KeyedMessage;
+import kafka.producer.Partitioner;
 import kafka.producer.ProducerConfig;
+import kafka.utils.VerifiableProperties;
 
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.InputStreamReader;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
 import java.util.concurrent.TimeUnit;
 import java.util.zip.GZIPInputStream;
@@ -20,6 +24,20 @@ import java.util.zip.GZIPInputStream;
 /**
  * Command line data loading script to read a file into a kafka queue.
  * Life would be easier if kafka-console-producer.sh supported configuration of the partitioner.
+ * <p>
+ * One thread decompresses and splits the file, handing chunks of lines through RingBuffers to a
+ * number of send threads. Each send thread has its own producer and sends keyed batches of
+ * batch.size messages, or whatever it has after linger.ms. Lines are routed to send threads by
+ * the partition the partitioner will pick, so every partition is fed by a single thread and
+ * keeps the file's time order, which the consumers rely on.
+ * <p>
+ * The number of send threads, batch size, linger and compression codec can be set with -Dsend.threads,
+ * -Dbatch.size, -Dlinger.ms and -Dcompression.codec (none, gzip or snappy). The topic must already exist, as
+ * its partition count is read from the broker, so lines are grouped by the partition the producer will pick.
+ * By default each message is a block of up to -Dblock.records lines of one partition, encoded by LogRecordEncoder
+ * in its compact binary format; -Dlog.format=text sends the plain lines, one per message, as before.
+ * Setting -Dpartitioner.assignment.file to the output of PartitionLoadReport switches from LogPartitioner
+ * to WeightedLogPartitioner, spreading the heaviest clients to balance the consumers.
  *
  * @author Jonathan Halliday (jonathan.halliday@redhat.com)
  * @since 2015-01
@@ -31,13 +49,30 @@ public class KafkaProducer {
     // 200m lines, 1,929,934,341 bytes (1.8G)
     private static final File logFile = new File(dataDir, "csc8101_logfile_2015.gz");
 
+    private static final String topic = "csc8101";
+    // lines handed to a send thread at a time
+    private static final int CHUNK_SIZE = 1000;
+    private static final String[] END_OF_INPUT = new String[0];
+    // lines of a partition encoded into a single message
+    private static final int DEFAULT_BLOCK_RECORDS = 100;
+
     public static void main(String[] args) throws Exception {
 
         // ~/kafka/bin/kafka-topics.sh --create --zookeeper localhost:2181 --replication-factor 1 --partitions 4 --topic csc8101
         // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.KafkaProducer
 
+        // blocks are keyed by their first client, so must only hold clients of the partition that key maps to
+        final int partitions = ConsumerPipeline.partitionCount("localhost", 9092, topic);
+        final int sendThreads = Math.min(partitions, Integer.getInteger("send.threads", 4));
+        final int batchSize = Integer.getInteger("batch.size", 10000);
+        final long lingerMillis = Long.getLong("linger.ms", 100);
+        final String compressionCodec = System.getProperty("compression.codec", "none");
+        final boolean binary = !"text".equals(System.getProperty(LogRecordEncoder.FORMAT_PROPERTY, "binary"));
+        final int blockRecords = binary ? Integer.getInteger("block.records", DEFAULT_BLOCK_RECORDS) : 1;
+
         final MetricRegistry metricRegistry = new MetricRegistry();
         final Meter meter = metricRegistry.meter("throughput");
+        final Meter bytesMeter = metricRegistry.meter("bytes");
         final ConsoleReporter reporter = ConsoleReporter.forRegistry(metricRegistry)
                 .convertRatesTo(TimeUnit.SECONDS)
                 .convertDurationsTo(TimeUnit.MILLISECONDS)
@@ -46,42 +81,209 @@ public class KafkaProducer {
 
         final Properties properties = new Properties();
         properties.setProperty("metadata.broker.list", "localhost:9092");
-        properties.setProperty("serializer.class", "kafka.serializer.StringEncoder");
-        properties.setProperty("partitioner.class", "uk.ac.ncl.cs.csc8101.weblogcoursework.LogPartitioner");
+        // the senders encode the messages themselves, so they can meter the bytes sent
+        properties.setProperty("serializer.class", "kafka.serializer.DefaultEncoder");
+        properties.setProperty("key.serializer.class", "kafka.serializer.StringEncoder");
+        final String assignmentFile = System.getProperty(WeightedLogPartitioner.ASSIGNMENT_FILE_PROPERTY);
+        if(assignmentFile == null) {
+            properties.setProperty("partitioner.class", "uk.ac.ncl.cs.csc8101.weblogcoursework.LogPartitioner");
+        } else {
+            properties.setProperty("partitioner.class", "uk.ac.ncl.cs.csc8101.weblogcoursework.WeightedLogPartitioner");
+            properties.setProperty(WeightedLogPartitioner.ASSIGNMENT_FILE_PROPERTY, assignmentFile);
+        }
         properties.setProperty("request.required.acks", "1");
-        properties.setProperty("producer.type", "async");
-        properties.setProperty("batch.num.messages", "10000");
-
-//        properties.setProperty("queue.buffering.max.messages", "10000");
-//        properties.setProperty("send.buffer.bytes", "1048576");
-//        properties.setProperty("compression.codec", "gzip");
+        // the send threads do the batching, so each batch goes out in a single request
+        properties.setProperty("producer.type", "sync");
+        properties.setProperty("compression.codec", compressionCodec);
+        properties.setProperty("send.buffer.bytes", "1048576");
 
         final ProducerConfig producerConfig = new ProducerConfig(properties);
-        final Producer<String, String> producer = new Producer<>(producerConfig);
-        final String topic = "csc8101";
+
+        // the same partitioner as the producers, to route each partition's lines to a single sender
+        final Partitioner partitioner = assignmentFile == null
+                ? new LogPartitioner(null) : new WeightedLogPartitioner(new VerifiableProperties(properties));
+        final List<RingBuffer<String[]>> senderChunks = new ArrayList<>();
+        final List<Thread> senders = new ArrayList<>();
+        for(int i = 0; i < sendThreads; i++) {
+            final RingBuffer<String[]> chunks = new RingBuffer<>(16);
+            final Thread sender = new Thread(new Sender(new Producer<String, byte[]>(producerConfig), chunks,
+                    partitioner, assignmentFile == null, partitions, new LogRecordEncoder(binary), blockRecords,
+                    batchSize, lingerMillis, meter, bytesMeter), "KafkaProducer-sender-"+i);
+            sender.start();
+            senderChunks.add(chunks);
+            senders.add(sender);
+        }
 
         try (
                 final FileInputStream fileInputStream = new FileInputStream(logFile);
-                final GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream);
+                final GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream, 1024*1024);
                 final InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream);
-                final BufferedReader bufferedReader = new BufferedReader(inputStreamReader)
+                final BufferedReader bufferedReader = new BufferedReader(inputStreamReader, 1024*1024)
         ) {
+            final String[][] chunks = new String[sendThreads][CHUNK_SIZE];
+            final int[] sizes = new int[sendThreads];
             String line;
             while((line = bufferedReader.readLine()) != null) {
-                final String clientId = line.substring(0, line.indexOf(' '));
-
-                final KeyedMessage<String, String> keyedMessage = new KeyedMessage<>(topic, clientId, line);
-                producer.send(keyedMessage);
-
-                meter.mark();
+                // the plain hash partitioner only needs the key's hash code, so save extracting it
+                final Object key = assignmentFile == null ? clientIdHash(line) : clientId(line);
+                final int sender = partitioner.partition(key, partitions) % sendThreads;
+                chunks[sender][sizes[sender]++] = line;
+                if(sizes[sender] == CHUNK_SIZE) {
+                    senderChunks.get(sender).put(chunks[sender]);
+                    chunks[sender] = new String[CHUNK_SIZE];
+                    sizes[sender] = 0;
+                }
+            }
+            for(int i = 0; i < sendThreads; i++) {
+                if(sizes[i] > 0) {
+                    final String[] lastChunk = new String[sizes[i]];
+                    System.arraycopy(chunks[i], 0, lastChunk, 0, sizes[i]);
+                    senderChunks.get(i).put(lastChunk);
+                }
             }
         }
 
-        producer.close();
+        for(RingBuffer<String[]> chunks : senderChunks) {
+            chunks.put(END_OF_INPUT);
+        }
+        for(Thread sender : senders) {
+            sender.join();
+        }
 
         reporter.report();
         reporter.stop();
 
         // bin/kafka-run-class.sh kafka.tools.GetOffsetShell --broker-list localhost:9092 --topic csc8101 --time -1 | sed -e "s/.*://" | awk '{s+=$1} END {print s}'
     }
-}
\ No newline at end of file
+
+    /**
+     * @return the hash code of the line's client id, computed without extracting it
+     */
+    private static int clientIdHash(String line) {
+        int hash = 0;
+        for(int i = 0; i < line.length() && line.charAt(i) != ' '; i++) {
+            hash = 31*hash + line.charAt(i);
+        }
+        return hash;
+    }
+
+    private static String clientId(String line) {
+        final int space = line.indexOf(' ');
+        return space < 0 ? line : line.substring(0, space);
+    }
+
+    /**
+     * Takes chunks of lines from the ring buffer, encodes those of each partition into blocks
+     * and sends them as keyed batches. A block is keyed by its first line's client id, which
+     * the producer's partitioner maps back to the block's partition.
+     */
+    private static class Sender implements Runnable {
+
+        private final Producer<String, byte[]> producer;
+        private final RingBuffer<String[]> chunks;
+        private final Partitioner partitioner;
+        private final boolean hashedKeys;
+        private final int partitions;
+        private final LogRecordEncoder encoder;
+        private final int blockRecords;
+        private final int batchSize;
+        private final long lingerMillis;
+        private final Meter meter;
+        private final Meter bytesMeter;
+
+        // lines waiting to fill a block, per partition
+        private final String[][] blocks;
+        private final int[] blockSizes;
+
+        private final List<KeyedMessage<String, byte[]>> batch = new ArrayList<>();
+        private long batchLines = 0;
+        private long batchBytes = 0;
+
+        private Sender(Producer<String, byte[]> producer, RingBuffer<String[]> chunks,
+                       Partitioner partitioner, boolean hashedKeys, int partitions,
+                       LogRecordEncoder encoder, int blockRecords, int batchSize,
+                       long lingerMillis, Meter meter, Meter bytesMeter) {
+            this.producer = producer;
+            this.chunks = chunks;
+            this.partitioner = partitioner;
+            this.hashedKeys = hashedKeys;
+            this.partitions = partitions;
+            this.encoder = encoder;
+            this.blockRecords = blockRecords;
+            this.batchSize = batchSize;
+            this.lingerMillis = lingerMillis;
+            this.meter = meter;
+            this.bytesMeter = bytesMeter;
+            this.blocks = new String[partitions][blockRecords];
+            this.blockSizes = new int[partitions];
+        }
+
+        @Override
+        public void run() {
+            try {
+                long batchStartMillis = System.currentTimeMillis();
+                while(true) {
+                    final long waitMillis = batchLines == 0 ? lingerMillis
+                            : Math.max(0, batchStartMillis+lingerMillis-System.currentTimeMillis());
+                    final String[] chunk = chunks.poll(waitMillis, TimeUnit.MILLISECONDS);
+                    if(chunk == END_OF_INPUT) {
+                        break;
+                    }
+                    if(chunk == null) {
+                        // lingered long enough, send what there is
+                        send();
+                        batchStartMillis = System.currentTimeMillis();
+                        continue;
+                    }
+                    if(batchLines == 0) {
+                        batchStartMillis = System.currentTimeMillis();
+                    }
+                    for(String line : chunk) {
+                        final Object key = hashedKeys ? clientIdHash(line) : clientId(line);
+                        final int partition = partitioner.partition(key, partitions);
+                        blocks[partition][blockSizes[partition]++] = line;
+                        batchLines++;
+                        if(blockSizes[partition] == blockRecords) {
+                            addBlock(partition);
+                        }
+                        if(batchLines >= batchSize) {
+                            send();
+                            batchStartMillis = System.currentTimeMillis();
+                        }
+                    }
+                }
+                send();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("ERROR(KafkaProducer) sender interrupted");
+            } finally {
+                producer.close();
+            }
+        }
+
+        private void addBlock(int partition) {
+            final String[] block = blocks[partition];
+            final byte[] message = encoder.encode(block, 0, blockSizes[partition]);
+            batch.add(new KeyedMessage<>(topic, clientId(block[0]), message));
+            batchBytes += message.length;
+            blockSizes[partition] = 0;
+        }
+
+        private void send() {
+            for(int partition = 0; partition < partitions; partition++) {
+                if(blockSizes[partition] > 0) {
+                    addBlock(partition);
+                }
+            }
+            if(batch.isEmpty()) {
+                return;
+            }
+            producer.send(batch);
+            meter.mark(batchLines);
+            bytesMeter.mark(batchBytes);
+            batch.clear();
+            batchLines = 0;
+            batchBytes = 0;
+        }
+    }
+}
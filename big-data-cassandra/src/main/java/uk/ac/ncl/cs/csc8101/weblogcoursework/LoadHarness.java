@@ -0,0 +1,214 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line script to load test the processing end to end against a local cassandra, e.g. the one
+ * started by the cassandra-maven-plugin, with lines from SyntheticLogGenerator in place of kafka.
+ * <p>
+ * Lines are routed to the MessageHandler threads by client id as LogPartitioner routes them to
+ * partitions, and each thread handles its lines in batches as ConsumerPipeline does. The generator is paced to
+ * the requested rate, or runs flat out at rate 0. Throughput, write latency and heap use are reported
+ * periodically and at the end.
+ * <p>
+ * Usage: LoadHarness [linesPerSecond [lines [handlers [seed [reportSeconds]]]]]
+ */
+public class LoadHarness {
+
+    private static final int BATCH_SIZE = 256;
+    private static final int QUEUE_DEPTH = 64;
+
+    // marks the end of the input on each queue
+    private static final List<String> END_OF_INPUT = Collections.emptyList();
+
+    private final long linesPerSecond;
+    private final int numHandlers;
+    private final long seed;
+
+    private final MetricRegistry metricRegistry = new MetricRegistry();
+    private final Meter meter = metricRegistry.meter("throughput");
+
+    /**
+     * @param linesPerSecond the rate to generate lines at, or 0 for as fast as they are handled
+     * @param numHandlers the number of MessageHandler threads
+     * @param seed the seed of the generator
+     */
+    public LoadHarness(long linesPerSecond, int numHandlers, long seed) {
+        this.linesPerSecond = linesPerSecond;
+        this.numHandlers = numHandlers;
+        this.seed = seed;
+
+        metricRegistry.register("writeLatency", MessageHandler.getWriteLatency());
+        metricRegistry.register("tooLateHits", MessageHandler.getTooLateHits());
+        metricRegistry.register("lateHourHits", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return MessageHandler.getLateHourHits();
+            }
+        });
+        MessageHandler.getQuarantine().registerMetrics(metricRegistry);
+        metricRegistry.register("urlHourWritesSaved", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return MessageHandler.getUrlHourWritesSaved();
+            }
+        });
+        final MemoryMXBean memoryMXBean = ManagementFactory.getMemoryMXBean();
+        metricRegistry.register("heapUsedBytes", new Gauge<Long>() {
+            @Override
+            public Long getValue() {
+                return memoryMXBean.getHeapMemoryUsage().getUsed();
+            }
+        });
+    }
+
+    public MetricRegistry getMetricRegistry() {
+        return metricRegistry;
+    }
+
+    public static void main(String[] args) throws Exception {
+
+        // mvn cassandra:start
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.LoadHarness -Dexec.args="20000 1000000"
+
+        final long linesPerSecond = args.length > 0 ? Long.parseLong(args[0]) : 0;
+        final long lines = args.length > 1 ? Long.parseLong(args[1]) : 1000000;
+        final int numHandlers = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final long seed = args.length > 3 ? Long.parseLong(args[3]) : 0;
+        final int reportSeconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+        final LoadHarness loadHarness = new LoadHarness(linesPerSecond, numHandlers, seed);
+        final ConsoleReporter reporter = ConsoleReporter.forRegistry(loadHarness.getMetricRegistry())
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+        reporter.start(reportSeconds, TimeUnit.SECONDS);
+
+        loadHarness.run(lines);
+
+        reporter.report();
+        reporter.stop();
+        MessageHandler.close();
+    }
+
+    /**
+     * Generates and handles the given number of lines, then flushes the handlers.
+     *
+     * @param lines the number of lines
+     * @return the number of lines handled
+     */
+    public long run(long lines) throws Exception {
+
+        final SyntheticLogGenerator generator = new SyntheticLogGenerator(seed);
+
+        final List<BlockingQueue<List<String>>> handlerQueues = new ArrayList<>();
+        final ExecutorService handlerThreads = Executors.newFixedThreadPool(numHandlers);
+        final List<Future<?>> handlerResults = new ArrayList<>();
+        for(int i = 0; i < numHandlers; i++) {
+            final BlockingQueue<List<String>> queue = new ArrayBlockingQueue<>(QUEUE_DEPTH);
+            handlerQueues.add(queue);
+            handlerResults.add(handlerThreads.submit(new HandlerStage(queue, new MessageHandler(), meter)));
+        }
+
+        final List<List<String>> batches = new ArrayList<>();
+        for(int i = 0; i < numHandlers; i++) {
+            batches.add(new ArrayList<String>(BATCH_SIZE));
+        }
+
+        final long startNanos = System.nanoTime();
+        final long countBefore = meter.getCount();
+        for(long i = 0; i < lines; i++) {
+            if(linesPerSecond > 0 && i % BATCH_SIZE == 0) {
+                pace(startNanos, i);
+            }
+
+            final String line = generator.next();
+            // as LogPartitioner, on the client id
+            int handler = line.substring(0, line.indexOf(' ')).hashCode() % numHandlers;
+            if(handler < 0) {
+                handler = handler*-1;
+            }
+            final List<String> batch = batches.get(handler);
+            batch.add(line);
+            if(batch.size() == BATCH_SIZE) {
+                handlerQueues.get(handler).put(batch);
+                batches.set(handler, new ArrayList<String>(BATCH_SIZE));
+            }
+        }
+        for(int i = 0; i < numHandlers; i++) {
+            if(!batches.get(i).isEmpty()) {
+                handlerQueues.get(i).put(batches.get(i));
+            }
+            handlerQueues.get(i).put(END_OF_INPUT);
+        }
+
+        for(Future<?> handlerResult : handlerResults) {
+            handlerResult.get();
+        }
+        handlerThreads.shutdown();
+        return meter.getCount()-countBefore;
+    }
+
+    /**
+     * Waits until it is time to generate the given line.
+     */
+    private void pace(long startNanos, long line) throws InterruptedException {
+        final long dueNanos = startNanos + line*TimeUnit.SECONDS.toNanos(1)/linesPerSecond;
+        final long waitNanos = dueNanos - System.nanoTime();
+        if(waitNanos > 0) {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        }
+    }
+
+    /**
+     * Feeds a MessageHandler the lines routed to it in batches, as ConsumerPipeline does, until the end of the input.
+     */
+    private static class HandlerStage implements Runnable {
+
+        private final BlockingQueue<List<String>> queue;
+        private final MessageHandler messageHandler;
+        private final Meter meter;
+
+        private HandlerStage(BlockingQueue<List<String>> queue, MessageHandler messageHandler, Meter meter) {
+            this.queue = queue;
+            this.messageHandler = messageHandler;
+            this.meter = meter;
+        }
+
+        @Override
+        public void run() {
+            try {
+                final MessageBatch messages = new MessageBatch(256);
+                List<String> batch;
+                while((batch = queue.take()) != END_OF_INPUT) {
+                    for(String line : batch) {
+                        messages.add(line.getBytes(StandardCharsets.ISO_8859_1));
+                    }
+                    messageHandler.handleBatch(messages);
+                    meter.mark(messages.size());
+                    messages.clear();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                System.err.println("ERROR(LoadHarness) handler interrupted");
+            }
+            messageHandler.flush();
+        }
+    }
+}
@@ -0,0 +1,408 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * A log file stored as independently compressed blocks of whole lines, so blocks can be decompressed
+ * in parallel, on as many cores as there are, rather than as a single gzip stream on one.
+ * <p>
+ * Each block holds around a megabyte of lines, zlib compressed. An index at the end of the file gives
+ * each block's byte offset, compressed and uncompressed length, the timestamp of its first line and
+ * its line count, followed by the index offset, block count and MAGIC. The log is in time order to
+ * within a few seconds, so a reader can seek to a time range by the first timestamps and filter lines
+ * from there.
+ * <p>
+ * Usage, to convert a gzipped log: LogArchive logFile archiveFile [blockBytes]
+ */
+public class LogArchive {
+
+    private static final int MAGIC = 0x4c4f4731;
+    public static final int DEFAULT_BLOCK_BYTES = 1 << 20;
+
+    // long offset, int compressed length, int uncompressed length, long first millis, int line count
+    private static final int INDEX_ENTRY_BYTES = 28;
+    // long index offset, int block count, int MAGIC
+    private static final int TRAILER_BYTES = 16;
+
+    public static void main(String[] args) throws Exception {
+
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.LogArchive -Dexec.args="/home/ubuntu/data/cassandra/csc8101_logfile_2015.gz /home/ubuntu/data/cassandra/csc8101_logfile_2015.archive"
+
+        if(args.length < 2) {
+            System.err.println("Usage: LogArchive logFile archiveFile [blockBytes]");
+            System.exit(1);
+        }
+        final File logFile = new File(args[0]);
+        final File archiveFile = new File(args[1]);
+        final int blockBytes = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_BLOCK_BYTES;
+
+        try (
+                final FileInputStream fileInputStream = new FileInputStream(logFile);
+                final GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream, 1024*1024);
+                final InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream, StandardCharsets.ISO_8859_1);
+                final BufferedReader bufferedReader = new BufferedReader(inputStreamReader, 1024*1024);
+                final Writer writer = create(archiveFile, blockBytes)
+        ) {
+            String line;
+            while((line = bufferedReader.readLine()) != null) {
+                writer.addLine(line);
+            }
+        }
+
+        try (final Reader reader = open(archiveFile)) {
+            long lines = 0;
+            for(BlockInfo block : reader.getBlocks()) {
+                lines += block.getLineCount();
+            }
+            System.out.println(lines+" lines in "+reader.getBlocks().size()+" blocks, "+archiveFile.length()+" bytes");
+        }
+    }
+
+    /**
+     * Starts an archive of blocks of around DEFAULT_BLOCK_BYTES.
+     *
+     * @param file the archive file, replaced if it exists
+     * @return the writer, to close once all lines are added
+     */
+    public static Writer create(File file) throws IOException {
+        return new Writer(file, DEFAULT_BLOCK_BYTES);
+    }
+
+    /**
+     * Starts an archive.
+     *
+     * @param file the archive file, replaced if it exists
+     * @param blockBytes the uncompressed size at which a block is closed
+     * @return the writer, to close once all lines are added
+     */
+    public static Writer create(File file, int blockBytes) throws IOException {
+        return new Writer(file, blockBytes);
+    }
+
+    /**
+     * Opens an archive, reading its index.
+     *
+     * @param file the archive file
+     * @return the reader, to close when done
+     * @throws IOException if the file can't be read or is not a complete archive
+     */
+    public static Reader open(File file) throws IOException {
+        return new Reader(file);
+    }
+
+    /**
+     * @return true if the file ends with an archive's trailer, e.g. to tell an archive from a gzipped log
+     */
+    public static boolean isArchive(File file) throws IOException {
+        try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            if(channel.size() < TRAILER_BYTES) {
+                return false;
+            }
+            final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+            readFully(channel, trailer, channel.size()-TRAILER_BYTES);
+            return trailer.getInt(TRAILER_BYTES-4) == MAGIC;
+        }
+    }
+
+    /**
+     * The index entry of a block.
+     */
+    public static class BlockInfo {
+
+        private final long offset;
+        private final int compressedLength;
+        private final int length;
+        private final long firstMillis;
+        private final int lineCount;
+
+        private BlockInfo(long offset, int compressedLength, int length, long firstMillis, int lineCount) {
+            this.offset = offset;
+            this.compressedLength = compressedLength;
+            this.length = length;
+            this.firstMillis = firstMillis;
+            this.lineCount = lineCount;
+        }
+
+        public long getOffset() {
+            return offset;
+        }
+
+        public int getCompressedLength() {
+            return compressedLength;
+        }
+
+        /**
+         * @return the uncompressed length of the block's lines
+         */
+        public int getLength() {
+            return length;
+        }
+
+        /**
+         * @return the timestamp of the block's first well formed line, or that of the previous block if it has none
+         */
+        public long getFirstMillis() {
+            return firstMillis;
+        }
+
+        public int getLineCount() {
+            return lineCount;
+        }
+    }
+
+    /**
+     * Writes an archive, a block at a time. Not thread safe.
+     */
+    public static class Writer implements Closeable {
+
+        private final DataOutputStream out;
+        private final int blockBytes;
+        private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+        private final LogLineParser parser = new LogLineParser();
+        private final LogRecord record = new LogRecord();
+        private final List<BlockInfo> blocks = new ArrayList<>();
+
+        private byte[] block;
+        private int blockLength = 0;
+        private int blockLines = 0;
+        // until a line of the block parses, its first timestamp is that of the previous block
+        private long blockFirstMillis = Long.MIN_VALUE;
+        private boolean blockTimestamped = false;
+        private byte[] compressed;
+        private long position = 0;
+        private boolean closed = false;
+
+        private Writer(File file, int blockBytes) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1024*1024));
+            this.blockBytes = blockBytes;
+            this.block = new byte[blockBytes];
+            this.compressed = new byte[blockBytes+blockBytes/1000+64];
+        }
+
+        public void addLine(String line) throws IOException {
+            final byte[] bytes = line.getBytes(StandardCharsets.ISO_8859_1);
+            addLine(bytes, 0, bytes.length);
+        }
+
+        /**
+         * Adds a line, starting a new block first if it would take the current one past the block size.
+         *
+         * @param bytes the buffer holding the line
+         * @param offset the start of the line in the buffer
+         * @param length the length of the line, excluding any line terminator
+         */
+        public void addLine(byte[] bytes, int offset, int length) throws IOException {
+            if(blockLines > 0 && blockLength+length+1 > blockBytes) {
+                writeBlock();
+            }
+            if(blockLength+length+1 > block.length) {
+                block = Arrays.copyOf(block, blockLength+length+1);
+            }
+            System.arraycopy(bytes, offset, block, blockLength, length);
+            block[blockLength+length] = '\n';
+
+            if(blockLines == 0) {
+                blockFirstMillis = blocks.isEmpty() ? Long.MIN_VALUE : blocks.get(blocks.size()-1).getFirstMillis();
+                blockTimestamped = false;
+            }
+            if(!blockTimestamped && parser.parse(block, blockLength, length, record)) {
+                blockFirstMillis = record.getEpochMillis();
+                blockTimestamped = true;
+            }
+            blockLength += length+1;
+            blockLines++;
+        }
+
+        /**
+         * Writes the last block and the index.
+         */
+        @Override
+        public void close() throws IOException {
+            if(closed) {
+                return;
+            }
+            closed = true;
+            try {
+                if(blockLines > 0) {
+                    writeBlock();
+                }
+                final long indexOffset = position;
+                for(BlockInfo info : blocks) {
+                    out.writeLong(info.getOffset());
+                    out.writeInt(info.getCompressedLength());
+                    out.writeInt(info.getLength());
+                    out.writeLong(info.getFirstMillis());
+                    out.writeInt(info.getLineCount());
+                }
+                out.writeLong(indexOffset);
+                out.writeInt(blocks.size());
+                out.writeInt(MAGIC);
+            } finally {
+                deflater.end();
+                out.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            deflater.reset();
+            deflater.setInput(block, 0, blockLength);
+            deflater.finish();
+            int compressedLength = 0;
+            while(!deflater.finished()) {
+                if(compressedLength == compressed.length) {
+                    compressed = Arrays.copyOf(compressed, compressed.length*2);
+                }
+                compressedLength += deflater.deflate(compressed, compressedLength, compressed.length-compressedLength);
+            }
+            out.write(compressed, 0, compressedLength);
+
+            blocks.add(new BlockInfo(position, compressedLength, blockLength, blockFirstMillis, blockLines));
+            position += compressedLength;
+            blockLength = 0;
+            blockLines = 0;
+        }
+    }
+
+    /**
+     * Reads the blocks of an archive. Thread safe, so blocks may be read and decompressed in parallel.
+     */
+    public static class Reader implements Closeable {
+
+        private final FileChannel channel;
+        private final List<BlockInfo> blocks;
+
+        private Reader(File file) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            try {
+                final long size = channel.size();
+                if(size < TRAILER_BYTES) {
+                    throw new IOException("not an archive: "+file);
+                }
+                final ByteBuffer trailer = ByteBuffer.allocate(TRAILER_BYTES);
+                readFully(channel, trailer, size-TRAILER_BYTES);
+                final long indexOffset = trailer.getLong();
+                final int blockCount = trailer.getInt();
+                if(trailer.getInt() != MAGIC || blockCount < 0
+                        || indexOffset+(long)blockCount*INDEX_ENTRY_BYTES != size-TRAILER_BYTES) {
+                    throw new IOException("not an archive: "+file);
+                }
+
+                final ByteBuffer index = ByteBuffer.allocate(blockCount*INDEX_ENTRY_BYTES);
+                readFully(channel, index, indexOffset);
+                final List<BlockInfo> blocks = new ArrayList<>(blockCount);
+                for(int i = 0; i < blockCount; i++) {
+                    blocks.add(new BlockInfo(index.getLong(), index.getInt(), index.getInt(), index.getLong(), index.getInt()));
+                }
+                this.blocks = Collections.unmodifiableList(blocks);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @return the index entries, in file order
+         */
+        public List<BlockInfo> getBlocks() {
+            return blocks;
+        }
+
+        /**
+         * Finds where to start reading for lines from a given time. Lines a little out of order may
+         * still be found before it, so readers should filter the lines of the block.
+         * <p>
+         * Consecutive blocks may start in the same second, so a block starting exactly at the time
+         * may be preceded by others holding lines of that second. The search therefore stops at the
+         * last block starting strictly before the time, whose later lines may be at the time.
+         *
+         * @param millis the start of the time range
+         * @return the index of the last block starting before the time, or 0 if there is none
+         */
+        public int findBlock(long millis) {
+            int low = 0;
+            int high = blocks.size()-1;
+            int found = 0;
+            while(low <= high) {
+                final int middle = (low+high) >>> 1;
+                if(blocks.get(middle).getFirstMillis() < millis) {
+                    found = middle;
+                    low = middle+1;
+                } else {
+                    high = middle-1;
+                }
+            }
+            return found;
+        }
+
+        /**
+         * Reads and decompresses a block.
+         *
+         * @param block the index of the block
+         * @return the block's lines, each ending with a line feed
+         */
+        public byte[] readBlock(int block) throws IOException {
+            final BlockInfo info = blocks.get(block);
+            final ByteBuffer compressed = ByteBuffer.allocate(info.getCompressedLength());
+            readFully(channel, compressed, info.getOffset());
+
+            final byte[] bytes = new byte[info.getLength()];
+            final Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed.array(), 0, info.getCompressedLength());
+                int length = 0;
+                while(length < bytes.length) {
+                    final int inflated = inflater.inflate(bytes, length, bytes.length-length);
+                    if(inflated == 0 && (inflater.finished() || inflater.needsInput())) {
+                        throw new IOException("block "+block+" truncated");
+                    }
+                    length += inflated;
+                }
+            } catch (DataFormatException e) {
+                throw new IOException("block "+block+" corrupt", e);
+            } finally {
+                inflater.end();
+            }
+            return bytes;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+    }
+
+    /**
+     * Fills the buffer from the channel at the given position, without moving the channel's own position.
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            final int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new EOFException("archive truncated");
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+}
@@ -0,0 +1,261 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+/**
+ * Single pass parser for log lines of the form
+ * client_id [dd/MMM/yyyy:HH:mm:ss z] "method url version" status size
+ * <p>
+ * The status and size are optional, and read as -1 when missing; a size of "-" also reads as -1.
+ * Malformed lines are reported as a ParseStatus rather than an exception.
+ * <p>
+ * The line is walked once and the field positions recorded in a reusable LogRecord,
+ * so no intermediate arrays or Strings are created. Consecutive lines nearly always
+ * share a timestamp, so the result for the last seen second is memoized.
+ * <p>
+ * Instances are not thread safe, use one per consumer thread.
+ */
+public class LogLineParser {
+
+    // dd/MMM/yyyy:HH:mm:ss +zzzz
+    private static final int TIMESTAMP_LENGTH = 26;
+
+    private byte[] scratch = new byte[512];
+
+    private final byte[] lastTimestamp = new byte[TIMESTAMP_LENGTH];
+    private boolean lastTimestampValid = false;
+    private long lastMillis;
+    private int lastHour;
+
+    /**
+     * Parses a line held in a String. Log lines are ASCII, so chars are narrowed to bytes.
+     *
+     * @param line the log line
+     * @param record the record to populate
+     * @return true if the line was well formed, false otherwise
+     */
+    public boolean parse(String line, LogRecord record) {
+        return parseRecord(line, record) == ParseStatus.OK;
+    }
+
+    /**
+     * Parses a line held in a String, as parse(String, LogRecord).
+     *
+     * @param line the log line
+     * @param record the record to populate
+     * @return OK, or the reason the line is malformed
+     */
+    public ParseStatus parseRecord(String line, LogRecord record) {
+        final int length = line.length();
+        if(length > scratch.length) {
+            scratch = new byte[Math.max(length, scratch.length*2)];
+        }
+        for(int i = 0; i < length; i++) {
+            scratch[i] = (byte)line.charAt(i);
+        }
+        return parseRecord(scratch, 0, length, record);
+    }
+
+    /**
+     * Parses a line held in a byte array. The record refers to the array rather than copying from it.
+     *
+     * @param bytes the buffer holding the line
+     * @param offset the start of the line in the buffer
+     * @param length the length of the line, excluding any line terminator
+     * @param record the record to populate
+     * @return true if the line was well formed, false otherwise
+     */
+    public boolean parse(byte[] bytes, int offset, int length, LogRecord record) {
+        return parseRecord(bytes, offset, length, record) == ParseStatus.OK;
+    }
+
+    /**
+     * Parses a line held in a byte array, as parse(byte[], int, int, LogRecord).
+     *
+     * @param bytes the buffer holding the line
+     * @param offset the start of the line in the buffer
+     * @param length the length of the line, excluding any line terminator
+     * @param record the record to populate
+     * @return OK, or the reason the line is malformed
+     */
+    public ParseStatus parseRecord(byte[] bytes, int offset, int length, LogRecord record) {
+        final int end = offset+length;
+
+        int pos = offset;
+        while(pos < end && bytes[pos] != ' ') {
+            pos++;
+        }
+        final int clientIdLength = pos-offset;
+        if(clientIdLength == 0) {
+            return ParseStatus.NO_CLIENT_ID;
+        }
+        if(clientIdLength > LogRecord.MAX_CLIENT_ID_LENGTH) {
+            return ParseStatus.LONG_CLIENT_ID;
+        }
+        pos++;
+
+        if(pos+TIMESTAMP_LENGTH+2 > end || bytes[pos] != '[' || bytes[pos+TIMESTAMP_LENGTH+1] != ']') {
+            return ParseStatus.BAD_TIMESTAMP;
+        }
+        if(!parseTimestamp(bytes, pos+1)) {
+            return ParseStatus.BAD_TIMESTAMP;
+        }
+        pos += TIMESTAMP_LENGTH+2;
+
+        if(pos+1 >= end || bytes[pos] != ' ' || bytes[pos+1] != '"') {
+            return ParseStatus.BAD_REQUEST;
+        }
+        pos += 2;
+        // skip the method
+        while(pos < end && bytes[pos] != ' ') {
+            pos++;
+        }
+        pos++;
+        final int urlOffset = pos;
+        while(pos < end && bytes[pos] != ' ' && bytes[pos] != '"') {
+            pos++;
+        }
+        if(pos <= urlOffset) {
+            return ParseStatus.BAD_REQUEST;
+        }
+        final int urlLength = pos-urlOffset;
+
+        // the status and size follow the closing quote and a space
+        while(pos < end && bytes[pos] != '"') {
+            pos++;
+        }
+        pos += 2;
+        int statusEnd = pos;
+        while(statusEnd < end && bytes[statusEnd] != ' ') {
+            statusEnd++;
+        }
+        int status = -1;
+        if(pos < end) {
+            status = (int)parseNumber(bytes, pos, statusEnd, 3);
+            if(status < 100 || status > 599) {
+                return ParseStatus.BAD_STATUS;
+            }
+        }
+        long responseSize = -1;
+        if(statusEnd+1 < end && !(statusEnd+2 == end && bytes[statusEnd+1] == '-')) {
+            responseSize = parseNumber(bytes, statusEnd+1, end, 18);
+            if(responseSize < 0) {
+                return ParseStatus.BAD_SIZE;
+            }
+        }
+
+        record.set(bytes, offset, clientIdLength, urlOffset, urlLength, lastMillis, lastHour, status, responseSize);
+        return ParseStatus.OK;
+    }
+
+    /**
+     * @return the value of the digits from offset to end, or -1 if there are none, more than
+     * maxDigits or anything but digits
+     */
+    private static long parseNumber(byte[] bytes, int offset, int end, int maxDigits) {
+        if(offset >= end || end-offset > maxDigits) {
+            return -1;
+        }
+        long value = 0;
+        for(int i = offset; i < end; i++) {
+            final int digit = bytes[i]-'0';
+            if(digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value*10+digit;
+        }
+        return value;
+    }
+
+    private boolean parseTimestamp(byte[] bytes, int offset) {
+
+        if(lastTimestampValid && sameAsLastTimestamp(bytes, offset)) {
+            return true;
+        }
+
+        if(bytes[offset+2] != '/' || bytes[offset+6] != '/' || bytes[offset+11] != ':'
+                || bytes[offset+14] != ':' || bytes[offset+17] != ':' || bytes[offset+20] != ' ') {
+            return false;
+        }
+
+        final int day = parseDigits(bytes, offset, 2);
+        final int month = parseMonth(bytes, offset+3);
+        final int year = parseDigits(bytes, offset+7, 4);
+        final int hour = parseDigits(bytes, offset+12, 2);
+        final int minute = parseDigits(bytes, offset+15, 2);
+        final int second = parseDigits(bytes, offset+18, 2);
+        final int zoneHours = parseDigits(bytes, offset+22, 2);
+        final int zoneMinutes = parseDigits(bytes, offset+24, 2);
+        final byte zoneSign = bytes[offset+21];
+
+        if(day < 1 || day > 31 || month < 1 || year < 0 || hour < 0 || hour > 23
+                || minute < 0 || minute > 59 || second < 0 || second > 60
+                || zoneHours < 0 || zoneMinutes < 0 || (zoneSign != '+' && zoneSign != '-')) {
+            lastTimestampValid = false;
+            return false;
+        }
+
+        final long zoneOffsetSeconds = (zoneSign == '-' ? -1 : 1) * (zoneHours*3600L + zoneMinutes*60L);
+        final long epochSeconds = daysFromCivil(year, month, day)*86400L + hour*3600L + minute*60L + second
+                - zoneOffsetSeconds;
+
+        lastMillis = epochSeconds*1000L;
+        lastHour = hour;
+        System.arraycopy(bytes, offset, lastTimestamp, 0, TIMESTAMP_LENGTH);
+        lastTimestampValid = true;
+        return true;
+    }
+
+    private boolean sameAsLastTimestamp(byte[] bytes, int offset) {
+        // the seconds change most often, so compare from the end
+        for(int i = TIMESTAMP_LENGTH-1; i >= 0; i--) {
+            if(bytes[offset+i] != lastTimestamp[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int parseDigits(byte[] bytes, int offset, int count) {
+        int value = 0;
+        for(int i = offset; i < offset+count; i++) {
+            final int digit = bytes[i]-'0';
+            if(digit < 0 || digit > 9) {
+                return -1;
+            }
+            value = value*10+digit;
+        }
+        return value;
+    }
+
+    private static int parseMonth(byte[] bytes, int offset) {
+        final int key = (bytes[offset] << 16) | (bytes[offset+1] << 8) | bytes[offset+2];
+        switch (key) {
+            case ('J' << 16) | ('a' << 8) | 'n': return 1;
+            case ('F' << 16) | ('e' << 8) | 'b': return 2;
+            case ('M' << 16) | ('a' << 8) | 'r': return 3;
+            case ('A' << 16) | ('p' << 8) | 'r': return 4;
+            case ('M' << 16) | ('a' << 8) | 'y': return 5;
+            case ('J' << 16) | ('u' << 8) | 'n': return 6;
+            case ('J' << 16) | ('u' << 8) | 'l': return 7;
+            case ('A' << 16) | ('u' << 8) | 'g': return 8;
+            case ('S' << 16) | ('e' << 8) | 'p': return 9;
+            case ('O' << 16) | ('c' << 8) | 't': return 10;
+            case ('N' << 16) | ('o' << 8) | 'v': return 11;
+            case ('D' << 16) | ('e' << 8) | 'c': return 12;
+            default: return -1;
+        }
+    }
+
+    /**
+     * Converts a proleptic gregorian calendar date to a count of days since unix epoch.
+     *
+     * @see http://howardhinnant.github.io/date_algorithms.html#days_from_civil
+     */
+    static long daysFromCivil(int year, int month, int day) {
+        final int y = month <= 2 ? year-1 : year;
+        final int era = (y >= 0 ? y : y-399) / 400;
+        final int yearOfEra = y - era*400;
+        final int dayOfYear = (153*(month > 2 ? month-3 : month+9) + 2)/5 + day-1;
+        final int dayOfEra = yearOfEra*365 + yearOfEra/4 - yearOfEra/100 + dayOfYear;
+        return era*146097L + dayOfEra - 719468;
+    }
+}
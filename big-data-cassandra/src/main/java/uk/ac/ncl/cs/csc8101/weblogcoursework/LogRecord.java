@@ -0,0 +1,107 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reusable view of a single parsed log line, populated by LogLineParser.
+ * Field values are held as offsets into the parsed buffer and are only
+ * materialized as Strings on request, once per line.
+ * The record is only valid until the next call to the parser that filled it.
+ */
+public class LogRecord {
+
+    /**
+     * The longest client id a record may have, as the session stores key sessions by it.
+     */
+    public static final int MAX_CLIENT_ID_LENGTH = OffHeapSessionStore.MAX_ID_BYTES;
+
+    private byte[] buffer;
+    private int clientIdOffset;
+    private int clientIdLength;
+    private int urlOffset;
+    private int urlLength;
+    private long epochMillis;
+    private int hour;
+    private int status;
+    private long responseSize;
+
+    private String clientId;
+    private String url;
+
+    void set(byte[] buffer, int clientIdOffset, int clientIdLength, int urlOffset, int urlLength,
+             long epochMillis, int hour, int status, long responseSize) {
+        this.buffer = buffer;
+        this.clientIdOffset = clientIdOffset;
+        this.clientIdLength = clientIdLength;
+        this.urlOffset = urlOffset;
+        this.urlLength = urlLength;
+        this.epochMillis = epochMillis;
+        this.hour = hour;
+        this.status = status;
+        this.responseSize = responseSize;
+        this.clientId = null;
+        this.url = null;
+    }
+
+    /**
+     * @return the time of the hit, in milliseconds since unix epoch
+     */
+    public long getEpochMillis() {
+        return epochMillis;
+    }
+
+    /**
+     * @return the hour of day of the hit, as written in the log line
+     */
+    public int getHour() {
+        return hour;
+    }
+
+    /**
+     * @return the HTTP status code, or -1 if the line has none
+     */
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the size of the response in bytes, or -1 if the line has none or gives it as "-"
+     */
+    public long getResponseSize() {
+        return responseSize;
+    }
+
+    public String getClientId() {
+        if(clientId == null) {
+            clientId = new String(buffer, clientIdOffset, clientIdLength, StandardCharsets.ISO_8859_1);
+        }
+        return clientId;
+    }
+
+    /**
+     * @return the requested url, lower cased
+     */
+    public String getUrl() {
+        if(url == null) {
+            final char[] chars = new char[urlLength];
+            for(int i = 0; i < urlLength; i++) {
+                chars[i] = toLowerCase(buffer[urlOffset+i]);
+            }
+            url = new String(chars);
+        }
+        return url;
+    }
+
+    /**
+     * @param urlDictionary the calling thread's dictionary
+     * @return the dictionary id of the url, looked up from the raw bytes without materializing it
+     */
+    int getUrlId(UrlDictionary.Local urlDictionary) {
+        return urlDictionary.idFor(buffer, urlOffset, urlLength);
+    }
+
+    private static char toLowerCase(byte b) {
+        final char c = (char)(b & 0xFF);
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a'-'A')) : c;
+    }
+}
@@ -0,0 +1,262 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.Arrays;
+
+/**
+ * Decodes the records of a kafka message written by LogRecordEncoder into a reusable LogRecord,
+ * without creating any objects per record. Plain text messages, and the TEXT records of a binary
+ * block, go through a LogLineParser, so consumers handle topics of either or mixed formats.
+ * <p>
+ * Usage: start a message, then call next while hasNext. Each record is only valid until the next
+ * call. Instances are not thread safe, use one per consumer thread.
+ */
+public class LogRecordDecoder {
+
+    private final LogLineParser parser;
+
+    private byte[] bytes;
+    private int position;
+    private int end;
+    private int remaining;
+    private boolean block;
+    // the last text line handed to the parser
+    private int lineOffset;
+    private int lineLength;
+
+    // state carried from one record of a block to the next
+    private long previousSeconds;
+    private int hourShift;
+    private int[] urlOffsets = new int[64];
+    private int[] urlLengths = new int[64];
+    private int urlCount;
+
+    // a record's client id followed by its url, as LogRecord refers to a single buffer
+    private byte[] scratch = new byte[256];
+
+    /**
+     * @param parser parses text messages and records
+     */
+    public LogRecordDecoder(LogLineParser parser) {
+        this.parser = parser;
+    }
+
+    /**
+     * @return true if the message is a binary block rather than a plain line
+     */
+    public static boolean isBlock(byte[] bytes, int offset, int length) {
+        return length >= 2 && bytes[offset] == LogRecordEncoder.MAGIC && bytes[offset+1] == LogRecordEncoder.VERSION;
+    }
+
+    /**
+     * Starts decoding a message. The record refers to the message's array rather than copying from it.
+     *
+     * @param bytes the buffer holding the message
+     * @param offset the start of the message in the buffer
+     * @param length the length of the message
+     * @return the number of records in the message, or -1 if it is a malformed block
+     */
+    public int start(byte[] bytes, int offset, int length) {
+        this.bytes = bytes;
+        this.end = offset+length;
+        this.block = isBlock(bytes, offset, length);
+        if(!block) {
+            this.position = offset;
+            this.remaining = 1;
+            return 1;
+        }
+
+        this.position = offset+2;
+        this.previousSeconds = 0;
+        this.hourShift = 0;
+        this.urlCount = 0;
+        final long count = getVarint();
+        this.remaining = count < 0 || count > length ? 0 : (int)count;
+        return count < 0 || count > length ? -1 : remaining;
+    }
+
+    public boolean hasNext() {
+        return remaining > 0;
+    }
+
+    /**
+     * Decodes the next record of the message.
+     *
+     * @param record the record to populate
+     * @return OK, or the reason the record is malformed. A malformed binary record ends the message
+     */
+    public ParseStatus next(LogRecord record) {
+        remaining--;
+        if(!block) {
+            return parseLine(position, end-position, record);
+        }
+
+        final int flags = getByte();
+        if(flags < 0) {
+            return malformed();
+        }
+        if((flags & LogRecordEncoder.TEXT) != 0) {
+            final int length = getLength();
+            if(length < 0) {
+                return malformed();
+            }
+            position += length;
+            return parseLine(position-length, length, record);
+        }
+
+        int clientIdLength;
+        int clientIdOffset = 0;
+        if((flags & LogRecordEncoder.NUMERIC_CLIENT) != 0) {
+            final long clientId = getVarint();
+            if(clientId < 0) {
+                return malformed();
+            }
+            clientIdLength = putDecimal(clientId);
+        } else {
+            clientIdLength = getLength();
+            if(clientIdLength < 0) {
+                return malformed();
+            }
+            clientIdOffset = position;
+            ensureScratch(clientIdLength);
+            System.arraycopy(bytes, position, scratch, 0, clientIdLength);
+            position += clientIdLength;
+        }
+
+        final long secondsDelta = getVarint();
+        if((flags & LogRecordEncoder.HOUR_SHIFT) != 0) {
+            hourShift = getByte();
+        }
+        final long status = getVarint();
+        final long responseSize = getVarint();
+        if(hourShift < 0 || status < 0 || responseSize < 0) {
+            return malformed();
+        }
+        final long seconds = previousSeconds + ((secondsDelta >>> 1) ^ -(secondsDelta & 1));
+        previousSeconds = seconds;
+
+        int urlOffset;
+        int urlLength;
+        if((flags & LogRecordEncoder.URL_REFERENCE) != 0) {
+            final long index = getVarint();
+            if(index < 0 || index >= urlCount) {
+                return malformed();
+            }
+            urlOffset = urlOffsets[(int)index];
+            urlLength = urlLengths[(int)index];
+        } else {
+            urlLength = getLength();
+            if(urlLength < 0) {
+                return malformed();
+            }
+            urlOffset = position;
+            position += urlLength;
+            addUrl(urlOffset, urlLength);
+        }
+        if(clientIdLength > LogRecord.MAX_CLIENT_ID_LENGTH) {
+            // the rest of the block is still good, so only this record is rejected, quarantined as its client id
+            lineOffset = clientIdOffset;
+            lineLength = clientIdLength;
+            return ParseStatus.LONG_CLIENT_ID;
+        }
+        ensureScratch(clientIdLength+urlLength);
+        System.arraycopy(bytes, urlOffset, scratch, clientIdLength, urlLength);
+
+        final int hour = (int)((Math.floorMod(Math.floorDiv(seconds, 3600L), 24L) + hourShift) % 24);
+        record.set(scratch, 0, clientIdLength, clientIdLength, urlLength, seconds*1000L, hour,
+                (int)status-1, responseSize-1);
+        return ParseStatus.OK;
+    }
+
+    /**
+     * @return the start of the last text line decoded, in the message's buffer, e.g. to quarantine it if malformed.
+     * For a binary record rejected for its client id, the start of the client id
+     */
+    public int getLineOffset() {
+        return lineOffset;
+    }
+
+    /**
+     * @return the length of the last text line decoded
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    private ParseStatus parseLine(int offset, int length, LogRecord record) {
+        lineOffset = offset;
+        lineLength = length;
+        return parser.parseRecord(bytes, offset, length, record);
+    }
+
+    private ParseStatus malformed() {
+        remaining = 0;
+        return ParseStatus.BAD_BLOCK;
+    }
+
+    private void addUrl(int offset, int length) {
+        if(urlCount == urlOffsets.length) {
+            urlOffsets = Arrays.copyOf(urlOffsets, urlCount*2);
+            urlLengths = Arrays.copyOf(urlLengths, urlCount*2);
+        }
+        urlOffsets[urlCount] = offset;
+        urlLengths[urlCount] = length;
+        urlCount++;
+    }
+
+    /**
+     * Writes the decimal digits of a non negative value to the start of the scratch buffer.
+     *
+     * @return the number of digits
+     */
+    private int putDecimal(long value) {
+        int digits = 1;
+        for(long v = value/10; v > 0; v /= 10) {
+            digits++;
+        }
+        ensureScratch(digits);
+        for(int i = digits-1; i >= 0; i--) {
+            scratch[i] = (byte)('0' + value%10);
+            value /= 10;
+        }
+        return digits;
+    }
+
+    private void ensureScratch(int length) {
+        if(length > scratch.length) {
+            scratch = Arrays.copyOf(scratch, Math.max(length, scratch.length*2));
+        }
+    }
+
+    /**
+     * @return the next byte, or -1 past the end of the message
+     */
+    private int getByte() {
+        return position < end ? bytes[position++] & 0xFF : -1;
+    }
+
+    /**
+     * @return a varint length that fits in the rest of the message, or -1
+     */
+    private int getLength() {
+        final long length = getVarint();
+        return length < 0 || length > end-position ? -1 : (int)length;
+    }
+
+    /**
+     * @return the next varint, or -1 if it is malformed or runs past the end of the message
+     */
+    private long getVarint() {
+        long value = 0;
+        for(int shift = 0; shift < 63; shift += 7) {
+            if(position >= end) {
+                return -1;
+            }
+            final byte b = bytes[position++];
+            value |= (long)(b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        return -1;
+    }
+}
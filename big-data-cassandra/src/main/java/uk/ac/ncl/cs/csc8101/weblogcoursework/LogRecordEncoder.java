@@ -0,0 +1,206 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import kafka.serializer.Encoder;
+import kafka.utils.VerifiableProperties;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Encodes blocks of log lines as kafka messages, either as a compact binary block of records
+ * or, in the "text" format, as the plain line, one per message.
+ * <p>
+ * A binary block holds the lines of a single partition, in order, as
+ * <pre>
+ * byte MAGIC, byte VERSION, varint record count, then per record:
+ *   byte flags
+ *   if TEXT: varint length, the line as it was
+ *   else:
+ *     client id: if NUMERIC_CLIENT a varint, else varint length and bytes
+ *     epoch seconds: zigzag varint delta from the previous record of the block, or from 0
+ *     if HOUR_SHIFT: byte hours from UTC to the hour as written, kept for later records of the block
+ *     varint status+1, varint size+1, so missing values are 0
+ *     url: if URL_REFERENCE a varint index into the urls of earlier records of the block,
+ *          else varint length and lower cased bytes
+ * </pre>
+ * The method and protocol are not kept, the consumers don't use them. Lines that fail to parse
+ * are carried as TEXT records, and a plain line never starts with MAGIC, so a topic may mix
+ * both formats. Deltas and url references never cross a block, so each message decodes on its
+ * own, e.g. when a consumer resumes from a checkpoint. See LogRecordDecoder.
+ * <p>
+ * Also usable as a kafka serializer.class, on a producer sending String[] blocks.
+ * Not thread safe.
+ */
+public class LogRecordEncoder implements Encoder<String[]> {
+
+    /**
+     * Producer property selecting the format, "binary" (the default) or "text".
+     */
+    public static final String FORMAT_PROPERTY = "log.format";
+
+    static final byte MAGIC = 0;
+    static final byte VERSION = 1;
+
+    static final int TEXT = 0x01;
+    static final int NUMERIC_CLIENT = 0x02;
+    static final int URL_REFERENCE = 0x04;
+    static final int HOUR_SHIFT = 0x08;
+
+    private static final int MAX_NUMERIC_CLIENT_DIGITS = 18;
+
+    private final boolean binary;
+    private final LogLineParser parser = new LogLineParser();
+    private final LogRecord record = new LogRecord();
+    // url to its index in the block being encoded
+    private final Map<String, Integer> blockUrls = new HashMap<>();
+
+    private byte[] buffer = new byte[4096];
+    private int position;
+
+    /**
+     * @param binary true for binary blocks, false for plain lines
+     */
+    public LogRecordEncoder(boolean binary) {
+        this.binary = binary;
+    }
+
+    /**
+     * Constructor used by kafka when configured as the serializer.class.
+     *
+     * @param properties the producer properties, read for FORMAT_PROPERTY
+     */
+    public LogRecordEncoder(VerifiableProperties properties) {
+        this(properties == null || !"text".equals(properties.getString(FORMAT_PROPERTY, "binary")));
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    @Override
+    public byte[] toBytes(String[] lines) {
+        return encode(lines, 0, lines.length);
+    }
+
+    /**
+     * @param lines the lines, all of which must be for the same partition
+     * @param from the index of the first line to encode
+     * @param to the index after the last line to encode
+     * @return the message
+     * @throws IllegalArgumentException if the format is text and there is not exactly one line
+     */
+    public byte[] encode(String[] lines, int from, int to) {
+        if(!binary) {
+            if(to-from != 1) {
+                throw new IllegalArgumentException("text messages hold a single line");
+            }
+            return lines[from].getBytes(StandardCharsets.ISO_8859_1);
+        }
+
+        position = 0;
+        blockUrls.clear();
+        putByte(MAGIC);
+        putByte(VERSION);
+        putVarint(to-from);
+        long previousSeconds = 0;
+        int hourShift = 0;
+        for(int i = from; i < to; i++) {
+            final String line = lines[i];
+            if(parser.parseRecord(line, record) != ParseStatus.OK) {
+                putByte(TEXT);
+                putBytes(line.getBytes(StandardCharsets.ISO_8859_1));
+                continue;
+            }
+
+            final String clientId = record.getClientId();
+            final long seconds = Math.floorDiv(record.getEpochMillis(), 1000L);
+            final int recordHourShift = Math.floorMod(record.getHour()
+                    - (int)Math.floorMod(Math.floorDiv(seconds, 3600L), 24L), 24);
+            final String url = record.getUrl();
+            final Integer urlIndex = blockUrls.get(url);
+
+            int flags = 0;
+            if(isNumeric(clientId)) {
+                flags |= NUMERIC_CLIENT;
+            }
+            if(recordHourShift != hourShift) {
+                flags |= HOUR_SHIFT;
+            }
+            if(urlIndex != null) {
+                flags |= URL_REFERENCE;
+            }
+            putByte(flags);
+
+            if((flags & NUMERIC_CLIENT) != 0) {
+                putVarint(Long.parseLong(clientId));
+            } else {
+                putBytes(clientId.getBytes(StandardCharsets.ISO_8859_1));
+            }
+            putVarint(zigzag(seconds-previousSeconds));
+            previousSeconds = seconds;
+            if((flags & HOUR_SHIFT) != 0) {
+                putByte(recordHourShift);
+                hourShift = recordHourShift;
+            }
+            putVarint(record.getStatus()+1L);
+            putVarint(record.getResponseSize()+1L);
+            if(urlIndex != null) {
+                putVarint(urlIndex);
+            } else {
+                blockUrls.put(url, blockUrls.size());
+                putBytes(url.getBytes(StandardCharsets.ISO_8859_1));
+            }
+        }
+        return Arrays.copyOf(buffer, position);
+    }
+
+    /**
+     * @return true if the id is a decimal number that reads back as the same String
+     */
+    private static boolean isNumeric(String clientId) {
+        final int length = clientId.length();
+        if(length == 0 || length > MAX_NUMERIC_CLIENT_DIGITS || (clientId.charAt(0) == '0' && length > 1)) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            final char c = clientId.charAt(i);
+            if(c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private void ensure(int bytes) {
+        if(position+bytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(position+bytes, buffer.length*2));
+        }
+    }
+
+    private void putByte(int value) {
+        ensure(1);
+        buffer[position++] = (byte)value;
+    }
+
+    private void putVarint(long value) {
+        ensure(10);
+        while((value & ~0x7FL) != 0) {
+            buffer[position++] = (byte)((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        buffer[position++] = (byte)value;
+    }
+
+    private void putBytes(byte[] bytes) {
+        putVarint(bytes.length);
+        ensure(bytes.length);
+        System.arraycopy(bytes, 0, buffer, position, bytes.length);
+        position += bytes.length;
+    }
+}
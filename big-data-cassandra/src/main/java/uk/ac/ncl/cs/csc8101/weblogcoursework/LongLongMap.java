@@ -0,0 +1,135 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from primitive long keys to long values, with linear probing.
+ * Avoids the boxing and per entry objects of a HashMap<Long, Long> for counts.
+ * <p>
+ * Long.MIN_VALUE is reserved to mark empty slots and may not be used as a key.
+ * Entries can't be removed individually, only cleared all at once.
+ * Instances are not thread safe.
+ */
+public class LongLongMap {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    /**
+     * Receives the entries of the map.
+     */
+    public interface Visitor {
+        void visit(long key, long value);
+    }
+
+    private long[] keys;
+    private long[] values;
+    private int mask;
+    private int size = 0;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    /**
+     * @param expectedSize the number of entries to allocate space for up front
+     */
+    public LongLongMap(int expectedSize) {
+        final int capacity = Integer.highestOneBit(Math.max(4, expectedSize*2 - 1)) << 1;
+        allocate(capacity);
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        Arrays.fill(keys, EMPTY);
+        values = new long[capacity];
+        mask = capacity-1;
+    }
+
+    /**
+     * Adds to the value of a key, treating a missing key as zero.
+     *
+     * @param key the key
+     * @param delta the amount to add
+     * @return the new value
+     */
+    public long addTo(long key, long delta) {
+        int slot = slot(key);
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                values[slot] += delta;
+                return values[slot];
+            }
+            slot = (slot+1) & mask;
+        }
+
+        keys[slot] = key;
+        values[slot] = delta;
+        if(++size*2 > keys.length) {
+            rehash();
+        }
+        return delta;
+    }
+
+    /**
+     * @param key the key
+     * @return the value, or zero if the key is absent
+     */
+    public long get(long key) {
+        int slot = slot(key);
+        while(keys[slot] != EMPTY) {
+            if(keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot+1) & mask;
+        }
+        return 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        if(size > 0) {
+            Arrays.fill(keys, EMPTY);
+            size = 0;
+        }
+    }
+
+    public void forEach(Visitor visitor) {
+        for(int slot = 0; slot < keys.length; slot++) {
+            if(keys[slot] != EMPTY) {
+                visitor.visit(keys[slot], values[slot]);
+            }
+        }
+    }
+
+    private int slot(long key) {
+        // murmur3 finalizer, as packed keys have little entropy in their low bits
+        long h = key;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return (int)h & mask;
+    }
+
+    private void rehash() {
+        final long[] oldKeys = keys;
+        final long[] oldValues = values;
+        allocate(oldKeys.length*2);
+        for(int i = 0; i < oldKeys.length; i++) {
+            if(oldKeys[i] != EMPTY) {
+                int slot = slot(oldKeys[i]);
+                while(keys[slot] != EMPTY) {
+                    slot = (slot+1) & mask;
+                }
+                keys[slot] = oldKeys[i];
+                values[slot] = oldValues[i];
+            }
+        }
+    }
+}
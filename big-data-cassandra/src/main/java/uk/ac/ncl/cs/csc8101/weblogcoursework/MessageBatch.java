@@ -0,0 +1,76 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.Arrays;
+
+/**
+ * A reusable batch of raw messages, each a slice of a byte array, for MessageHandler#handleBatch.
+ * The slices are referenced rather than copied, so their arrays must not change until the batch is cleared.
+ * <p>
+ * Not thread safe.
+ */
+public class MessageBatch {
+
+    private byte[][] arrays;
+    private int[] offsets;
+    private int[] lengths;
+    private int size = 0;
+
+    /**
+     * @param initialCapacity the number of messages held before the batch grows
+     */
+    public MessageBatch(int initialCapacity) {
+        this.arrays = new byte[initialCapacity][];
+        this.offsets = new int[initialCapacity];
+        this.lengths = new int[initialCapacity];
+    }
+
+    public void add(byte[] bytes) {
+        add(bytes, 0, bytes.length);
+    }
+
+    /**
+     * @param bytes the buffer holding the message
+     * @param offset the start of the message in the buffer
+     * @param length the length of the message
+     */
+    public void add(byte[] bytes, int offset, int length) {
+        if(size == arrays.length) {
+            final int capacity = Math.max(1, size*2);
+            arrays = Arrays.copyOf(arrays, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+        }
+        arrays[size] = bytes;
+        offsets[size] = offset;
+        lengths[size] = length;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public byte[] getBytes(int index) {
+        return arrays[index];
+    }
+
+    public int getOffset(int index) {
+        return offsets[index];
+    }
+
+    public int getLength(int index) {
+        return lengths[index];
+    }
+
+    /**
+     * Empties the batch, releasing its references to the message arrays.
+     */
+    public void clear() {
+        Arrays.fill(arrays, 0, size, null);
+        size = 0;
+    }
+}
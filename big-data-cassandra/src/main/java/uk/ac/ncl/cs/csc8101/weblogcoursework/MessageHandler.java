@@ -15,21 +15,22 @@ limitations under the License.
  */
 package uk.ac.ncl.cs.csc8101.weblogcoursework;
 
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.Timer;
 import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
-import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.clearspring.analytics.stream.membership.BloomFilter;
 import com.datastax.driver.core.*;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.text.DateFormat;
-import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 
 /**
@@ -43,55 +44,73 @@ public class MessageHandler {
     private final static Cluster cluster;
     private final static Session session;
 
-    private final static PreparedStatement query1;
+    // inserts totals into the table of each resolution
+    private final static EnumMap<TimeResolution, PreparedStatement> query1 = new EnumMap<>(TimeResolution.class);
+    private final static PreparedStatement query1Watermark;
     private final static PreparedStatement query2;
     private final static PreparedStatement query3;
     private final static PreparedStatement queryGetHyperLog;
 
-    private final static int MAX_OUTSTANDING_FUTURES=100 ;
-    private final static int ACCESS_COUNTER_SIZE=50;
+    // users known to have a "query3" row, shared by all handlers
+    private final static BloomFilter knownUsers;
+    // url ids, shared by all handlers so they agree on them
+    private final static UrlDictionary urlDictionary = new UrlDictionary();
+    // -DallowedLatenessMs sets how late a hit may arrive and still be placed in its session and hour
+    private final static long ALLOWED_LATENESS_MS=Long.getLong("allowedLatenessMs", TimeUnit.SECONDS.toMillis(10));
+    // url access counts of the open hour(s), shared by all handlers
+    private final static HourCloseAggregator urlHourTotals = new HourCloseAggregator(urlDictionary, ALLOWED_LATENESS_MS);
+    // open sessions restored from a checkpoint, taken over by whichever handler next sees a hit for them.
+    // Sessions are checkpointed per process rather than per partition, so they don't follow a partition
+    // to another consumer process, see ConsumerPipeline
+    private final static ConcurrentHashMap<String, SiteSession> restoredSessions = new ConcurrentHashMap<>();
+
+    private final static int MIN_OUTSTANDING_WRITES=8;
+    private final static int INITIAL_OUTSTANDING_WRITES=100;
+    private final static int MAX_OUTSTANDING_WRITES=1024;
+    private final static long TARGET_WRITE_LATENCY_NS=TimeUnit.MILLISECONDS.toNanos(50);
+    private final static int MAX_WRITE_RETRIES=3;
+    private final static int USER_SKETCH_CACHE_SIZE=10000;
+    private final static long USER_SKETCH_WRITE_BEHIND_MS=TimeUnit.HOURS.toMillis(1);
+    private final static int EXPECTED_USERS=5000000;
+    private final static long TOTALS_FLUSH_INTERVAL_MS=TimeUnit.SECONDS.toMillis(1);
+    private final static int MAX_BATCH_STATEMENTS=32;
+    private final static int MAX_HELD_WRITES=4096;
+
+    // latency of the writes of every handler
+    private final static Timer writeLatency = new Timer();
+    // hits of every handler that arrived too late to be placed in their sessions
+    private final static Counter tooLateHits = new Counter();
+    // malformed records of every handler. -DquarantineFile and -DquarantineRecordsPerSecond set where and how many are kept
+    private final static Quarantine quarantine = new Quarantine(
+            new File(System.getProperty("quarantineFile", "csc8101.quarantine")),
+            Integer.getInteger("quarantineRecordsPerSecond", 100));
+
+    // writes the url access totals of closed hours for all handlers, from a thread of its own
+    private final static AsyncWriter totalsWriter;
+    private final static HourCloseAggregator.Flusher totalsFlusher;
+
+    private final StatementWriter asyncWriter;
+    // holds back this handler's writes until the end of each message or batch, to group them by partition
+    private final GroupingWriter groupingWriter;
+
+    private final LogLineParser parser = new LogLineParser();
+    private final LogRecordDecoder decoder = new LogRecordDecoder(parser);
+    private final LogRecord record = new LogRecord();
+    private final UrlDictionary.Local urlIds = urlDictionary.newLocal();
+
+    // This handler's share of the url access counts, written once per (url, hour) by totalsFlusher when the hour closes
+    private final HourCloseAggregator.Source hourTotals = urlHourTotals.register();
+
+    private final UserSketchCache userSketches;
+
+    // Puts hits back in time order before they reach the sessions
+    private final ReorderBuffer reorderBuffer = new ReorderBuffer(ALLOWED_LATENESS_MS);
+    private final ReorderBuffer.Sink sessionTracker = this::trackSession;
+    // Stores currently open user sessions, ordered by last hit so expired ones are found first.
+    private final SessionStore userSessions;
+    // event time up to which sessions have been expired
+    private long sessionWatermarkMillis = Long.MIN_VALUE;
 
-    private final BlockingQueue<ResultSetFuture> outstandingFutures = new LinkedBlockingQueue<>(MAX_OUTSTANDING_FUTURES);
-
-    private final HashMap accessCounters = new LinkedHashMap<String, UrlHourCounter>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            if (accessCounters.size() >= ACCESS_COUNTER_SIZE) {
-                UrlHourCounter urlHourCounter = (UrlHourCounter) eldest.getValue();
-                BoundStatement statement = new BoundStatement(query1).bind(urlHourCounter.getCounter(), urlHourCounter.getUrl(), urlHourCounter.getHour());
-                executeAsyncQuery(statement);
-            }
-            return accessCounters.size() >= ACCESS_COUNTER_SIZE;
-        }
-    };
-    // Stores currently processing user session. removeEldestEntry allows to use memory more efficiently.
-    private final HashMap userSessions = new LinkedHashMap<String, SiteSession>() {
-        @Override
-        protected boolean removeEldestEntry(Map.Entry eldest) {
-            SiteSession siteSession = (SiteSession)eldest.getValue();
-            boolean shouldExpire = siteSession.isExpired();
-            //If Session expired push to persistent layer (Cassandra)
-            if(shouldExpire) {
-                try {
-                    //Format dates
-                    Date startDate = new Date(siteSession.getFirstHitMillis());
-                    Date endDate = new Date(siteSession.getLastHitMillis());
-
-                    String id = siteSession.getId();
-                    long access = siteSession.getHitCount();
-                    long url = siteSession.getHyperLogLog().cardinality();
-
-                    BoundStatement statement = new BoundStatement(query2).bind(id, startDate, endDate, access, url);
-                    executeAsyncQuery(statement);
-                    handleQuery3(siteSession);
-                    //executeSynchQuery(statement);
-                } catch (Exception e) {
-                    System.err.println(e);
-                }
-            }
-            return siteSession.isExpired();
-        }
-    };
     static {
 
         cluster = new Cluster.Builder()
@@ -105,12 +124,19 @@ public class MessageHandler {
 
         session = cluster.connect("csc8101");
 
-        //Create Table for query1
-        session.execute("CREATE TABLE IF NOT EXISTS query1 " +
-                "(counter_value counter, " +
-                "url varchar," +
-                "hour int," +
-                "PRIMARY KEY (url, hour) )");
+        //Create Tables for query1, one per resolution. hour is the absolute hour i.e. hours since unix epoch,
+        //day and week are likewise days and (Monday starting) weeks since unix epoch
+        for(TimeResolution resolution : TimeResolution.values()) {
+            session.execute("CREATE TABLE IF NOT EXISTS " + resolution.getTable() +
+                    " (url varchar," +
+                    resolution.getColumn() + " int," +
+                    "access_count bigint," +
+                    "PRIMARY KEY (url, " + resolution.getColumn() + ") )");
+        }
+        //Hours before closed_before_hour are final in query1_hourly, so readers may cache them
+        session.execute("CREATE TABLE IF NOT EXISTS query1_watermark " +
+                "(id int PRIMARY KEY," +
+                "closed_before_hour bigint)");
         //Create Table for query2
         session.execute("CREATE TABLE IF NOT EXISTS query2 (user_id varchar, " +
                 "session_start timestamp, " +
@@ -125,44 +151,242 @@ public class MessageHandler {
                 "PRIMARY KEY (user_id) )");
 
         //Prepare queries
-        query1 = session.prepare("UPDATE query1 SET counter_value=counter_value+? WHERE url=? AND hour=?");
+        for(TimeResolution resolution : TimeResolution.values()) {
+            query1.put(resolution, session.prepare("INSERT INTO " + resolution.getTable() +
+                    " (url, " + resolution.getColumn() + ", access_count) VALUES (?, ?, ?)"));
+        }
+        // written with the hour as timestamp, so a later watermark is never overwritten by an earlier one
+        query1Watermark = session.prepare("INSERT INTO query1_watermark (id, closed_before_hour) VALUES (0, ?) USING TIMESTAMP ?");
         query2 = session.prepare("INSERT INTO query2 (user_id, session_start, session_end, no_access, distinct_url_accessed) VALUES (?, ?, ?, ?, ?)");
-        query3 = session.prepare("INSERT INTO query3 (user_id, distinct_url_accessed, hyper_log) VALUES (?, ?, ?)");
-        queryGetHyperLog = session.prepare("SELECT hyper_log FROM query3 WHERE user_id=?");
+        // written with a per user version as timestamp, so a reordered or retried write never replaces a later sketch
+        query3 = session.prepare("INSERT INTO query3 (user_id, distinct_url_accessed, hyper_log) VALUES (?, ?, ?) USING TIMESTAMP ?");
+        queryGetHyperLog = session.prepare("SELECT hyper_log, writetime(hyper_log) FROM query3 WHERE user_id=?");
+
+        //Remember which users already have a row, so first time users never need a read
+        knownUsers = new BloomFilter(EXPECTED_USERS, 0.01);
+        Statement selectUsers = new SimpleStatement("SELECT user_id FROM query3").setFetchSize(5000);
+        for(Row row : session.execute(selectUsers)) {
+            knownUsers.add(row.getString("user_id"));
+        }
+
+        totalsWriter = newAsyncWriter();
+        totalsFlusher = urlHourTotals.startFlusher(new HourCloseAggregator.Sink() {
+            @Override
+            public void write(TimeResolution resolution, UrlHourCounter total) {
+                writeTotal(resolution, total);
+            }
+
+            @Override
+            public void hoursClosed(long closedBeforeHour) {
+                writeHourWatermark(closedBeforeHour);
+            }
+        }, TOTALS_FLUSH_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a handler keeping its open sessions on heap.
+     */
+    public MessageHandler() {
+        this(new OnHeapSessionStore());
+    }
+
+    /**
+     * @param userSessions the store for this handler's open sessions
+     */
+    public MessageHandler(SessionStore userSessions) {
+        this(userSessions, newAsyncWriter());
+    }
+
+    /**
+     * @param userSessions the store for this handler's open sessions
+     * @param writer issues this handler's writes, may be shared with other handlers
+     */
+    public MessageHandler(SessionStore userSessions, StatementWriter writer) {
+        this.userSessions = userSessions;
+        this.asyncWriter = writer;
+        this.groupingWriter = new GroupingWriter(writer, MAX_BATCH_STATEMENTS, MAX_HELD_WRITES);
+        this.userSketches = new UserSketchCache(new UserSketchCache.CassandraStore(session, queryGetHyperLog, query3),
+                groupingWriter, knownUsers, USER_SKETCH_CACHE_SIZE, USER_SKETCH_WRITE_BEHIND_MS);
+    }
+
+    /**
+     * @return a writer issuing writes from the calling thread, with the adaptive limit on writes in flight
+     */
+    public static AsyncWriter newAsyncWriter() {
+        return new AsyncWriter(session,
+                new InFlightLimiter(MIN_OUTSTANDING_WRITES, INITIAL_OUTSTANDING_WRITES, MAX_OUTSTANDING_WRITES, TARGET_WRITE_LATENCY_NS),
+                MAX_WRITE_RETRIES, writeLatency);
+    }
+
+    /**
+     * @return the latency of the successful writes of all handlers, e.g. to register with a MetricRegistry
+     */
+    public static Timer getWriteLatency() {
+        return writeLatency;
+    }
+
+    /**
+     * @return the number of hits of all handlers dropped from session tracking as too far out of order
+     */
+    public static Counter getTooLateHits() {
+        return tooLateHits;
+    }
+
+    /**
+     * @return the malformed records of all handlers, e.g. to register its counters with a MetricRegistry
+     */
+    public static Quarantine getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * @return the number of hits of all handlers dropped from the url access counts, as their hour had already closed
+     */
+    public static long getLateHourHits() {
+        return urlHourTotals.getLateHits();
+    }
+
+    /**
+     * @return the url access count rows saved by writing each (url, hour) once for all handlers
+     */
+    public static long getUrlHourWritesSaved() {
+        return urlHourTotals.getWritesSaved();
     }
 
     public static void close() {
+        try {
+            totalsFlusher.close();
+            totalsWriter.awaitOutstanding();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR(close) interrupted writing url totals");
+        }
+        quarantine.close();
         session.close();
         cluster.close();
     }
 
-    public void flush() {
+    /**
+     * Restores the url access totals and open sessions of a checkpoint written by writeCheckpoint.
+     * Must be called before any handler is created.
+     *
+     * @param file the checkpoint file
+     * @return false if there is no checkpoint to restore
+     */
+    public static boolean restoreCheckpoint(File file) throws IOException {
+        if(!file.exists()) {
+            return false;
+        }
+        try (CheckpointFile.Reader in = CheckpointFile.open(file)) {
+            urlHourTotals.readFrom(in);
+            final int sessions = in.getInt();
+            for(int i = 0; i < sessions; i++) {
+                final SiteSession siteSession = in.getSession();
+                restoredSessions.put(siteSession.getId(), siteSession);
+            }
+        }
+        return true;
+    }
 
-        try {
-            //Push the sessions that are still in memory
-            for(Object o: userSessions.values()) {
-                SiteSession session = (SiteSession) o;
-
-                Date startDate = new Date(session.getFirstHitMillis());
-                Date endDate = new Date(session.getLastHitMillis());
-                String id = session.getId();
-                long access = session.getHitCount();
-                long urls = session.getHyperLogLog().cardinality();
-
-                BoundStatement statement = new BoundStatement(query2).bind(id, startDate, endDate, access, urls);
-                executeAsyncQuery(statement);
-                handleQuery3(session);
-                //executeSynchQuery(statement);
+    /**
+     * Writes a checkpoint of every handler, once the writes of the state they no longer hold have completed.
+     * The handlers must each have called checkpoint, and be idle until this returns.
+     *
+     * @param file the checkpoint file, replaced only once the new checkpoint is complete
+     * @param handlers every handler
+     * @return false if no checkpoint was written, as some writes have failed
+     */
+    public static boolean writeCheckpoint(File file, List<MessageHandler> handlers) throws IOException, InterruptedException {
+
+        //Emit the hours closed so far, then wait for everything no longer held in memory to be written
+        totalsFlusher.flush();
+        totalsWriter.awaitOutstanding();
+        for(MessageHandler handler : handlers) {
+            handler.groupingWriter.awaitOutstanding();
+            handler.userSketches.writesCompleted();
+            if(!handler.asyncWriter.getFailureCounts().isEmpty()) {
+                // the lost writes could only be recovered by replaying from an earlier checkpoint
+                System.err.println("ERROR(writeCheckpoint) not written past failed writes: "+handler.asyncWriter.getFailureCounts());
+                return false;
             }
-            for(Object o: accessCounters.values()) {
-                UrlHourCounter urlHourCounter = (UrlHourCounter) o;
-                BoundStatement statement = new BoundStatement(query1).bind(urlHourCounter.getCounter(), urlHourCounter.getUrl(), urlHourCounter.getHour());
-                executeAsyncQuery(statement);
+        }
+        if(!totalsWriter.getFailureCounts().isEmpty()) {
+            System.err.println("ERROR(writeCheckpoint) not written past failed writes: "+totalsWriter.getFailureCounts());
+            return false;
+        }
+
+        try (CheckpointFile.Writer out = CheckpointFile.create(file)) {
+            urlHourTotals.writeTo(out);
+            int sessions = restoredSessions.size();
+            for(MessageHandler handler : handlers) {
+                sessions += handler.userSessions.size();
             }
-            //Finish the outstanding futures
-            while(!outstandingFutures.isEmpty()) {
-                ResultSetFuture resultSetFuture = outstandingFutures.take();
-                resultSetFuture.getUninterruptibly();
+            out.putInt(sessions);
+            for(SiteSession siteSession : restoredSessions.values()) {
+                out.putSession(siteSession);
+            }
+            for(MessageHandler handler : handlers) {
+                out.putSessions(handler.userSessions);
+            }
+            out.commit();
+        }
+        return true;
+    }
+
+    /**
+     * Writes out the restored sessions no handler has taken over, once every handler has finished.
+     *
+     * @param writer issues the writes
+     */
+    public static void flushRestoredSessions(StatementWriter writer) {
+        if(restoredSessions.isEmpty()) {
+            return;
+        }
+        final MessageHandler handler = new MessageHandler(new OnHeapSessionStore(), writer);
+        for(String id : restoredSessions.keySet()) {
+            final SiteSession siteSession = restoredSessions.remove(id);
+            if(siteSession != null) {
+                handler.writeSession(siteSession);
+            }
+        }
+        handler.flush();
+    }
+
+    /**
+     * Brings this handler's state to where it can be checkpointed: releases the hits held for
+     * reordering to their sessions, merges the open hour's counts into the shared totals and writes
+     * back the cached user sketches. Called from the handler's own thread, with no message in progress.
+     */
+    public void checkpoint() {
+        try {
+            reorderBuffer.flush(sessionTracker);
+            hourTotals.checkpoint();
+            userSketches.flush();
+            groupingWriter.flush();
+            quarantine.flush();
+        } catch (Exception e) {
+            System.err.println("ERROR(checkpoint)");
+            e.printStackTrace();
+        }
+    }
+
+    public void flush() {
+
+        try {
+            //Push the sessions that are still in memory, including the hits still held for reordering
+            reorderBuffer.flush(sessionTracker);
+            userSessions.expire(Long.MAX_VALUE, this::writeSession);
+            userSketches.flush();
+            hourTotals.close();
+            //Write the hours this closes, rather than wait for the flusher
+            totalsFlusher.flush();
+            //Finish the outstanding writes
+            totalsWriter.awaitOutstanding();
+            groupingWriter.awaitOutstanding();
+            userSketches.writesCompleted();
+            quarantine.flush();
+            if(!asyncWriter.getFailureCounts().isEmpty()) {
+                System.err.println("ERROR(flush) failed writes: "+asyncWriter.getFailureCounts());
             }
         } catch (Exception e) {
             System.err.println("ERROR(flush)");
@@ -172,132 +396,189 @@ public class MessageHandler {
     }
 
     public void handle(String message) {
-        handleQuery1(message);
-        handleQuery2(message);
+        final ParseStatus status = parser.parseRecord(message, record);
+        if(status != ParseStatus.OK) {
+            final byte[] bytes = message.getBytes(StandardCharsets.ISO_8859_1);
+            quarantine.add(status, bytes, 0, bytes.length);
+            return;
+        }
+        final int urlId = record.getUrlId(urlIds);
+        handleQuery1(record, urlId);
+        handleQuery2(record, urlId);
+        issueHeldWrites();
     }
 
     /**
-     * handles messages and populates "query1" table
-     * for efficient querying.
+     * handles a message held in a byte array, without first decoding it to a String. The message is
+     * either a plain line or a block of records written by LogRecordEncoder.
      *
-     * @param message - Currently preprocessed message
+     * @param bytes the buffer holding the message
+     * @param offset the start of the message in the buffer
+     * @param length the length of the message
      */
-    private void handleQuery1(String message) {
-        try {
-            //Data Parsing, retrieving hour and url
-            String[] data = message.split(" ");
-            String[] date = data[1].split(":");
-
-            int hour = Integer.parseInt(date[1]);
-            String url = data[4].toLowerCase();
-
-            String key = url + " " + hour;
-
-            UrlHourCounter urlHourCounter = (UrlHourCounter)  accessCounters.get(key);
-            if (urlHourCounter == null) {
-                accessCounters.put(url + " " + hour, new UrlHourCounter(url, hour, new Long(1)));
-            } else {
-                accessCounters.put(url + " " + hour, urlHourCounter.incrementCounter());
-            }
-            /*BoundStatement statement = new BoundStatement(query1).bind(new Long(1), url, hour);
-            executeAsyncQuery(statement);*/
-            //executeSynchQuery(statement);
+    public void handle(byte[] bytes, int offset, int length) {
+        if(handleBytes(bytes, offset, length) > 0) {
+            issueHeldWrites();
         }
-        catch (Exception e) {
-            System.err.println("ERROR(HandleQuery1):");
-            System.err.println(message);
-            e.printStackTrace();
+    }
+
+    /**
+     * handles a batch of messages in one pass, e.g. all those a fetch returned. Each message is decoded
+     * straight from its bytes and aggregated, and the writes they cause are held back and issued once
+     * at the end, with those for the same partition grouped into unlogged batches.
+     *
+     * @param batch the messages
+     * @return the number of records handled, i.e. excluding those that failed to parse
+     */
+    public int handleBatch(MessageBatch batch) {
+        int handled = 0;
+        for(int i = 0; i < batch.size(); i++) {
+            handled += handleBytes(batch.getBytes(i), batch.getOffset(i), batch.getLength(i));
         }
+        issueHeldWrites();
+        return handled;
     }
-    private void handleQuery2(String message) {
-        try {
-            String[] data = message.split(" ");
-
-            final String userId = data[0];
-            final Long date = formatDateInStringToMillis(data[1].replace("[", ""));
-            final String url = data[4].toLowerCase();
-            //If session is still stored load it else store a new one
-            if (userSessions.containsKey(userId)) {
-                SiteSession currentSession = (SiteSession) userSessions.get(userId);
-                // If session is expired push it to persistent layer and store a new session to main memory
-                // Else update the session
-                if (currentSession.isExpired() || currentSession.isExpired(date)) {
-
-                    Date startDate = new Date(currentSession.getFirstHitMillis());
-                    Date endDate = new Date(currentSession.getLastHitMillis());
-                    String id = currentSession.getId();
-                    long access = currentSession.getHitCount();
-                    long urls = currentSession.getHyperLogLog().cardinality();
-
-                    BoundStatement statement = new BoundStatement(query2).bind(id, startDate, endDate, access, urls);
-                    executeAsyncQuery(statement);
-                    handleQuery3(currentSession);
-                    //executeSynchQuery(statement);
-                    userSessions.remove(userId);
+
+    /**
+     * @return the number of records of the message handled
+     */
+    private int handleBytes(byte[] bytes, int offset, int length) {
+        if(decoder.start(bytes, offset, length) < 0) {
+            quarantine.addBinary(ParseStatus.BAD_BLOCK, bytes, offset, length);
+            return 0;
+        }
+        int handled = 0;
+        while(decoder.hasNext()) {
+            final ParseStatus status = decoder.next(record);
+            if(status != ParseStatus.OK) {
+                if(status == ParseStatus.BAD_BLOCK) {
+                    quarantine.addBinary(status, bytes, offset, length);
                 } else {
-                    currentSession.update(date, url);
+                    quarantine.add(status, bytes, decoder.getLineOffset(), decoder.getLineLength());
                 }
-            } else {
-                SiteSession currentSession = new SiteSession(userId, date, url);
-                userSessions.put(userId, currentSession);
+                continue;
             }
-        } catch (ParseException e) {
-            System.err.println("ERROR - Parsing date failed");
-        } catch (Exception e) {
-            System.err.println(e);
-            //e.printStackTrace();
+            final int urlId = record.getUrlId(urlIds);
+            handleQuery1(record, urlId);
+            handleQuery2(record, urlId);
+            handled++;
         }
+        return handled;
     }
-    private void handleQuery3(SiteSession siteSession) throws IOException, CardinalityMergeException {
-        //Retrieve HyperLogLog from cassandra
-        ResultSet result =  session.execute(queryGetHyperLog.bind(siteSession.getId()));
-        //Check if it exists
-        if (result.isExhausted()) {
-            //Create a record with new HyperLogLog userId and unique urls accessed
-            BoundStatement statement = new BoundStatement(query3).bind(siteSession.getId(), siteSession.getHyperLogLog().cardinality(), HLLToByteBuffer(siteSession.getHyperLogLog()));
-            executeAsyncQuery(statement);
-        } else {
-            //Retrieve HyperLogLog from ByteBuffer and merge it with the currently proccessing one
-            ByteBuffer rebuiltByteBuffer = result.one().getBytes("hyper_log");
-            HyperLogLog rebuiltHll = ByteBufferToHLL(rebuiltByteBuffer);
-            rebuiltHll.addAll(siteSession.getHyperLogLog());
 
-            BoundStatement statement = new BoundStatement(query3).bind(siteSession.getId(), rebuiltHll.cardinality(), HLLToByteBuffer(rebuiltHll));
-            executeAsyncQuery(statement);
-        }
+    /**
+     * handles messages and populates the "query1_hourly", "query1_daily" and "query1_weekly" tables
+     * for efficient querying.
+     *
+     * @param record - Currently preprocessed message
+     * @param urlId - dictionary id of the message's url
+     */
+    private void handleQuery1(LogRecord record, int urlId) {
+        hourTotals.add(urlId, record.getEpochMillis());
     }
 
+    /**
+     * Writes the final total for a closed hour, day or week. The row is idempotent, so replays don't double count.
+     *
+     * @param resolution the resolution of the total
+     * @param total the total, for the bucket given as its hour
+     */
+    private static void writeTotal(TimeResolution resolution, UrlHourCounter total) {
+        BoundStatement statement = new BoundStatement(query1.get(resolution)).bind(total.getUrl(), total.getHour(), total.getCounter());
+        executeTotalsWrite(statement);
+    }
 
     /**
-     * Converts byteBuffer to HyperLogLog
+     * Publishes that the hours before the given one are final, once their totals have been written.
      *
-     * @param byteBuffer
-     * @return HyperLogLog
-     * @throws IOException
+     * @param closedBeforeHour every hour before this has been written to "query1_hourly"
      */
-    private static HyperLogLog ByteBufferToHLL(ByteBuffer byteBuffer) throws IOException {
-        byte[] rebuiltBytes = new byte[byteBuffer.getInt()];
-        byteBuffer.get(rebuiltBytes);
-        return HyperLogLog.Builder.build(rebuiltBytes);
+    private static void writeHourWatermark(long closedBeforeHour) {
+        try {
+            totalsWriter.awaitOutstanding();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR(writeHourWatermark) interrupted");
+            return;
+        }
+        if(!totalsWriter.getFailureCounts().isEmpty()) {
+            // some totals may be missing, so readers must not treat them as final
+            System.err.println("ERROR(writeHourWatermark) not advanced past failed writes: "+totalsWriter.getFailureCounts());
+            return;
+        }
+        BoundStatement statement = new BoundStatement(query1Watermark).bind(closedBeforeHour, closedBeforeHour);
+        executeTotalsWrite(statement);
+    }
+
+    private void handleQuery2(LogRecord record, int urlId) {
+        if(!reorderBuffer.add(record.getClientId(), record.getEpochMillis(), urlDictionary.getHashedValue(urlId), sessionTracker)) {
+            tooLateHits.inc();
+        }
     }
 
     /**
-     * Converts HyperLogLog to ByteBuffer
+     * Adds a hit to its session, once the reorder buffer has put it in time order.
+     */
+    private void trackSession(String userId, long date, int hashedUrl) {
+        //Push every session that has expired by now to persistent layer (Cassandra)
+        if (date > sessionWatermarkMillis) {
+            sessionWatermarkMillis = date;
+            userSessions.expire(date, this::writeSession);
+        }
+        if(!restoredSessions.isEmpty()) {
+            takeOverRestoredSession(userId, date);
+        }
+
+        //If session is still open update it else store a new one.
+        //Hits are in time order and ids no longer than the stores keep, as records breaking that are quarantined
+        userSessions.hit(userId, date, hashedUrl);
+    }
+
+    /**
+     * Moves a session restored from a checkpoint into this handler's store, ahead of a hit for it.
+     */
+    private void takeOverRestoredSession(String userId, long date) {
+        final SiteSession restored = restoredSessions.remove(userId);
+        if(restored == null) {
+            return;
+        }
+        if(restored.isExpired(date)) {
+            writeSession(restored);
+        } else {
+            userSessions.restore(restored);
+        }
+    }
+
+    /**
+     * Writes a finished session to "query2" and merges it into "query3".
      *
-     * @param hll HyperLogLog
-     * @return HyperLogLog in ByteBuffer
-     * @throws IOException
+     * @param siteSession the finished session, only valid for the duration of the call
      */
+    private void writeSession(SessionState siteSession) {
+        try {
+            Date startDate = new Date(siteSession.getFirstHitMillis());
+            Date endDate = new Date(siteSession.getLastHitMillis());
+            String id = siteSession.getId();
+            long access = siteSession.getHitCount();
+            SparseHyperLogLog sketch = siteSession.getSketch();
+            long urls = sketch.cardinality();
+
+            BoundStatement statement = new BoundStatement(query2).bind(id, startDate, endDate, access, urls);
+            executeAsyncQuery(statement);
+            handleQuery3(id, siteSession.getLastHitMillis(), sketch);
+        } catch (Exception e) {
+            System.err.println("ERROR(writeSession)");
+            e.printStackTrace();
+        }
+    }
 
-    private static ByteBuffer HLLToByteBuffer(HyperLogLog hll) throws IOException {
-        byte[] inputBytes = hll.getBytes();
-        ByteBuffer byteBuffer = ByteBuffer.allocate(4+inputBytes.length);
-        byteBuffer.putInt(inputBytes.length);
-        byteBuffer.put(inputBytes);
-        byteBuffer.flip();
-        return byteBuffer;
+    private void handleQuery3(String id, long lastHitMillis, SparseHyperLogLog sketch)
+            throws IOException, CardinalityMergeException, InterruptedException {
+        //Merge into the cached sketch of the user, which is written back to cassandra asynchronously
+        userSketches.merge(id, lastHitMillis, sketch);
     }
 
+
     /**
      * Converts date from milliseconds to String
      *
@@ -312,19 +593,6 @@ public class MessageHandler {
         return formatter.format(date);
     }
 
-    /**
-     * Converts date in string to long
-     *
-     * @param date as String in format dd/MMM/yyyy:HH:mm:ss
-     * @return date converted to miliseconds.
-     * @throws ParseException
-     */
-
-    private static long formatDateInStringToMillis(String date) throws ParseException {
-        DateFormat formatter = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss");
-        return formatter.parse(date).getTime();
-    }
-
     /**
      * Method which executed @BoundStatement synchronously.
      * This is much slower than @executeAsyncQuery so it should not
@@ -341,25 +609,42 @@ public class MessageHandler {
         }
     }
 
+    private static void executeTotalsWrite(BoundStatement statement) {
+        try {
+            totalsWriter.execute(statement);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR(executeTotalsWrite) interrupted");
+        }
+    }
+
     /**
      * Method which executes @BoundStatement asynchronously
-     * ResultSetFuture is saved in @LinkedBlockingQueue<ResultSetFuture>.
-     * When the Queue is filled the statements will be finished using
-     * #ResultSetFuture.getUninterruptibly().
+     * through the StatementWriter, e.g. an AsyncWriter, once the end
+     * of the message or batch releases it from the GroupingWriter. It waits
+     * only when the adaptive limit of writes in flight has been
+     * reached and retries writes which time out.
      *
      * @param statement going to be executed asynchronously
      */
     private void executeAsyncQuery(BoundStatement statement) {
-        ResultSetFuture resultSetFuture = session.executeAsync(statement);
         try {
-            outstandingFutures.put(resultSetFuture);
-            if (outstandingFutures.remainingCapacity() == 0) {
-                ResultSetFuture rsf = outstandingFutures.take();
-                rsf.getUninterruptibly();
-            }
-        } catch(Exception e) {
-            System.err.println("ERROR(executeAsyncQuery)");
-            e.printStackTrace();
+            groupingWriter.execute(statement);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR(executeAsyncQuery) interrupted");
+        }
+    }
+
+    /**
+     * Issues the writes held back by the GroupingWriter, batched by partition.
+     */
+    private void issueHeldWrites() {
+        try {
+            groupingWriter.flush();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR(issueHeldWrites) interrupted");
         }
     }
 }
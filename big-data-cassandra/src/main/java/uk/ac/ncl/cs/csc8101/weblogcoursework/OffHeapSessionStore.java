@@ -0,0 +1,338 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * SessionStore holding session state in fixed size slots of direct memory slabs, so open sessions
+ * create no garbage and are never traced by the collector.
+ * <p>
+ * Each slot holds the first and last hit times, the hit count, links for a last hit ordered list,
+ * the id as ISO-8859-1 bytes and one byte per HyperLogLog register. Slots are found through an
+ * on heap int hash table chained through the slots, and freed slots are reused. Expired sessions
+ * are passed out through a flyweight SessionState, which reads the slot directly and is only
+ * valid during the callback; its sketch is materialized on request.
+ * <p>
+ * Slabs are allocated as needed and are never released while the store is in use.
+ * Instances are not thread safe, use one per MessageHandler.
+ */
+public class OffHeapSessionStore implements SessionStore {
+
+    public static final int MAX_ID_BYTES = 32;
+
+    private static final int SLAB_SLOTS = 1 << 14;
+    private static final int NIL = -1;
+
+    // slot layout
+    private static final int FIRST_HIT = 0;
+    private static final int LAST_HIT = 8;
+    private static final int HIT_COUNT = 16;
+    private static final int PREVIOUS = 24;
+    private static final int NEXT = 28;
+    private static final int HASH_NEXT = 32;
+    private static final int ID_HASH = 36;
+    private static final int ID_LENGTH = 40;
+    private static final int ID = 41;
+    private static final int REGISTERS = ID + MAX_ID_BYTES;
+
+    private final int log2m;
+    private final int registerCount;
+    private final int slotSize;
+
+    private ByteBuffer[] slabs = new ByteBuffer[0];
+    private int allocatedSlots = 0;
+    private int freeSlot = NIL;
+
+    private int[] buckets = new int[1024];
+    private int size = 0;
+
+    // least and most recently hit sessions
+    private int head = NIL;
+    private int tail = NIL;
+
+    private long clockMillis = 0;
+
+    private final Flyweight flyweight = new Flyweight();
+
+    public OffHeapSessionStore() {
+        this.log2m = new SparseHyperLogLog(SiteSession.SKETCH_RSD).getLog2m();
+        this.registerCount = 1 << log2m;
+        this.slotSize = (REGISTERS + registerCount + 7) & ~7;
+        Arrays.fill(buckets, NIL);
+    }
+
+    @Override
+    public void hit(String id, long hitMillis, int hashedUrl) {
+
+        if(hitMillis < clockMillis) {
+            throw new IllegalArgumentException("hit processed out of order");
+        }
+
+        // spread the high bits, as the table is indexed by the low ones
+        final int idHash = id.hashCode() ^ (id.hashCode() >>> 16);
+        int slot = find(id, idHash);
+        if(slot == NIL) {
+            slot = allocate(id, idHash, hitMillis);
+        } else {
+            if(getLong(slot, LAST_HIT)+SiteSession.MAX_IDLE_MS < hitMillis) {
+                throw new IllegalArgumentException("interval since last hit exceeds session timeout");
+            }
+            unlink(slot);
+        }
+        clockMillis = hitMillis;
+
+        final ByteBuffer slab = slab(slot);
+        final int offset = offset(slot);
+        slab.putLong(offset+LAST_HIT, hitMillis);
+        slab.putLong(offset+HIT_COUNT, slab.getLong(offset+HIT_COUNT)+1);
+
+        final int register = offset+REGISTERS+SparseHyperLogLog.registerIndex(log2m, hashedUrl);
+        final int value = SparseHyperLogLog.registerValue(log2m, hashedUrl);
+        if(slab.get(register) < value) {
+            slab.put(register, (byte)value);
+        }
+
+        append(slot);
+    }
+
+    @Override
+    public void restore(SessionState session) {
+
+        final SparseHyperLogLog sketch = session.getSketch();
+        if(sketch.getLog2m() != log2m) {
+            throw new IllegalArgumentException("sketch has log2m "+sketch.getLog2m()+", expected "+log2m);
+        }
+
+        final String id = session.getId();
+        final int idHash = id.hashCode() ^ (id.hashCode() >>> 16);
+        final int slot = allocate(id, idHash, session.getFirstHitMillis());
+
+        final ByteBuffer slab = slab(slot);
+        final int offset = offset(slot);
+        slab.putLong(offset+LAST_HIT, session.getLastHitMillis());
+        slab.putLong(offset+HIT_COUNT, session.getHitCount());
+        for(int i = 0; i < registerCount; i++) {
+            slab.put(offset+REGISTERS+i, (byte)sketch.getRegister(i));
+        }
+
+        append(slot);
+    }
+
+    @Override
+    public int expire(long watermarkMillis, Consumer<SessionState> onExpired) {
+        int expired = 0;
+        while(head != NIL && watermarkMillis-getLong(head, LAST_HIT) > SiteSession.MAX_IDLE_MS) {
+            final int slot = head;
+            flyweight.slot = slot;
+            onExpired.accept(flyweight);
+            unlink(slot);
+            release(slot);
+            expired++;
+        }
+        return expired;
+    }
+
+    @Override
+    public void forEach(Consumer<SessionState> visitor) {
+        for(int slot = head; slot != NIL; slot = getInt(slot, NEXT)) {
+            flyweight.slot = slot;
+            visitor.accept(flyweight);
+        }
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    private int find(String id, int idHash) {
+        for(int slot = buckets[idHash & (buckets.length-1)]; slot != NIL; slot = getInt(slot, HASH_NEXT)) {
+            if(getInt(slot, ID_HASH) == idHash && idEquals(slot, id)) {
+                return slot;
+            }
+        }
+        return NIL;
+    }
+
+    private boolean idEquals(int slot, String id) {
+        final ByteBuffer slab = slab(slot);
+        final int offset = offset(slot);
+        final int length = slab.get(offset+ID_LENGTH);
+        if(length != id.length()) {
+            return false;
+        }
+        for(int i = 0; i < length; i++) {
+            if((slab.get(offset+ID+i) & 0xFF) != id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int allocate(String id, int idHash, long hitMillis) {
+
+        if(id.length() > MAX_ID_BYTES) {
+            throw new IllegalArgumentException("session id longer than "+MAX_ID_BYTES+" characters: "+id);
+        }
+        for(int i = 0; i < id.length(); i++) {
+            if(id.charAt(i) > 0xFF) {
+                throw new IllegalArgumentException("session id is not ISO-8859-1: "+id);
+            }
+        }
+
+        int slot;
+        if(freeSlot != NIL) {
+            slot = freeSlot;
+            freeSlot = getInt(slot, NEXT);
+        } else {
+            if(allocatedSlots == slabs.length*SLAB_SLOTS) {
+                slabs = Arrays.copyOf(slabs, slabs.length+1);
+                slabs[slabs.length-1] = ByteBuffer.allocateDirect(SLAB_SLOTS*slotSize);
+            }
+            slot = allocatedSlots++;
+        }
+
+        final ByteBuffer slab = slab(slot);
+        final int offset = offset(slot);
+        slab.putLong(offset+FIRST_HIT, hitMillis);
+        slab.putLong(offset+HIT_COUNT, 0);
+        slab.putInt(offset+ID_HASH, idHash);
+        slab.put(offset+ID_LENGTH, (byte)id.length());
+        for(int i = 0; i < id.length(); i++) {
+            slab.put(offset+ID+i, (byte)id.charAt(i));
+        }
+        for(int i = 0; i < registerCount; i += 8) {
+            slab.putLong(offset+REGISTERS+i, 0);
+        }
+
+        if(++size > buckets.length*3/4) {
+            rehash();
+        }
+        final int bucket = idHash & (buckets.length-1);
+        slab.putInt(offset+HASH_NEXT, buckets[bucket]);
+        buckets[bucket] = slot;
+        return slot;
+    }
+
+    private void release(int slot) {
+        final int bucket = getInt(slot, ID_HASH) & (buckets.length-1);
+        if(buckets[bucket] == slot) {
+            buckets[bucket] = getInt(slot, HASH_NEXT);
+        } else {
+            int previous = buckets[bucket];
+            while(getInt(previous, HASH_NEXT) != slot) {
+                previous = getInt(previous, HASH_NEXT);
+            }
+            putInt(previous, HASH_NEXT, getInt(slot, HASH_NEXT));
+        }
+
+        putInt(slot, NEXT, freeSlot);
+        freeSlot = slot;
+        size--;
+    }
+
+    private void rehash() {
+        buckets = new int[buckets.length*2];
+        Arrays.fill(buckets, NIL);
+        for(int slot = head; slot != NIL; slot = getInt(slot, NEXT)) {
+            final int bucket = getInt(slot, ID_HASH) & (buckets.length-1);
+            putInt(slot, HASH_NEXT, buckets[bucket]);
+            buckets[bucket] = slot;
+        }
+    }
+
+    private void append(int slot) {
+        putInt(slot, PREVIOUS, tail);
+        putInt(slot, NEXT, NIL);
+        if(tail == NIL) {
+            head = slot;
+        } else {
+            putInt(tail, NEXT, slot);
+        }
+        tail = slot;
+    }
+
+    private void unlink(int slot) {
+        final int previous = getInt(slot, PREVIOUS);
+        final int next = getInt(slot, NEXT);
+        if(previous == NIL) {
+            head = next;
+        } else {
+            putInt(previous, NEXT, next);
+        }
+        if(next == NIL) {
+            tail = previous;
+        } else {
+            putInt(next, PREVIOUS, previous);
+        }
+    }
+
+    private ByteBuffer slab(int slot) {
+        return slabs[slot / SLAB_SLOTS];
+    }
+
+    private int offset(int slot) {
+        return (slot % SLAB_SLOTS)*slotSize;
+    }
+
+    private long getLong(int slot, int field) {
+        return slab(slot).getLong(offset(slot)+field);
+    }
+
+    private int getInt(int slot, int field) {
+        return slab(slot).getInt(offset(slot)+field);
+    }
+
+    private void putInt(int slot, int field, int value) {
+        slab(slot).putInt(offset(slot)+field, value);
+    }
+
+    /**
+     * Reads the session in the current slot.
+     */
+    private class Flyweight implements SessionState {
+
+        private int slot;
+
+        @Override
+        public String getId() {
+            final ByteBuffer slab = slab(slot);
+            final int offset = offset(slot);
+            final char[] chars = new char[slab.get(offset+ID_LENGTH)];
+            for(int i = 0; i < chars.length; i++) {
+                chars[i] = (char)(slab.get(offset+ID+i) & 0xFF);
+            }
+            return new String(chars);
+        }
+
+        @Override
+        public long getFirstHitMillis() {
+            return getLong(slot, FIRST_HIT);
+        }
+
+        @Override
+        public long getLastHitMillis() {
+            return getLong(slot, LAST_HIT);
+        }
+
+        @Override
+        public long getHitCount() {
+            return getLong(slot, HIT_COUNT);
+        }
+
+        @Override
+        public SparseHyperLogLog getSketch() {
+            final ByteBuffer slab = slab(slot);
+            final int offset = offset(slot)+REGISTERS;
+            final SparseHyperLogLog sketch = new SparseHyperLogLog(log2m);
+            for(int i = 0; i < registerCount; i++) {
+                final byte value = slab.get(offset+i);
+                if(value != 0) {
+                    sketch.updateRegister(i, value);
+                }
+            }
+            return sketch;
+        }
+    }
+}
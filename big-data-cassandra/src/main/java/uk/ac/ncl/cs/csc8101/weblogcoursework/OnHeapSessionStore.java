@@ -0,0 +1,48 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.function.Consumer;
+
+/**
+ * SessionStore holding a SiteSession object per open session, in a SessionExpiryIndex.
+ */
+public class OnHeapSessionStore implements SessionStore {
+
+    private final SessionExpiryIndex sessions = new SessionExpiryIndex();
+
+    @Override
+    public void hit(String id, long hitMillis, int hashedUrl) {
+        final SiteSession siteSession = sessions.get(id);
+        if(siteSession != null) {
+            siteSession.updateHashed(hitMillis, hashedUrl);
+        } else {
+            sessions.put(new SiteSession(id, hitMillis, hashedUrl));
+        }
+    }
+
+    @Override
+    public void restore(SessionState session) {
+        if(session instanceof SiteSession) {
+            sessions.put((SiteSession)session);
+        } else {
+            sessions.put(new SiteSession(session.getId(), session.getFirstHitMillis(), session.getLastHitMillis(),
+                    session.getHitCount(), session.getSketch()));
+        }
+    }
+
+    @Override
+    public int expire(long watermarkMillis, Consumer<SessionState> onExpired) {
+        return sessions.expire(watermarkMillis, onExpired);
+    }
+
+    @Override
+    public void forEach(Consumer<SessionState> visitor) {
+        for(SiteSession siteSession : sessions.values()) {
+            visitor.accept(siteSession);
+        }
+    }
+
+    @Override
+    public int size() {
+        return sessions.size();
+    }
+}
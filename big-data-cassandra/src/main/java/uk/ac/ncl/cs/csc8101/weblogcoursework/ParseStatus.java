@@ -0,0 +1,33 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+/**
+ * Outcome of parsing or decoding a log record. Anything but OK is the reason the record was
+ * rejected, returned rather than thrown so a malformed record costs no more than a branch.
+ */
+public enum ParseStatus {
+
+    OK,
+    // the line is empty or doesn't start with a client id
+    NO_CLIENT_ID,
+    // the client id is longer than LogRecord.MAX_CLIENT_ID_LENGTH
+    LONG_CLIENT_ID,
+    // the timestamp is missing, or not a valid [dd/MMM/yyyy:HH:mm:ss z]
+    BAD_TIMESTAMP,
+    // the quoted request is missing or has no url
+    BAD_REQUEST,
+    // the status is present but not a three digit code from 100 to 599
+    BAD_STATUS,
+    // the size is present but neither a number nor "-"
+    BAD_SIZE,
+    // a binary block written by LogRecordEncoder is truncated or corrupt
+    BAD_BLOCK;
+
+    private final String metricName = name().toLowerCase().replace('_', '-');
+
+    /**
+     * @return the name of the reason in metrics and the quarantine file, e.g. "bad-timestamp"
+     */
+    public String getMetricName() {
+        return metricName;
+    }
+}
@@ -0,0 +1,78 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Command line script making a sampling pass over a log file to build a ClientLoadAssignment for
+ * WeightedLogPartitioner. Prints the expected per partition load with plain hash partitioning and
+ * with the assignment, then saves the assignment.
+ * <p>
+ * Usage: PartitionLoadReport logFile assignmentFile [partitions [heavyClients [sampleEvery]]]
+ */
+public class PartitionLoadReport {
+
+    public static void main(String[] args) throws Exception {
+
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.PartitionLoadReport -Dexec.args="/home/ubuntu/data/cassandra/csc8101_logfile_2015.gz assignment.txt"
+
+        if(args.length < 2) {
+            System.err.println("Usage: PartitionLoadReport logFile assignmentFile [partitions [heavyClients [sampleEvery]]]");
+            System.exit(1);
+        }
+        final File logFile = new File(args[0]);
+        final File assignmentFile = new File(args[1]);
+        final int numPartitions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+        final int heavyClients = args.length > 3 ? Integer.parseInt(args[3]) : 1000;
+        final int sampleEvery = args.length > 4 ? Integer.parseInt(args[4]) : 1;
+
+        final ClientLoadAssignment.Builder builder = new ClientLoadAssignment.Builder(numPartitions, heavyClients);
+
+        try (
+                final FileInputStream fileInputStream = new FileInputStream(logFile);
+                final GZIPInputStream gzipInputStream = new GZIPInputStream(fileInputStream, 1024*1024);
+                final InputStreamReader inputStreamReader = new InputStreamReader(gzipInputStream);
+                final BufferedReader bufferedReader = new BufferedReader(inputStreamReader, 1024*1024)
+        ) {
+            long lineNumber = 0;
+            String line;
+            while((line = bufferedReader.readLine()) != null) {
+                if(lineNumber++ % sampleEvery != 0) {
+                    continue;
+                }
+                final int space = line.indexOf(' ');
+                if(space > 0) {
+                    builder.offer(line.substring(0, space));
+                }
+            }
+        }
+
+        final ClientLoadAssignment assignment = builder.build();
+        print("hash partitioning (before)", assignment.getHashedLoads());
+        print("weighted partitioning (after), "+assignment.getHeavyClientCount()+" heavy clients placed",
+                assignment.getExpectedLoads());
+
+        assignment.save(assignmentFile);
+        System.out.println("assignment written to "+assignmentFile);
+    }
+
+    private static void print(String title, long[] loads) {
+        long total = 0;
+        long max = 0;
+        for(long load : loads) {
+            total += load;
+            max = Math.max(max, load);
+        }
+        final double mean = (double)total/loads.length;
+
+        System.out.println(title);
+        for(int partition = 0; partition < loads.length; partition++) {
+            System.out.println(String.format("  partition %d: %d hits (%.1f%%)", partition, loads[partition],
+                    total == 0 ? 0.0 : 100.0*loads[partition]/total));
+        }
+        System.out.println(String.format("  max/mean load: %.3f", mean == 0 ? 0.0 : max/mean));
+    }
+}
@@ -0,0 +1,182 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Sets aside malformed records, counting them by reason and appending them to a file for later
+ * inspection, one per line as the reason, a tab and the record. Records that aren't text, i.e.
+ * corrupt binary blocks, are written Base64 encoded.
+ * <p>
+ * Writes to the file are limited to a number of records per second, so a flood of bad input
+ * costs a counter increment per record rather than a disk write. Records over the limit are
+ * only counted, as dropped. The file is created on the first record written.
+ * <p>
+ * Thread safe, shared by all handlers.
+ */
+public class Quarantine implements Closeable {
+
+    private static final long SECOND_NS = TimeUnit.SECONDS.toNanos(1);
+
+    private final File file;
+    private final int maxRecordsPerSecond;
+
+    private final EnumMap<ParseStatus, Counter> counters = new EnumMap<>(ParseStatus.class);
+    private final Counter dropped = new Counter();
+
+    private final AtomicInteger windowRecords = new AtomicInteger();
+    private volatile long windowStartNanos = System.nanoTime();
+
+    // guarded by this
+    private OutputStream out;
+    private boolean failed = false;
+
+    /**
+     * @param file the file to append records to
+     * @param maxRecordsPerSecond the most records written to the file each second, 0 to only count them
+     */
+    public Quarantine(File file, int maxRecordsPerSecond) {
+        this.file = file;
+        this.maxRecordsPerSecond = maxRecordsPerSecond;
+        for(ParseStatus reason : ParseStatus.values()) {
+            if(reason != ParseStatus.OK) {
+                counters.put(reason, new Counter());
+            }
+        }
+    }
+
+    /**
+     * Sets aside a malformed text record.
+     *
+     * @param reason why the record was rejected
+     * @param bytes the buffer holding the record
+     * @param offset the start of the record in the buffer
+     * @param length the length of the record
+     */
+    public void add(ParseStatus reason, byte[] bytes, int offset, int length) {
+        counters.get(reason).inc();
+        if(allowWrite()) {
+            write(reason, bytes, offset, length);
+        }
+    }
+
+    /**
+     * Sets aside a corrupt binary message, which is written Base64 encoded.
+     *
+     * @param reason why the message was rejected
+     * @param bytes the buffer holding the message
+     * @param offset the start of the message in the buffer
+     * @param length the length of the message
+     */
+    public void addBinary(ParseStatus reason, byte[] bytes, int offset, int length) {
+        counters.get(reason).inc();
+        if(allowWrite()) {
+            final byte[] message = new byte[length];
+            System.arraycopy(bytes, offset, message, 0, length);
+            final byte[] encoded = Base64.getEncoder().encode(message);
+            write(reason, encoded, 0, encoded.length);
+        }
+    }
+
+    /**
+     * @param reason a reason other than OK
+     * @return the number of records set aside for the reason
+     */
+    public Counter getCounter(ParseStatus reason) {
+        return counters.get(reason);
+    }
+
+    /**
+     * @return the number of records counted but not written, over the rate limit or after a failed write
+     */
+    public Counter getDropped() {
+        return dropped;
+    }
+
+    /**
+     * Registers the count of each reason as "malformed.reason", and the dropped count as "malformed.dropped".
+     */
+    public void registerMetrics(MetricRegistry metricRegistry) {
+        for(Map.Entry<ParseStatus, Counter> entry : counters.entrySet()) {
+            metricRegistry.register("malformed."+entry.getKey().getMetricName(), entry.getValue());
+        }
+        metricRegistry.register("malformed.dropped", dropped);
+    }
+
+    /**
+     * Flushes the records written so far to the file.
+     */
+    public synchronized void flush() {
+        if(out != null) {
+            try {
+                out.flush();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if(out != null) {
+            try {
+                out.close();
+            } catch (IOException e) {
+                System.err.println("ERROR(Quarantine) closing "+file+": "+e);
+            }
+            out = null;
+        }
+    }
+
+    private boolean allowWrite() {
+        final long now = System.nanoTime();
+        if(now-windowStartNanos >= SECOND_NS) {
+            // racing threads may each reset the window, which only lets a few more records through
+            windowStartNanos = now;
+            windowRecords.set(0);
+        }
+        if(windowRecords.incrementAndGet() > maxRecordsPerSecond) {
+            dropped.inc();
+            return false;
+        }
+        return true;
+    }
+
+    private synchronized void write(ParseStatus reason, byte[] bytes, int offset, int length) {
+        if(failed) {
+            dropped.inc();
+            return;
+        }
+        try {
+            if(out == null) {
+                out = new BufferedOutputStream(new FileOutputStream(file, true));
+            }
+            out.write(reason.getMetricName().getBytes(StandardCharsets.US_ASCII));
+            out.write('\t');
+            out.write(bytes, offset, length);
+            out.write('\n');
+        } catch (IOException e) {
+            dropped.inc();
+            fail(e);
+        }
+    }
+
+    private void fail(IOException e) {
+        // once failed the records are only counted, rather than reporting every one
+        failed = true;
+        System.err.println("ERROR(Quarantine) writing "+file+", further records are only counted: "+e);
+    }
+}
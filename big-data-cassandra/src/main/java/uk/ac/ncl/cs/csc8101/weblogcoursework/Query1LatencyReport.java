@@ -0,0 +1,74 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.ConsoleReporter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Row;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command line script comparing the latency of QueryManager's IN based query1 with the
+ * token aware, per url query1Parallel, over the same urls and hours. Prints the latency
+ * percentiles of each.
+ * <p>
+ * Usage: Query1LatencyReport [urls [iterations [startHour endHour]]]
+ */
+public class Query1LatencyReport {
+
+    public static void main(String[] args) throws Exception {
+
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.Query1LatencyReport -Dexec.args="200 100"
+
+        final int numUrls = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+        final int startHour = args.length > 3 ? Integer.parseInt(args[2]) : QueryManager.toEpochHour("30/Apr/1998:01 +0000");
+        final int endHour = args.length > 3 ? Integer.parseInt(args[3]) : QueryManager.toEpochHour("30/Apr/1998:10 +0000");
+
+        final MetricRegistry metricRegistry = new MetricRegistry();
+        final Timer inTimer = metricRegistry.timer("query1.in");
+        final Timer parallelTimer = metricRegistry.timer("query1.parallel");
+        final ConsoleReporter reporter = ConsoleReporter.forRegistry(metricRegistry)
+                .convertRatesTo(TimeUnit.SECONDS)
+                .convertDurationsTo(TimeUnit.MILLISECONDS)
+                .build();
+
+        final Cluster cluster = QueryManager.connect();
+        try {
+            final Session session = cluster.connect("csc8101");
+            final QueryManager queryManager = new QueryManager(session);
+
+            final List<String> urls = new ArrayList<>();
+            final Statement selectUrls = new SimpleStatement("SELECT DISTINCT url FROM query1_hourly LIMIT "+numUrls);
+            for(Row row : session.execute(selectUrls)) {
+                urls.add(row.getString("url"));
+            }
+            System.out.println(urls.size()+" urls, hours "+startHour+" to "+endHour+", "+iterations+" iterations");
+
+            // alternate the paths, so both see the same cache and compaction state
+            for(int i = 0; i < iterations; i++) {
+                final Timer.Context inContext = inTimer.time();
+                final int inRows = queryManager.query1(startHour, endHour, urls).size();
+                inContext.stop();
+
+                final Timer.Context parallelContext = parallelTimer.time();
+                final int parallelRows = queryManager.query1Parallel(startHour, endHour, urls).size();
+                parallelContext.stop();
+
+                if(inRows != parallelRows) {
+                    System.err.println("ERROR(Query1LatencyReport) paths disagree: "+inRows+" and "+parallelRows+" rows");
+                }
+            }
+        } finally {
+            cluster.close();
+        }
+
+        reporter.report();
+    }
+}
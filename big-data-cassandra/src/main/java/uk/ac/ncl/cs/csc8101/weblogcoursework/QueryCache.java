@@ -0,0 +1,75 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Size bounded, least recently used cache of query results, with an optional time to live.
+ * Thread safe.
+ *
+ * @param <K> the key type
+ * @param <V> the value type
+ */
+public class QueryCache<K, V> {
+
+    private final long ttlNanos;
+    private final LinkedHashMap<K, Entry<V>> entries;
+
+    /**
+     * Creates a cache for immutable results, which never expire.
+     *
+     * @param capacity the maximum number of entries
+     */
+    public QueryCache(int capacity) {
+        this(capacity, Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @param capacity the maximum number of entries
+     * @param ttl how long an entry may be served for
+     * @param unit the unit of ttl
+     */
+    public QueryCache(final int capacity, long ttl, TimeUnit unit) {
+        this.ttlNanos = unit.toNanos(ttl);
+        this.entries = new LinkedHashMap<K, Entry<V>>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, Entry<V>> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @return the cached value, or null if there is none or it has expired
+     */
+    public synchronized V get(K key) {
+        final Entry<V> entry = entries.get(key);
+        if(entry == null) {
+            return null;
+        }
+        if(ttlNanos != Long.MAX_VALUE && System.nanoTime()-entry.createdNanos > ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    public synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, System.nanoTime()));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private static class Entry<V> {
+        private final V value;
+        private final long createdNanos;
+
+        private Entry(V value, long createdNanos) {
+            this.value = value;
+            this.createdNanos = createdNanos;
+        }
+    }
+}
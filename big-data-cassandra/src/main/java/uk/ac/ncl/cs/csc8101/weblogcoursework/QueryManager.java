@@ -1,110 +1,420 @@
 package uk.ac.ncl.cs.csc8101.weblogcoursework;
 
 import com.datastax.driver.core.*;
-import com.datastax.driver.core.querybuilder.QueryBuilder;
+import com.datastax.driver.core.policies.DCAwareRoundRobinPolicy;
+import com.datastax.driver.core.policies.TokenAwarePolicy;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
 
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.Queue;
-
-import static com.datastax.driver.core.querybuilder.QueryBuilder.*;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
+ * Runs the coursework queries against the tables populated by MessageHandler.
+ * Statements are prepared once per instance, so an instance should be kept and reused,
+ * as QueryService does. Thread safe.
+ * <p>
+ * query1 has two paths. query1 sends a single IN query, so one coordinator gathers every url's partition.
+ * query1Parallel sends one single partition query per url, which a token aware cluster (see connect)
+ * routes straight to a replica, with a bound on the queries in flight, and hands each url's counts to
+ * the caller as they arrive. Query1LatencyReport compares the two.
+ * query1Total sums each url's accesses over a range from the day and week rollups where it can,
+ * reading hours only at the edges (see TimeRangePlan).
+ * <p>
+ * query2 returns at most 100 sessions. Longer histories can be walked a page at a time with query2Page,
+ * or streamed with forEachSession, both in constant memory.
+ *
  * Created by don on 13/02/15.
  */
 public class QueryManager {
 
-    private final static Cluster cluster;
-    private final static Session session;
+    private final Session session;
 
-    private final static ArrayList<String> urls;
-    private final static int startHour;
-    private final static int endHour;
+    // rows fetched per round trip when streaming a session history
+    private final static int SESSION_FETCH_SIZE = 500;
 
-    private final static String userId;
+    // the maximum single url queries in flight per query1Parallel call
+    private final static int MAX_CONCURRENT_URL_QUERIES = 32;
 
-    static {
-        cluster = new Cluster.Builder()
-                .addContactPoint("127.0.0.1")
-                .build();
+    private final PreparedStatement query1;
+    private final PreparedStatement query1Url;
+    private final EnumMap<TimeResolution, PreparedStatement> query1Totals = new EnumMap<>(TimeResolution.class);
+    private final PreparedStatement query1Watermark;
+    private final PreparedStatement query2;
+    private final PreparedStatement query2Range;
+    private final PreparedStatement query3;
 
-        final Session bootstrapSession = cluster.connect();
-        bootstrapSession.execute("CREATE KEYSPACE IF NOT EXISTS csc8101 WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1 }");
-        bootstrapSession.close();
+    /**
+     * @param session a session connected to the "csc8101" keyspace
+     */
+    public QueryManager(Session session) {
+        this.session = session;
 
-        session = cluster.connect("csc8101");
+        query1 = session.prepare("SELECT * FROM query1_hourly WHERE url IN ? AND hour>=? AND hour<=?");
+        // binds the whole partition key, so the driver can route it by token
+        query1Url = session.prepare("SELECT * FROM query1_hourly WHERE url=? AND hour>=? AND hour<=?");
+        for(TimeResolution resolution : TimeResolution.values()) {
+            query1Totals.put(resolution, session.prepare("SELECT url, access_count FROM " + resolution.getTable() +
+                    " WHERE url IN ? AND " + resolution.getColumn() + ">=? AND " + resolution.getColumn() + "<=?"));
+        }
+        query1Watermark = session.prepare("SELECT closed_before_hour FROM query1_watermark WHERE id=0");
+        //limit optional
+        query2 = session.prepare("SELECT * FROM query2 WHERE user_id=? LIMIT 100");
+        query2Range = session.prepare("SELECT * FROM query2 WHERE user_id=? AND session_end>=? AND session_end<=? LIMIT ?");
+        query3 = session.prepare("SELECT * FROM query3 WHERE user_id=?");
+    }
 
+    /**
+     * Receives the counts of each url as its query completes, on a driver thread.
+     */
+    public interface Query1Listener {
+        void onCounters(String url, List<UrlHourCounter> counters);
+    }
 
-        //Input values
-        startHour = 1;
-        endHour = 10;
-        urls = new ArrayList<String>(){{
-            add("/english/teams/teamqualify160.htm");
-            add("/french/news/11128.htm");
-        }};
-        userId = "1000";
+    /**
+     * @return a cluster sending each query to a replica of the partition it reads, where it can tell
+     */
+    public static Cluster connect() {
+        return new Cluster.Builder()
+                .addContactPoint("127.0.0.1")
+                .withLoadBalancingPolicy(new TokenAwarePolicy(new DCAwareRoundRobinPolicy()))
+                .build();
     }
-    
+
     public static void main(String[] args) {
+
+        final Cluster cluster = connect();
         try {
-            query1(startHour,endHour,urls);
-            query2(userId);
-            query3(userId);
+            final Session bootstrapSession = cluster.connect();
+            bootstrapSession.execute("CREATE KEYSPACE IF NOT EXISTS csc8101 WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1 }");
+            bootstrapSession.close();
+
+            final QueryManager queryManager = new QueryManager(cluster.connect("csc8101"));
+
+            //Input values. Hours are absolute i.e. hours since unix epoch
+            final int startHour = toEpochHour("30/Apr/1998:01 +0000");
+            final int endHour = toEpochHour("30/Apr/1998:10 +0000");
+            final List<String> urls = new ArrayList<String>(){{
+                add("/english/teams/teamqualify160.htm");
+                add("/french/news/11128.htm");
+            }};
+            final String userId = "1000";
+
+            print(queryManager.query1(startHour, endHour, urls));
+            printTotals(queryManager.query1Total(startHour, endHour, urls));
+            printSessions(queryManager.query2(userId));
+            printDistinctUrls(userId, queryManager.query3(userId));
         } catch (Exception e) {
             e.printStackTrace();
         } finally {
-            session.close();
             cluster.close();
         }
     }
 
-    private static void query1(int startHour, int endHour, ArrayList<String> urls) {
-        final PreparedStatement selectPs = session.prepare("SELECT * FROM query1 WHERE url IN ? AND hour>=? AND hour<=?");
-        ResultSet resultSet = session.execute( new BoundStatement(selectPs).bind(urls,startHour,endHour));
-        if(!resultSet.isExhausted()) {
+    /**
+     * @param startHour the first hour, as hours since unix epoch
+     * @param endHour the last hour, inclusive
+     * @param urls the urls
+     * @return the access counts of the urls in the hours, for those with any accesses
+     */
+    public List<UrlHourCounter> query1(int startHour, int endHour, List<String> urls) {
+        final List<UrlHourCounter> counters = new ArrayList<>();
+        for (Row row: session.execute(new BoundStatement(query1).bind(urls, startHour, endHour))) {
+            counters.add(new UrlHourCounter(row.getString("url"), row.getInt("hour"), row.getLong("access_count")));
+        }
+        return counters;
+    }
+
+    /**
+     * As query1, but with one query per url, so each is answered by a replica of its partition.
+     *
+     * @param startHour the first hour, as hours since unix epoch
+     * @param endHour the last hour, inclusive
+     * @param urls the urls
+     * @return the access counts of the urls in the hours, for those with any accesses, in order of arrival
+     */
+    public List<UrlHourCounter> query1Parallel(int startHour, int endHour, List<String> urls) throws InterruptedException {
+        final List<UrlHourCounter> counters = Collections.synchronizedList(new ArrayList<UrlHourCounter>());
+        query1Parallel(startHour, endHour, urls, new Query1Listener() {
+            @Override
+            public void onCounters(String url, List<UrlHourCounter> urlCounters) {
+                counters.addAll(urlCounters);
+            }
+        });
+        return counters;
+    }
+
+    /**
+     * As query1, but with one query per url, each handed to the listener as soon as it completes.
+     * Returns once every url has been handed over.
+     *
+     * @param startHour the first hour, as hours since unix epoch
+     * @param endHour the last hour, inclusive
+     * @param urls the urls
+     * @param listener receives the counts of each url, from driver threads, so must be thread safe
+     */
+    public void query1Parallel(int startHour, int endHour, List<String> urls, final Query1Listener listener)
+            throws InterruptedException {
+
+        final Semaphore permits = new Semaphore(MAX_CONCURRENT_URL_QUERIES);
+        final CountDownLatch completed = new CountDownLatch(urls.size());
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+        for(final String url : urls) {
+            permits.acquire();
+            if(failure.get() != null) {
+                permits.release();
+                break;
+            }
+            final ResultSetFuture future;
+            try {
+                future = session.executeAsync(new BoundStatement(query1Url).bind(url, startHour, endHour));
+            } catch (RuntimeException e) {
+                failure.compareAndSet(null, e);
+                permits.release();
+                break;
+            }
+            Futures.addCallback(future, new FutureCallback<ResultSet>() {
+
+                private final List<UrlHourCounter> counters = new ArrayList<>();
+
+                @Override
+                public void onSuccess(ResultSet resultSet) {
+                    // only take the rows already fetched, so a driver thread never blocks on the next page
+                    final Iterator<Row> iterator = resultSet.iterator();
+                    for(int available = resultSet.getAvailableWithoutFetching(); available > 0; available--) {
+                        final Row row = iterator.next();
+                        counters.add(new UrlHourCounter(row.getString("url"), row.getInt("hour"), row.getLong("access_count")));
+                    }
+                    if(!resultSet.isFullyFetched()) {
+                        final FutureCallback<ResultSet> callback = this;
+                        Futures.addCallback(resultSet.fetchMoreResults(), new FutureCallback<Void>() {
+                            @Override
+                            public void onSuccess(Void result) {
+                                callback.onSuccess(resultSet);
+                            }
+
+                            @Override
+                            public void onFailure(Throwable throwable) {
+                                callback.onFailure(throwable);
+                            }
+                        });
+                        return;
+                    }
+                    try {
+                        listener.onCounters(url, counters);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        permits.release();
+                        completed.countDown();
+                    }
+                }
+
+                @Override
+                public void onFailure(Throwable throwable) {
+                    failure.compareAndSet(null, throwable);
+                    permits.release();
+                    completed.countDown();
+                }
+            });
+        }
+
+        if(failure.get() == null) {
+            completed.await();
+        } else {
+            // stop issuing, but let the queries in flight finish before returning
+            permits.acquire(MAX_CONCURRENT_URL_QUERIES);
+        }
+
+        final Throwable throwable = failure.get();
+        if(throwable instanceof RuntimeException) {
+            throw (RuntimeException)throwable;
+        } else if(throwable != null) {
+            throw new RuntimeException(throwable);
+        }
+    }
+
+    /**
+     * Sums the accesses of each url over the hours, reading whole weeks and days from the rollup tables
+     * where they are closed and within the range, and single hours elsewhere.
+     *
+     * @param startHour the first hour, as hours since unix epoch
+     * @param endHour the last hour, inclusive
+     * @param urls the urls
+     * @return the total accesses of each url in the hours, in the order given
+     */
+    public Map<String, Long> query1Total(int startHour, int endHour, List<String> urls) {
+        final Map<String, Long> totals = new LinkedHashMap<>();
+        for(String url : urls) {
+            totals.put(url, 0L);
+        }
+        for(TimeRangePlan.Span span : TimeRangePlan.plan(startHour, endHour, getClosedBeforeHour())) {
+            final BoundStatement statement = new BoundStatement(query1Totals.get(span.getResolution()))
+                    .bind(urls, (int)span.getFirstBucket(), (int)span.getLastBucket());
+            for (Row row: session.execute(statement)) {
+                final String url = row.getString("url");
+                totals.put(url, totals.get(url)+row.getLong("access_count"));
+            }
+        }
+        return totals;
+    }
+
+    /**
+     * @return the hour before which every hour in "query1_hourly" is final, or Long.MIN_VALUE if none is yet
+     */
+    public long getClosedBeforeHour() {
+        final Row row = session.execute(new BoundStatement(query1Watermark)).one();
+        return row == null ? Long.MIN_VALUE : row.getLong("closed_before_hour");
+    }
+
+    /**
+     * @param userId the user
+     * @return the user's first 100 finished sessions
+     */
+    public List<SessionSummary> query2(String userId) {
+        final List<SessionSummary> sessions = new ArrayList<>();
+        for (Row row: session.execute(new BoundStatement(query2).bind(userId))) {
+            sessions.add(toSessionSummary(row));
+        }
+        return sessions;
+    }
+
+    /**
+     * Reads one page of a user's finished sessions ending in a time range, oldest first.
+     *
+     * @param userId the user
+     * @param from the earliest session end, or null for no bound
+     * @param to the latest session end, inclusive, or null for no bound
+     * @param pageSize the maximum sessions on the page
+     * @param pageToken the token of the previous page, or null for the first
+     * @return the page
+     * @throws IllegalArgumentException if the page token is malformed
+     */
+    public SessionPage query2Page(String userId, Date from, Date to, int pageSize, String pageToken) {
+        if(pageSize <= 0) {
+            throw new IllegalArgumentException("page size must be positive: "+pageSize);
+        }
+        Date start = from == null ? new Date(Long.MIN_VALUE) : from;
+        if(pageToken != null) {
+            // session ends are unique per user and millisecond grained, so continue from the next millisecond
+            start = new Date(Math.max(start.getTime(), SessionPage.decodeToken(pageToken)+1));
+        }
+        final Date end = to == null ? new Date(Long.MAX_VALUE) : to;
+
+        // one more than the page, to tell whether there is another
+        final BoundStatement statement = new BoundStatement(query2Range).bind(userId, start, end, pageSize+1);
+        final List<SessionSummary> sessions = new ArrayList<>();
+        for (Row row: session.execute(statement)) {
+            sessions.add(toSessionSummary(row));
+        }
+        if(sessions.size() <= pageSize) {
+            return new SessionPage(sessions, null);
+        }
+        sessions.remove(pageSize);
+        return new SessionPage(sessions, SessionPage.encodeToken(sessions.get(pageSize-1).getSessionEnd().getTime()));
+    }
+
+    /**
+     * Streams every finished session of a user ending in a time range, oldest first, fetching
+     * them from cassandra a page at a time as they are consumed.
+     *
+     * @param userId the user
+     * @param from the earliest session end, or null for no bound
+     * @param to the latest session end, inclusive, or null for no bound
+     * @param visitor receives each session
+     */
+    public void forEachSession(String userId, Date from, Date to, Consumer<SessionSummary> visitor) {
+        final BoundStatement statement = new BoundStatement(query2Range).bind(userId,
+                from == null ? new Date(Long.MIN_VALUE) : from,
+                to == null ? new Date(Long.MAX_VALUE) : to,
+                Integer.MAX_VALUE);
+        statement.setFetchSize(SESSION_FETCH_SIZE);
+        for (Row row: session.execute(statement)) {
+            visitor.accept(toSessionSummary(row));
+        }
+    }
+
+    private static SessionSummary toSessionSummary(Row row) {
+        return new SessionSummary(row.getString("user_id"),
+                row.getDate("session_start"),
+                row.getDate("session_end"),
+                row.getLong("no_access"),
+                row.getLong("distinct_url_accessed"));
+    }
+
+    /**
+     * @param userId the user
+     * @return the estimated number of distinct urls the user has accessed, or null if the user is unknown
+     */
+    public Long query3(String userId) {
+        final Row row = session.execute(new BoundStatement(query3).bind(userId)).one();
+        return row == null ? null : row.getLong("distinct_url_accessed");
+    }
+
+    /**
+     * Converts a date and hour to an absolute hour
+     *
+     * @param dateHour as String in format dd/MMM/yyyy:HH Z
+     * @return hours since unix epoch
+     */
+    static int toEpochHour(String dateHour) {
+        try {
+            DateFormat formatter = new SimpleDateFormat("dd/MMM/yyyy:HH Z");
+            return (int)(formatter.parse(dateHour).getTime() / HourCloseAggregator.HOUR_MS);
+        } catch (ParseException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static void print(List<UrlHourCounter> counters) {
+        if(!counters.isEmpty()) {
             System.out.println("url\thour\tcount");
-            for (Row row: resultSet.all()) {
-                System.out.println(row.getString("url")
-                        +"\t"+row.getInt("hour")
-                        +"\t"+row.getLong("counter_value"));
+            for (UrlHourCounter counter: counters) {
+                System.out.println(counter.getUrl()
+                        +"\t"+new Date(counter.getHour()*HourCloseAggregator.HOUR_MS)
+                        +"\t"+counter.getCounter());
             }
         }
     }
-    private static void query2(String userId) {
-        Statement statement = QueryBuilder.select()
-                .all()
-                .from("query2")
-                .where(eq("user_id", userId))
-                .limit(100);
-                //limit optional
 
-        ResultSet rs = session.execute(statement);
-        if(!rs.isExhausted()) {
+    private static void printTotals(Map<String, Long> totals) {
+        System.out.println("url\ttotal_count");
+        for (Map.Entry<String, Long> total: totals.entrySet()) {
+            System.out.println(total.getKey()+"\t"+total.getValue());
+        }
+    }
+
+    private static void printSessions(List<SessionSummary> sessions) {
+        if(!sessions.isEmpty()) {
             System.out.println("clientId\tstart_time\tend_time\tnumber_of_accesses\tnumber_of_distinct_urls_accessed");
-            for (Row row: rs.all()) {
-                System.out.println(row.getString("user_id")
-                        +"\t"+row.getDate("session_start")
-                        +"\t"+row.getDate("session_end")
-                        +"\t"+row.getLong("no_access")
-                        + "\t" + row.getLong("distinct_url_accessed"));
+            for (SessionSummary session: sessions) {
+                System.out.println(session.getUserId()
+                        +"\t"+session.getSessionStart()
+                        +"\t"+session.getSessionEnd()
+                        +"\t"+session.getAccessCount()
+                        + "\t" + session.getDistinctUrls());
             }
         }
     }
-    private static void query3(String userId) {
-        Statement statement = QueryBuilder.select()
-                .all()
-                .from("query3")
-                .where(eq("user_id", userId))
-                .limit(100);
-                //limit optional
 
-        ResultSet rs = session.execute(statement);
-        if(!rs.isExhausted()) {
+    private static void printDistinctUrls(String userId, Long distinctUrls) {
+        if(distinctUrls != null) {
             System.out.println("clientId\tnumber_of_distinct_urls_accessed");
-            for(Row row: rs.all()) {
-                System.out.println(row.getString("user_id")
-                        + "\t" + row.getLong("distinct_url_accessed"));
-            }
+            System.out.println(userId + "\t" + distinctUrls);
         }
     }
 }
@@ -0,0 +1,342 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.Cluster;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Long running HTTP front end to QueryManager for dashboards, caching results between requests.
+ * <p>
+ * query1 totals of closed hours are final (see HourCloseAggregator), so they are cached per (url, hour)
+ * in a size bounded cache with no expiry. An hour is closed when it is before the watermark the consumers
+ * publish in "query1_watermark", which is itself cached for a few seconds. Hours that are still open are
+ * always read. query2 and query3 results change as sessions expire, so they are only cached for a short time.
+ * <p>
+ * Endpoints, answering with tab separated text as QueryManager prints:
+ * <ul>
+ *     <li>/query1?start=hour&amp;end=hour&amp;url=...&amp;url=... with hours since unix epoch, end inclusive</li>
+ *     <li>/query2?user=...</li>
+ *     <li>/query2?user=...&amp;size=n[&amp;from=millis][&amp;to=millis][&amp;page=token] for one page of the sessions
+ *     ending in a range, followed by a "next" line with the token of the following page if there is one.
+ *     Pages are read through uncached.</li>
+ *     <li>/query3?user=...</li>
+ * </ul>
+ * Usage: QueryService [port]
+ */
+public class QueryService {
+
+    private static final int CLOSED_HOUR_CACHE_SIZE = 1000000;
+    // wider ranges bypass the closed hour cache, rather than flood it with empty hours
+    private static final int MAX_CACHED_RANGE_HOURS = 24*31;
+    private static final int USER_CACHE_SIZE = 10000;
+    private static final long USER_CACHE_TTL_SECONDS = 10;
+    private static final long WATERMARK_TTL_SECONDS = 5;
+
+    private final QueryManager queryManager;
+
+    // "hour url" to the final access count, zero for hours with no accesses
+    private final QueryCache<String, Long> closedHourCounts = new QueryCache<>(CLOSED_HOUR_CACHE_SIZE);
+    private final QueryCache<String, Long> closedBeforeHour = new QueryCache<>(1, WATERMARK_TTL_SECONDS, TimeUnit.SECONDS);
+    private final QueryCache<String, List<SessionSummary>> sessions =
+            new QueryCache<>(USER_CACHE_SIZE, USER_CACHE_TTL_SECONDS, TimeUnit.SECONDS);
+    private final QueryCache<String, Long> distinctUrls =
+            new QueryCache<>(USER_CACHE_SIZE, USER_CACHE_TTL_SECONDS, TimeUnit.SECONDS);
+
+    public QueryService(QueryManager queryManager) {
+        this.queryManager = queryManager;
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.QueryService
+        // curl "http://localhost:8080/query1?start=249121&end=249130&url=/french/news/11128.htm"
+
+        final int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+
+        final Cluster cluster = QueryManager.connect();
+        final QueryService queryService = new QueryService(new QueryManager(cluster.connect("csc8101")));
+        final HttpServer server = queryService.start(port);
+
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            @Override
+            public void run() {
+                server.stop(0);
+                cluster.close();
+            }
+        });
+        System.out.println("QueryService listening on port "+port);
+    }
+
+    /**
+     * Starts serving the endpoints.
+     *
+     * @param port the port to listen on
+     * @return the server, to stop it
+     */
+    public HttpServer start(int port) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.setExecutor(Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors()*2));
+
+        server.createContext("/query1", new QueryHandler() {
+            @Override
+            protected String answer(Map<String, List<String>> parameters) throws InterruptedException {
+                final int startHour = Integer.parseInt(required(parameters, "start"));
+                final int endHour = Integer.parseInt(required(parameters, "end"));
+                final List<String> urls = parameters.get("url");
+                if(urls == null) {
+                    throw new IllegalArgumentException("missing parameter url");
+                }
+                final StringBuilder answer = new StringBuilder("url\thour\tcount\n");
+                for(UrlHourCounter counter : query1(startHour, endHour, urls)) {
+                    answer.append(counter.getUrl()).append('\t')
+                            .append(new Date(counter.getHour()*HourCloseAggregator.HOUR_MS)).append('\t')
+                            .append(counter.getCounter()).append('\n');
+                }
+                return answer.toString();
+            }
+        });
+
+        server.createContext("/query2", new QueryHandler() {
+            @Override
+            protected String answer(Map<String, List<String>> parameters) {
+                final String userId = required(parameters, "user");
+                final List<SessionSummary> sessions;
+                String nextPageToken = null;
+                if(parameters.containsKey("size")) {
+                    final SessionPage page = queryManager.query2Page(userId,
+                            optionalDate(parameters, "from"),
+                            optionalDate(parameters, "to"),
+                            Integer.parseInt(required(parameters, "size")),
+                            parameters.containsKey("page") ? required(parameters, "page") : null);
+                    sessions = page.getSessions();
+                    nextPageToken = page.getNextPageToken();
+                } else {
+                    sessions = query2(userId);
+                }
+
+                final StringBuilder answer = new StringBuilder(
+                        "clientId\tstart_time\tend_time\tnumber_of_accesses\tnumber_of_distinct_urls_accessed\n");
+                for(SessionSummary session : sessions) {
+                    answer.append(session.getUserId()).append('\t')
+                            .append(session.getSessionStart()).append('\t')
+                            .append(session.getSessionEnd()).append('\t')
+                            .append(session.getAccessCount()).append('\t')
+                            .append(session.getDistinctUrls()).append('\n');
+                }
+                if(nextPageToken != null) {
+                    answer.append("next\t").append(nextPageToken).append('\n');
+                }
+                return answer.toString();
+            }
+        });
+
+        server.createContext("/query3", new QueryHandler() {
+            @Override
+            protected String answer(Map<String, List<String>> parameters) {
+                final String userId = required(parameters, "user");
+                final StringBuilder answer = new StringBuilder("clientId\tnumber_of_distinct_urls_accessed\n");
+                final Long urls = query3(userId);
+                if(urls != null) {
+                    answer.append(userId).append('\t').append(urls).append('\n');
+                }
+                return answer.toString();
+            }
+        });
+
+        server.start();
+        return server;
+    }
+
+    /**
+     * @see QueryManager#query1Parallel(int, int, List)
+     */
+    public List<UrlHourCounter> query1(int startHour, int endHour, List<String> urls) throws InterruptedException {
+
+        final long closedBefore = getClosedBeforeHour();
+        final int lastClosedHour = closedBefore <= startHour ? startHour-1 : (int)Math.min(endHour, closedBefore-1);
+        final boolean cacheable = lastClosedHour >= startHour && lastClosedHour-startHour < MAX_CACHED_RANGE_HOURS;
+
+        final List<UrlHourCounter> counters = new ArrayList<>();
+        final List<String> uncachedUrls = new ArrayList<>();
+        final List<String> cachedUrls = new ArrayList<>();
+
+        for(String url : urls) {
+            final List<UrlHourCounter> cached = cacheable ? cachedClosedHours(url, startHour, lastClosedHour) : null;
+            if(cached == null) {
+                uncachedUrls.add(url);
+            } else {
+                counters.addAll(cached);
+                cachedUrls.add(url);
+            }
+        }
+
+        if(!uncachedUrls.isEmpty()) {
+            final List<UrlHourCounter> read = queryManager.query1Parallel(startHour, endHour, uncachedUrls);
+            counters.addAll(read);
+            if(cacheable) {
+                cacheClosedHours(uncachedUrls, read, startHour, lastClosedHour);
+            }
+        }
+        if(!cachedUrls.isEmpty() && endHour > lastClosedHour) {
+            counters.addAll(queryManager.query1Parallel(lastClosedHour+1, endHour, cachedUrls));
+        }
+
+        Collections.sort(counters, new Comparator<UrlHourCounter>() {
+            @Override
+            public int compare(UrlHourCounter a, UrlHourCounter b) {
+                final int byUrl = a.getUrl().compareTo(b.getUrl());
+                return byUrl != 0 ? byUrl : a.getHour().compareTo(b.getHour());
+            }
+        });
+        return counters;
+    }
+
+    /**
+     * @return the url's counts for the closed hours, or null if any of them is not cached
+     */
+    private List<UrlHourCounter> cachedClosedHours(String url, int startHour, int lastClosedHour) {
+        final List<UrlHourCounter> counters = new ArrayList<>();
+        for(int hour = startHour; hour <= lastClosedHour; hour++) {
+            final Long count = closedHourCounts.get(hour+" "+url);
+            if(count == null) {
+                return null;
+            }
+            if(count > 0) {
+                counters.add(new UrlHourCounter(url, hour, count));
+            }
+        }
+        return counters;
+    }
+
+    private void cacheClosedHours(List<String> urls, List<UrlHourCounter> read, int startHour, int lastClosedHour) {
+        final Map<String, Long> counts = new HashMap<>();
+        for(UrlHourCounter counter : read) {
+            counts.put(counter.getHour()+" "+counter.getUrl(), counter.getCounter());
+        }
+        for(String url : urls) {
+            for(int hour = startHour; hour <= lastClosedHour; hour++) {
+                final String key = hour+" "+url;
+                final Long count = counts.get(key);
+                closedHourCounts.put(key, count == null ? 0L : count);
+            }
+        }
+    }
+
+    private long getClosedBeforeHour() {
+        Long closedBefore = closedBeforeHour.get("");
+        if(closedBefore == null) {
+            closedBefore = queryManager.getClosedBeforeHour();
+            closedBeforeHour.put("", closedBefore);
+        }
+        return closedBefore;
+    }
+
+    /**
+     * @see QueryManager#query2(String)
+     */
+    public List<SessionSummary> query2(String userId) {
+        List<SessionSummary> result = sessions.get(userId);
+        if(result == null) {
+            result = Collections.unmodifiableList(queryManager.query2(userId));
+            sessions.put(userId, result);
+        }
+        return result;
+    }
+
+    /**
+     * @see QueryManager#query3(String)
+     */
+    public Long query3(String userId) {
+        Long result = distinctUrls.get(userId);
+        if(result == null) {
+            result = queryManager.query3(userId);
+            // unknown users are not cached, as they may appear at any time
+            if(result != null) {
+                distinctUrls.put(userId, result);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Answers GET requests with the text computed from the query parameters.
+     */
+    private static abstract class QueryHandler implements HttpHandler {
+
+        protected abstract String answer(Map<String, List<String>> parameters) throws InterruptedException;
+
+        @Override
+        public void handle(HttpExchange exchange) throws IOException {
+            int status = 200;
+            String body;
+            try {
+                body = answer(parseQuery(exchange.getRequestURI().getRawQuery()));
+            } catch (IllegalArgumentException e) {
+                status = 400;
+                body = "ERROR "+e.getMessage()+"\n";
+            } catch (Exception e) {
+                System.err.println("ERROR(QueryService) "+exchange.getRequestURI());
+                e.printStackTrace();
+                status = 500;
+                body = "ERROR "+e+"\n";
+            }
+
+            final byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+            exchange.sendResponseHeaders(status, bytes.length);
+            try (OutputStream outputStream = exchange.getResponseBody()) {
+                outputStream.write(bytes);
+            }
+        }
+
+        protected static String required(Map<String, List<String>> parameters, String name) {
+            final List<String> values = parameters.get(name);
+            if(values == null) {
+                throw new IllegalArgumentException("missing parameter "+name);
+            }
+            return values.get(0);
+        }
+
+        protected static Date optionalDate(Map<String, List<String>> parameters, String name) {
+            return parameters.containsKey(name) ? new Date(Long.parseLong(required(parameters, name))) : null;
+        }
+
+        private static Map<String, List<String>> parseQuery(String query) throws IOException {
+            final Map<String, List<String>> parameters = new HashMap<>();
+            if(query == null) {
+                return parameters;
+            }
+            for(String pair : query.split("&")) {
+                final int equals = pair.indexOf('=');
+                if(equals <= 0) {
+                    continue;
+                }
+                final String name = URLDecoder.decode(pair.substring(0, equals), "UTF-8");
+                final String value = URLDecoder.decode(pair.substring(equals+1), "UTF-8");
+                List<String> values = parameters.get(name);
+                if(values == null) {
+                    values = new ArrayList<>();
+                    parameters.put(name, values);
+                }
+                values.add(value);
+            }
+            return parameters;
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.Arrays;
+
+/**
+ * Puts session hits back into event time order, so they can be read from several partitions
+ * or a merged backfill that is only roughly in order.
+ * <p>
+ * Hits are held in a min-heap by time until the watermark, the latest time seen less the allowed
+ * lateness, passes them, then released in time order, with ties in arrival order. A hit older than
+ * the last one released can no longer be placed in order, so it is counted as too late and dropped.
+ * With no allowed lateness, hits are released as they arrive and only out of order ones are dropped.
+ * <p>
+ * The heap is kept in parallel primitive arrays, so holding a hit creates no garbage beyond its id.
+ * Instances are not thread safe, use one per MessageHandler.
+ */
+public class ReorderBuffer {
+
+    /**
+     * Receives the hits in time order.
+     */
+    public interface Sink {
+        void hit(String id, long hitMillis, int hashedUrl);
+    }
+
+    private final long allowedLatenessMillis;
+
+    private String[] ids = new String[64];
+    private long[] times = new long[64];
+    private int[] hashedUrls = new int[64];
+    private long[] sequences = new long[64];
+    private int size = 0;
+    private long nextSequence = 0;
+
+    private long maxSeenMillis = Long.MIN_VALUE;
+    private long lastReleasedMillis = Long.MIN_VALUE;
+    private long tooLateCount = 0;
+
+    /**
+     * @param allowedLatenessMillis how far behind the latest hit seen a hit may arrive and still be placed in order
+     */
+    public ReorderBuffer(long allowedLatenessMillis) {
+        if(allowedLatenessMillis < 0) {
+            throw new IllegalArgumentException("allowed lateness must not be negative: "+allowedLatenessMillis);
+        }
+        this.allowedLatenessMillis = allowedLatenessMillis;
+    }
+
+    /**
+     * Adds a hit, then releases to the sink every hit the watermark has passed.
+     *
+     * @param id the session id
+     * @param hitMillis the time of the hit, in milliseconds since unix epoch
+     * @param hashedUrl the url of the hit, hashed as by MurmurHash.hash(Object)
+     * @param sink receives the released hits
+     * @return false if the hit was too late to be placed in order, and was dropped
+     */
+    public boolean add(String id, long hitMillis, int hashedUrl, Sink sink) {
+        if(hitMillis < lastReleasedMillis) {
+            tooLateCount++;
+            return false;
+        }
+        push(id, hitMillis, hashedUrl);
+        if(hitMillis > maxSeenMillis) {
+            maxSeenMillis = hitMillis;
+        }
+        release(getWatermarkMillis(), sink);
+        return true;
+    }
+
+    /**
+     * Releases every held hit, e.g. at the end of the input.
+     *
+     * @param sink receives the released hits
+     */
+    public void flush(Sink sink) {
+        release(Long.MAX_VALUE, sink);
+    }
+
+    /**
+     * @return the time up to which hits are released
+     */
+    public long getWatermarkMillis() {
+        return maxSeenMillis == Long.MIN_VALUE ? Long.MIN_VALUE : maxSeenMillis-allowedLatenessMillis;
+    }
+
+    /**
+     * @return the number of hits dropped as too late
+     */
+    public long getTooLateCount() {
+        return tooLateCount;
+    }
+
+    /**
+     * @return the number of hits held
+     */
+    public int size() {
+        return size;
+    }
+
+    private void release(long watermarkMillis, Sink sink) {
+        while(size > 0 && times[0] <= watermarkMillis) {
+            final String id = ids[0];
+            final long hitMillis = times[0];
+            final int hashedUrl = hashedUrls[0];
+            pop();
+            lastReleasedMillis = hitMillis;
+            sink.hit(id, hitMillis, hashedUrl);
+        }
+    }
+
+    private void push(String id, long hitMillis, int hashedUrl) {
+        if(size == times.length) {
+            ids = Arrays.copyOf(ids, size*2);
+            times = Arrays.copyOf(times, size*2);
+            hashedUrls = Arrays.copyOf(hashedUrls, size*2);
+            sequences = Arrays.copyOf(sequences, size*2);
+        }
+        int index = size++;
+        set(index, id, hitMillis, hashedUrl, nextSequence++);
+        while(index > 0) {
+            final int parent = (index-1) >>> 1;
+            if(!before(index, parent)) {
+                break;
+            }
+            swap(index, parent);
+            index = parent;
+        }
+    }
+
+    private void pop() {
+        size--;
+        set(0, ids[size], times[size], hashedUrls[size], sequences[size]);
+        ids[size] = null;
+        int index = 0;
+        while(true) {
+            final int left = index*2+1;
+            if(left >= size) {
+                break;
+            }
+            final int right = left+1;
+            final int child = right < size && before(right, left) ? right : left;
+            if(!before(child, index)) {
+                break;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private boolean before(int a, int b) {
+        return times[a] < times[b] || (times[a] == times[b] && sequences[a] < sequences[b]);
+    }
+
+    private void set(int index, String id, long hitMillis, int hashedUrl, long sequence) {
+        ids[index] = id;
+        times[index] = hitMillis;
+        hashedUrls[index] = hashedUrl;
+        sequences[index] = sequence;
+    }
+
+    private void swap(int a, int b) {
+        final String id = ids[a];
+        final long hitMillis = times[a];
+        final int hashedUrl = hashedUrls[a];
+        final long sequence = sequences[a];
+        set(a, ids[b], times[b], hashedUrls[b], sequences[b]);
+        set(b, id, hitMillis, hashedUrl, sequence);
+    }
+}
@@ -0,0 +1,178 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock free queue for handing work between pipeline stages, safe for any number of
+ * producer and consumer threads.
+ * <p>
+ * Each slot carries a sequence number saying whether it is ready to be written or read in the
+ * current lap of the ring, so producers and consumers only contend on their own position counter,
+ * with a single CAS per element and no locks. The blocking methods spin briefly, then back off by
+ * yielding and finally parking, which suits stages that are rarely starved for long.
+ *
+ * @param <T> the element type
+ */
+public class RingBuffer<T> {
+
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 200;
+    private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final AtomicReferenceArray<T> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+
+    // the next positions to write and to read
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong head = new AtomicLong();
+
+    /**
+     * @param capacity the maximum number of elements held, rounded up to a power of two
+     */
+    public RingBuffer(int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity*2-1));
+        this.elements = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        this.mask = size-1;
+        for(int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    public int capacity() {
+        return mask+1;
+    }
+
+    /**
+     * @return an estimate of the number of elements held
+     */
+    public int size() {
+        return (int)Math.max(0, tail.get()-head.get());
+    }
+
+    /**
+     * @return the number of elements added so far, counting those being added
+     */
+    public long getWritePosition() {
+        return tail.get();
+    }
+
+    /**
+     * @return the number of elements removed so far. Every element added before the write position
+     * was at least this is removed once the read position reaches it
+     */
+    public long getReadPosition() {
+        return head.get();
+    }
+
+    /**
+     * Adds an element if there is room.
+     *
+     * @param element the element, not null
+     * @return true if the element was added, false if the buffer is full
+     */
+    public boolean offer(T element) {
+        if(element == null) {
+            throw new NullPointerException();
+        }
+        while(true) {
+            final long position = tail.get();
+            final int index = (int)position & mask;
+            final long difference = sequences.get(index) - position;
+            if(difference == 0) {
+                if(tail.compareAndSet(position, position+1)) {
+                    elements.set(index, element);
+                    // publishes the element to consumers
+                    sequences.set(index, position+1);
+                    return true;
+                }
+            } else if(difference < 0) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Removes the eldest element if there is one.
+     *
+     * @return the element, or null if the buffer is empty
+     */
+    public T poll() {
+        while(true) {
+            final long position = head.get();
+            final int index = (int)position & mask;
+            final long difference = sequences.get(index) - (position+1);
+            if(difference == 0) {
+                if(head.compareAndSet(position, position+1)) {
+                    final T element = elements.get(index);
+                    elements.set(index, null);
+                    // frees the slot for the producer in the next lap
+                    sequences.set(index, position+mask+1);
+                    return element;
+                }
+            } else if(difference < 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Adds an element, waiting for room if necessary.
+     */
+    public void put(T element) throws InterruptedException {
+        int tries = 0;
+        while(!offer(element)) {
+            tries = backOff(tries);
+        }
+    }
+
+    /**
+     * Removes the eldest element, waiting for one if necessary.
+     */
+    public T take() throws InterruptedException {
+        T element;
+        int tries = 0;
+        while((element = poll()) == null) {
+            tries = backOff(tries);
+        }
+        return element;
+    }
+
+    /**
+     * Removes the eldest element, waiting up to the given time for one if necessary.
+     *
+     * @return the element, or null if none arrived in time
+     */
+    public T poll(long timeout, TimeUnit unit) throws InterruptedException {
+        final long deadline = System.nanoTime()+unit.toNanos(timeout);
+        T element;
+        int tries = 0;
+        while((element = poll()) == null) {
+            if(System.nanoTime()-deadline >= 0) {
+                return null;
+            }
+            tries = backOff(tries);
+        }
+        return element;
+    }
+
+    private static int backOff(int tries) throws InterruptedException {
+        if(Thread.interrupted()) {
+            throw new InterruptedException();
+        }
+        if(tries < SPIN_TRIES) {
+            return tries+1;
+        }
+        if(tries < SPIN_TRIES+YIELD_TRIES) {
+            Thread.yield();
+            return tries+1;
+        }
+        LockSupport.parkNanos(PARK_NANOS);
+        return tries;
+    }
+}
@@ -0,0 +1,71 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Open SiteSessions indexed by id and ordered by last hit time.
+ * <p>
+ * Sessions are kept in access order and every access is followed by an update with the latest
+ * event time, so with time ordered hits the eldest entry is always the session that has been idle
+ * longest. Expiry therefore walks from the head and stops at the first live session, evicting every
+ * expired session in O(expired) time, rather than relying on removeEldestEntry, which only inspects
+ * the single eldest entry on insert and so leaves expired sessions behind a live head in memory.
+ * <p>
+ * Instances are not thread safe, use one per MessageHandler.
+ */
+public class SessionExpiryIndex {
+
+    private final LinkedHashMap<String, SiteSession> sessions = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * Looks up an open session, marking it as the most recently accessed.
+     * The caller is expected to update it with a hit at the current event time.
+     *
+     * @param id the session id
+     * @return the session, or null if there is no open session for the id
+     */
+    public SiteSession get(String id) {
+        return sessions.get(id);
+    }
+
+    public void put(SiteSession siteSession) {
+        sessions.put(siteSession.getId(), siteSession);
+    }
+
+    public SiteSession remove(String id) {
+        return sessions.remove(id);
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+
+    public Collection<SiteSession> values() {
+        return sessions.values();
+    }
+
+    /**
+     * Removes every session whose idle time at the given watermark exceeds SiteSession.MAX_IDLE_MS.
+     *
+     * @param watermarkMillis the event time, in milliseconds since unix epoch
+     * @param onExpired receives each expired session, in order of last hit
+     * @return the number of sessions expired
+     */
+    public int expire(long watermarkMillis, Consumer<? super SiteSession> onExpired) {
+        int expired = 0;
+        final Iterator<SiteSession> iterator = sessions.values().iterator();
+        while(iterator.hasNext()) {
+            final SiteSession siteSession = iterator.next();
+            if(!siteSession.isExpired(watermarkMillis)) {
+                break;
+            }
+            iterator.remove();
+            onExpired.accept(siteSession);
+            expired++;
+        }
+        return expired;
+    }
+}
@@ -0,0 +1,56 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.List;
+
+/**
+ * A page of a user's finished sessions, in session end order, with the token to fetch the next.
+ * <p>
+ * The token encodes the end of the last session on the page, the clustering key of "query2",
+ * so the next page starts straight after it whatever was written in between. Clients should
+ * treat it as opaque.
+ */
+public class SessionPage {
+
+    private final List<SessionSummary> sessions;
+    private final String nextPageToken;
+
+    public SessionPage(List<SessionSummary> sessions, String nextPageToken) {
+        this.sessions = sessions;
+        this.nextPageToken = nextPageToken;
+    }
+
+    public List<SessionSummary> getSessions() {
+        return sessions;
+    }
+
+    /**
+     * @return the token for the following page, or null if this is the last
+     */
+    public String getNextPageToken() {
+        return nextPageToken;
+    }
+
+    /**
+     * @param lastSessionEndMillis the end of the last session on a page
+     * @return the token to continue after it
+     */
+    static String encodeToken(long lastSessionEndMillis) {
+        final byte[] bytes = ByteBuffer.allocate(8).putLong(lastSessionEndMillis).array();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+    }
+
+    /**
+     * @param pageToken a token from encodeToken
+     * @return the end of the last session on the previous page
+     * @throws IllegalArgumentException if the token is malformed
+     */
+    static long decodeToken(String pageToken) {
+        final byte[] bytes = Base64.getUrlDecoder().decode(pageToken);
+        if(bytes.length != 8) {
+            throw new IllegalArgumentException("invalid page token: "+pageToken);
+        }
+        return ByteBuffer.wrap(bytes).getLong();
+    }
+}
@@ -0,0 +1,28 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+/**
+ * Read only view of the state of a user session, as needed to write it out once it has expired.
+ * Implemented by SiteSession, and by the flyweight accessors of off heap SessionStores, which
+ * are only valid for the duration of the callback they are passed to.
+ */
+public interface SessionState {
+
+    String getId();
+
+    /**
+     * @return the time of the first hit in the session, in milliseconds since unix epoch
+     */
+    long getFirstHitMillis();
+
+    /**
+     * @return the time of the last hit in the session, in milliseconds since unix epoch
+     */
+    long getLastHitMillis();
+
+    long getHitCount();
+
+    /**
+     * @return the distinct url sketch of the session. Off heap stores return a new copy on each call
+     */
+    SparseHyperLogLog getSketch();
+}
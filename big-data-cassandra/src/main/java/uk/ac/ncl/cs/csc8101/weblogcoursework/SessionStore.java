@@ -0,0 +1,54 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.function.Consumer;
+
+/**
+ * The open user sessions of a MessageHandler, ordered by last hit so expired ones are found first.
+ * <p>
+ * OnHeapSessionStore keeps a SiteSession object per user. OffHeapSessionStore keeps the same state
+ * in direct memory slabs, so a large client base with long idle windows puts no load on the garbage
+ * collector. Which one is used is chosen per deployment, see KafkaConsumer.
+ * <p>
+ * Implementations are not thread safe, use one per MessageHandler.
+ */
+public interface SessionStore {
+
+    /**
+     * Adds a hit to the open session of a user, or opens a new session for it.
+     * Hits are expected in time order and expired sessions are expected to have been removed
+     * by expire first.
+     *
+     * @param id the session id
+     * @param hitMillis the time of the hit, in milliseconds since unix epoch
+     * @param hashedUrl the url of the hit, hashed as by MurmurHash.hash(Object)
+     *
+     * @throws java.lang.IllegalArgumentException if the hit is out of order or after the session's timeout
+     */
+    void hit(String id, long hitMillis, int hashedUrl);
+
+    /**
+     * Adds an open session as it was, e.g. from a checkpoint. The session is ordered as the most
+     * recently hit, so it is expected to be followed by a hit for it, and not to have expired.
+     *
+     * @param session the session, which must not be open in this store already
+     */
+    void restore(SessionState session);
+
+    /**
+     * Removes every session whose idle time at the given watermark exceeds SiteSession.MAX_IDLE_MS.
+     *
+     * @param watermarkMillis the event time, in milliseconds since unix epoch
+     * @param onExpired receives each expired session, in order of last hit
+     * @return the number of sessions expired
+     */
+    int expire(long watermarkMillis, Consumer<SessionState> onExpired);
+
+    /**
+     * Visits every open session, in order of last hit, without removing them.
+     *
+     * @param visitor receives each session
+     */
+    void forEach(Consumer<SessionState> visitor);
+
+    int size();
+}
@@ -0,0 +1,43 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.Date;
+
+/**
+ * A finished user session, as stored in the "query2" table.
+ */
+public class SessionSummary {
+
+    private final String userId;
+    private final Date sessionStart;
+    private final Date sessionEnd;
+    private final long accessCount;
+    private final long distinctUrls;
+
+    public SessionSummary(String userId, Date sessionStart, Date sessionEnd, long accessCount, long distinctUrls) {
+        this.userId = userId;
+        this.sessionStart = sessionStart;
+        this.sessionEnd = sessionEnd;
+        this.accessCount = accessCount;
+        this.distinctUrls = distinctUrls;
+    }
+
+    public String getUserId() {
+        return userId;
+    }
+
+    public Date getSessionStart() {
+        return sessionStart;
+    }
+
+    public Date getSessionEnd() {
+        return sessionEnd;
+    }
+
+    public long getAccessCount() {
+        return accessCount;
+    }
+
+    public long getDistinctUrls() {
+        return distinctUrls;
+    }
+}
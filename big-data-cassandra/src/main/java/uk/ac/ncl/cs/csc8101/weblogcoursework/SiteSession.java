@@ -15,6 +15,7 @@ limitations under the License.
  */
 package uk.ac.ncl.cs.csc8101.weblogcoursework;
 
+import com.clearspring.analytics.hash.MurmurHash;
 import com.clearspring.analytics.stream.cardinality.HyperLogLog;
 
 import java.util.concurrent.TimeUnit;
@@ -25,9 +26,10 @@ import java.util.concurrent.TimeUnit;
  * @author Jonathan Halliday (jonathan.halliday@redhat.com)
  * @since 2014-01
  */
-public class SiteSession {
+public class SiteSession implements SessionState {
 
     public static long MAX_IDLE_MS = TimeUnit.MINUTES.toMillis(30);
+    public static final double SKETCH_RSD = 0.05;
     private static ThreadLocal<Long> globalLastHitMillis = new ThreadLocal<Long>(){
         @Override
         protected Long initialValue() {
@@ -40,7 +42,7 @@ public class SiteSession {
     private long lastHitMillis;
     private long hitCount = 0;
 
-    private final HyperLogLog hyperLogLog = new HyperLogLog(0.05);
+    private final SparseHyperLogLog sketch;
 
     /**
      * Creates a new SiteSession instance based on its first hit.
@@ -50,29 +52,74 @@ public class SiteSession {
      * @param url the url of the first hit
      */
     public SiteSession(String id, long firstHitMillis, String url) {
+        this(id, firstHitMillis, MurmurHash.hash(url));
+    }
+
+    /**
+     * Creates a new SiteSession instance based on its first hit.
+     *
+     * @param id the session id
+     * @param firstHitMillis the time of the first hit in the session, in milliseconds since unix epoch
+     * @param hashedUrl the url of the first hit, hashed as by MurmurHash.hash(Object)
+     */
+    public SiteSession(String id, long firstHitMillis, int hashedUrl) {
+        this.id = id;
+        this.firstHitMillis = firstHitMillis;
+        this.sketch = new SparseHyperLogLog(SKETCH_RSD);
+        updateHashed(firstHitMillis, hashedUrl);
+    }
+
+    /**
+     * Recreates an open session as it was, e.g. from a checkpoint. Unlike a hit this does not
+     * advance the global clock.
+     *
+     * @param id the session id
+     * @param firstHitMillis the time of the first hit in the session, in milliseconds since unix epoch
+     * @param lastHitMillis the time of the last hit in the session, in milliseconds since unix epoch
+     * @param hitCount the number of hits in the session
+     * @param sketch the distinct url sketch of the session, which is taken over rather than copied
+     */
+    public SiteSession(String id, long firstHitMillis, long lastHitMillis, long hitCount, SparseHyperLogLog sketch) {
         this.id = id;
         this.firstHitMillis = firstHitMillis;
-        update(firstHitMillis, url);
+        this.lastHitMillis = lastHitMillis;
+        this.hitCount = hitCount;
+        this.sketch = sketch;
     }
 
+    @Override
     public String getId() {
         return id;
     }
 
+    @Override
     public long getFirstHitMillis() {
         return firstHitMillis;
     }
 
+    @Override
     public long getLastHitMillis() {
         return lastHitMillis;
     }
 
+    @Override
     public long getHitCount() {
         return hitCount;
     }
 
+    /**
+     * @return the distinct url sketch, which stays sparse while the session has touched few urls
+     */
+    @Override
+    public SparseHyperLogLog getSketch() {
+        return sketch;
+    }
+
+    /**
+     * @return a dense copy of the distinct url sketch
+     */
     public HyperLogLog getHyperLogLog() {
-        return hyperLogLog;
+        return sketch.toHyperLogLog();
     }
 
     /**
@@ -85,6 +132,20 @@ public class SiteSession {
      * or after the session's timeout
      */
     public void update(long hitMillis, String url) {
+        updateHashed(hitMillis, MurmurHash.hash(url));
+    }
+
+    /**
+     * Modify the session by adding a new hit, for which the url has already been hashed
+     * e.g. by UrlDictionary.
+     *
+     * @param hitMillis the time of the hit in the session, in milliseconds since unix epoch
+     * @param hashedUrl the url of the hit, hashed as by MurmurHash.hash(Object)
+     *
+     * @throws java.lang.IllegalArgumentException if the time is less than the global max
+     * or after the session's timeout
+     */
+    public void updateHashed(long hitMillis, int hashedUrl) {
 
         if(lastHitMillis > 0 && lastHitMillis+MAX_IDLE_MS < hitMillis) {
             System.out.println("HIT: " + hitMillis);
@@ -100,7 +161,7 @@ public class SiteSession {
         globalLastHitMillis.set(hitMillis);
 
         hitCount++;
-        hyperLogLog.offer(url);
+        sketch.offerHashed(hashedUrl);
     }
 
     /**
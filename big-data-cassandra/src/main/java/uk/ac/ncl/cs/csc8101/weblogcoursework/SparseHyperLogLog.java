@@ -0,0 +1,348 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import com.clearspring.analytics.stream.cardinality.RegisterSet;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * HyperLogLog with the HLL++ sparse-then-dense representation.
+ * <p>
+ * Most sessions touch only a handful of urls, so registers start out as a sorted array of
+ * (index, value) entries, holding only the non zero registers. Once that would be larger than
+ * the dense register array the sketch converts to a dense RegisterSet.
+ * <p>
+ * Hashing, register layout and estimation are exactly those of stream-lib's HyperLogLog with the same
+ * relative standard deviation, so estimates match and sketches stay mergeable with HyperLogLogs already
+ * serialized into the "query3" table. (stream-lib's own HyperLogLogPlus uses a different hash and can't be
+ * merged with those.) Sparse sketches are serialized in a compact varint format; dense ones in the
+ * existing length prefixed HyperLogLog format, so either can be read back by fromByteBuffer.
+ * <p>
+ * Instances are not thread safe.
+ */
+public class SparseHyperLogLog {
+
+    // first int of the serialized form. The existing format starts with a non negative length
+    private static final int SPARSE_FORMAT_MARKER = -1;
+
+    private final int log2m;
+    private final int count;
+    private final int sparseLimit;
+
+    // non zero registers, as (index << 8 | value), sorted by index. null once dense
+    private int[] sparseEntries = new int[4];
+    private int sparseSize = 0;
+    private RegisterSet registerSet = null;
+
+    /**
+     * @param rsd the relative standard deviation, as for HyperLogLog(double)
+     */
+    public SparseHyperLogLog(double rsd) {
+        this(log2m(rsd));
+    }
+
+    public SparseHyperLogLog(int log2m) {
+        this.log2m = log2m;
+        this.count = 1 << log2m;
+        // convert when the entries would take as many ints as the dense registers
+        final int bits = RegisterSet.getBits(count);
+        this.sparseLimit = bits == 0 ? 1 : (bits % Integer.SIZE == 0 ? bits : bits + 1);
+    }
+
+    private SparseHyperLogLog(int log2m, RegisterSet registerSet) {
+        this(log2m);
+        this.sparseEntries = null;
+        this.registerSet = registerSet;
+    }
+
+    private static int log2m(double rsd) {
+        return (int) (Math.log((1.106 / rsd) * (1.106 / rsd)) / Math.log(2));
+    }
+
+    public int getLog2m() {
+        return log2m;
+    }
+
+    public boolean isSparse() {
+        return registerSet == null;
+    }
+
+    public boolean offer(Object o) {
+        return offerHashed(MurmurHash.hash(o));
+    }
+
+    /**
+     * @param hashedValue the value hashed as by MurmurHash.hash(Object)
+     * @return true if a register changed
+     */
+    public boolean offerHashed(int hashedValue) {
+        return updateRegister(registerIndex(log2m, hashedValue), registerValue(log2m, hashedValue));
+    }
+
+    /**
+     * @return the register a hashed value is offered to, in a sketch of the given size
+     */
+    static int registerIndex(int log2m, int hashedValue) {
+        return hashedValue >>> (Integer.SIZE - log2m);
+    }
+
+    /**
+     * @return the register value a hashed value offers, in a sketch of the given size
+     */
+    static int registerValue(int log2m, int hashedValue) {
+        return Integer.numberOfLeadingZeros((hashedValue << log2m) | (1 << (log2m - 1)) + 1) + 1;
+    }
+
+    /**
+     * Raises a register to the given value, if it is lower.
+     *
+     * @return true if the register changed
+     */
+    boolean updateRegister(int index, int value) {
+        if(registerSet != null) {
+            return registerSet.updateIfGreater(index, value);
+        }
+        return updateSparse(index, value);
+    }
+
+    private boolean updateSparse(int index, int value) {
+        final int position = findSparse(index);
+        if(position >= 0) {
+            if((sparseEntries[position] & 0xFF) >= value) {
+                return false;
+            }
+            sparseEntries[position] = index << 8 | value;
+            return true;
+        }
+
+        if(sparseSize == sparseLimit) {
+            toDense();
+            return registerSet.updateIfGreater(index, value);
+        }
+
+        final int insertAt = -position - 1;
+        if(sparseSize == sparseEntries.length) {
+            sparseEntries = Arrays.copyOf(sparseEntries, Math.min(sparseLimit, sparseSize*2));
+        }
+        System.arraycopy(sparseEntries, insertAt, sparseEntries, insertAt+1, sparseSize-insertAt);
+        sparseEntries[insertAt] = index << 8 | value;
+        sparseSize++;
+        return true;
+    }
+
+    private int findSparse(int index) {
+        int low = 0;
+        int high = sparseSize-1;
+        while(low <= high) {
+            final int middle = (low + high) >>> 1;
+            final int middleIndex = sparseEntries[middle] >>> 8;
+            if(middleIndex < index) {
+                low = middle+1;
+            } else if(middleIndex > index) {
+                high = middle-1;
+            } else {
+                return middle;
+            }
+        }
+        return -(low + 1);
+    }
+
+    private void toDense() {
+        final RegisterSet dense = new RegisterSet(count);
+        for(int i = 0; i < sparseSize; i++) {
+            dense.set(sparseEntries[i] >>> 8, sparseEntries[i] & 0xFF);
+        }
+        registerSet = dense;
+        sparseEntries = null;
+        sparseSize = 0;
+    }
+
+    /**
+     * @return the value of a register, 0 if it has never been raised
+     */
+    int getRegister(int index) {
+        if(registerSet != null) {
+            return registerSet.get(index);
+        }
+        final int position = findSparse(index);
+        return position < 0 ? 0 : sparseEntries[position] & 0xFF;
+    }
+
+    /**
+     * @return the estimate, identical to that of the equivalent HyperLogLog
+     */
+    public long cardinality() {
+        // sum in register order, as HyperLogLog does, so the floating point result is identical
+        double registerSum = 0;
+        double zeros = 0.0;
+        int nextSparse = 0;
+        for(int j = 0; j < count; j++) {
+            final int value;
+            if(registerSet != null) {
+                value = registerSet.get(j);
+            } else if(nextSparse < sparseSize && (sparseEntries[nextSparse] >>> 8) == j) {
+                value = sparseEntries[nextSparse++] & 0xFF;
+            } else {
+                value = 0;
+            }
+            registerSum += 1.0 / (1 << value);
+            if(value == 0) {
+                zeros++;
+            }
+        }
+
+        final double estimate = alphaMM() * (1 / registerSum);
+        if(estimate <= (5.0 / 2.0) * count) {
+            return Math.round(count * Math.log(count / zeros));
+        } else {
+            return Math.round(estimate);
+        }
+    }
+
+    private double alphaMM() {
+        switch (log2m) {
+            case 4:
+                return 0.673 * count * count;
+            case 5:
+                return 0.697 * count * count;
+            case 6:
+                return 0.709 * count * count;
+            default:
+                return (0.7213 / (1 + 1.079 / count)) * count * count;
+        }
+    }
+
+    /**
+     * Merges another sketch into this one.
+     *
+     * @param other a sketch of the same size
+     */
+    public void addAll(SparseHyperLogLog other) throws CardinalityMergeException {
+        if(other.log2m != log2m) {
+            throw new SparseHyperLogLogMergeException("Cannot merge sketches of different sizes");
+        }
+
+        if(other.registerSet != null) {
+            if(registerSet == null) {
+                toDense();
+            }
+            registerSet.merge(other.registerSet);
+            return;
+        }
+
+        for(int i = 0; i < other.sparseSize; i++) {
+            final int entry = other.sparseEntries[i];
+            if(registerSet != null) {
+                registerSet.updateIfGreater(entry >>> 8, entry & 0xFF);
+            } else {
+                updateSparse(entry >>> 8, entry & 0xFF);
+            }
+        }
+    }
+
+    /**
+     * @return a new dense HyperLogLog with the same registers
+     */
+    public HyperLogLog toHyperLogLog() {
+        final RegisterSet copy = new RegisterSet(count);
+        for(int j = 0; j < count; j++) {
+            final int value = getRegister(j);
+            if(value != 0) {
+                copy.set(j, value);
+            }
+        }
+        return new HyperLogLog(log2m, copy);
+    }
+
+    /**
+     * Serializes the sketch. Sparse sketches are written as the marker, log2m and a varint count
+     * followed by varint index deltas and register values. Dense sketches are written in the existing
+     * "query3" format i.e. the length of HyperLogLog#getBytes followed by those bytes.
+     *
+     * @return the serialized form, ready to read
+     */
+    public ByteBuffer toByteBuffer() throws IOException {
+        if(registerSet != null) {
+            final byte[] bytes = toHyperLogLog().getBytes();
+            final ByteBuffer byteBuffer = ByteBuffer.allocate(4+bytes.length);
+            byteBuffer.putInt(bytes.length);
+            byteBuffer.put(bytes);
+            byteBuffer.flip();
+            return byteBuffer;
+        }
+
+        final ByteBuffer byteBuffer = ByteBuffer.allocate(4 + 1 + 5 + sparseSize*4);
+        byteBuffer.putInt(SPARSE_FORMAT_MARKER);
+        byteBuffer.put((byte)log2m);
+        putVarint(byteBuffer, sparseSize);
+        int previousIndex = 0;
+        for(int i = 0; i < sparseSize; i++) {
+            final int index = sparseEntries[i] >>> 8;
+            putVarint(byteBuffer, index - previousIndex);
+            byteBuffer.put((byte)(sparseEntries[i] & 0xFF));
+            previousIndex = index;
+        }
+        byteBuffer.flip();
+        return byteBuffer;
+    }
+
+    /**
+     * Reads a sketch written by toByteBuffer, or a HyperLogLog in the existing "query3" format.
+     *
+     * @param byteBuffer the serialized form
+     * @return the sketch
+     */
+    public static SparseHyperLogLog fromByteBuffer(ByteBuffer byteBuffer) throws IOException {
+        final ByteBuffer buffer = byteBuffer.duplicate();
+        final int header = buffer.getInt();
+
+        if(header != SPARSE_FORMAT_MARKER) {
+            // int log2m, int byte length of registers, register words
+            final int log2m = buffer.getInt();
+            final int[] words = new int[buffer.getInt() / 4];
+            for(int i = 0; i < words.length; i++) {
+                words[i] = buffer.getInt();
+            }
+            return new SparseHyperLogLog(log2m, new RegisterSet(1 << log2m, words));
+        }
+
+        final SparseHyperLogLog sketch = new SparseHyperLogLog(buffer.get());
+        final int size = getVarint(buffer);
+        int index = 0;
+        for(int i = 0; i < size; i++) {
+            index += getVarint(buffer);
+            sketch.updateSparse(index, buffer.get());
+        }
+        return sketch;
+    }
+
+    private static void putVarint(ByteBuffer byteBuffer, int value) {
+        while((value & ~0x7F) != 0) {
+            byteBuffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        byteBuffer.put((byte)value);
+    }
+
+    private static int getVarint(ByteBuffer byteBuffer) throws IOException {
+        int value = 0;
+        for(int shift = 0; shift < 32; shift += 7) {
+            final byte b = byteBuffer.get();
+            value |= (b & 0x7F) << shift;
+            if((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    protected static class SparseHyperLogLogMergeException extends CardinalityMergeException {
+        public SparseHyperLogLogMergeException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,29 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.Statement;
+
+import java.util.Map;
+
+/**
+ * Where a MessageHandler sends its writes. AsyncWriter issues them from the calling thread,
+ * WriteStage hands them to writer threads of their own.
+ */
+public interface StatementWriter {
+
+    /**
+     * Issues a write, waiting if too many are outstanding.
+     *
+     * @param statement the write
+     */
+    void execute(Statement statement) throws InterruptedException;
+
+    /**
+     * Waits for all the writes issued so far to complete.
+     */
+    void awaitOutstanding() throws InterruptedException;
+
+    /**
+     * @return the number of writes dropped after exhausting their retries, keyed by query string
+     */
+    Map<String, Long> getFailureCounts();
+}
@@ -0,0 +1,192 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.TimeZone;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Generates log lines in the coursework format, client_id [dd/MMM/yyyy:HH:mm:ss z] "GET url HTTP/1.0" status size,
+ * for load testing without the real log file. The same seed always gives the same lines.
+ * <p>
+ * Each client alternates between sessions, with hits a few seconds to minutes apart, and idle periods
+ * longer than the session timeout. A small share of the clients are heavy hitters, such as proxies and
+ * crawlers, with short gaps and long sessions. Urls are drawn with Zipfian popularity. Lines are produced
+ * in time order by always taking the client whose next hit is earliest.
+ * <p>
+ * Instances are not thread safe.
+ * <p>
+ * Usage: SyntheticLogGenerator outFile.gz lines [seed]
+ */
+public class SyntheticLogGenerator {
+
+    // 30/Apr/1998:21:00:00 +0000
+    public static final long DEFAULT_START_MILLIS = 893970000000L;
+
+    private static final int DEFAULT_CLIENTS = 50000;
+    private static final int DEFAULT_URLS = 20000;
+    private static final double URL_ZIPF_EXPONENT = 1.0;
+    // one client in this many is a heavy hitter
+    private static final int HEAVY_HITTER_RATIO = 200;
+
+    private static final double MEAN_HIT_GAP_MILLIS = 20000;
+    private static final double MEAN_HEAVY_HIT_GAP_MILLIS = 500;
+    private static final double MEAN_SESSION_HITS = 12;
+    private static final double MEAN_HEAVY_SESSION_HITS = 2000;
+    private static final double MEAN_IDLE_MILLIS = 4*60*60*1000;
+
+    private static final String[] DIRECTORIES = {"/english/", "/french/", "/images/", "/english/news/", "/french/news/"};
+    private static final String[] EXTENSIONS = {".html", ".htm", ".gif", ".jpg"};
+
+    private final Random random;
+    // cumulative url probabilities, by popularity rank
+    private final double[] urlCdf;
+    private final PriorityQueue<Client> clients;
+
+    private final SimpleDateFormat format = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.ENGLISH);
+    private long formattedSecond = Long.MIN_VALUE;
+    private String timestamp;
+
+    /**
+     * Generates lines for the default numbers of clients and urls, from 30 Apr 1998.
+     *
+     * @param seed the seed of the random choices
+     */
+    public SyntheticLogGenerator(long seed) {
+        this(seed, DEFAULT_CLIENTS, DEFAULT_URLS, DEFAULT_START_MILLIS);
+    }
+
+    /**
+     * @param seed the seed of the random choices
+     * @param clientCount the number of distinct clients
+     * @param urlCount the number of distinct urls
+     * @param startMillis the time of the first possible hit, in milliseconds since unix epoch
+     */
+    public SyntheticLogGenerator(long seed, int clientCount, int urlCount, long startMillis) {
+        this.random = new Random(seed);
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+
+        urlCdf = new double[urlCount];
+        double total = 0;
+        for(int i = 0; i < urlCount; i++) {
+            total += 1/Math.pow(i+1, URL_ZIPF_EXPONENT);
+            urlCdf[i] = total;
+        }
+        for(int i = 0; i < urlCount; i++) {
+            urlCdf[i] /= total;
+        }
+
+        clients = new PriorityQueue<>(clientCount);
+        for(int i = 0; i < clientCount; i++) {
+            final Client client = new Client(Integer.toString(i), i % HEAVY_HITTER_RATIO == 0);
+            // spread the first sessions over an idle period, so they don't all start together
+            client.nextHitMillis = startMillis + (long)(random.nextDouble()*MEAN_IDLE_MILLIS);
+            client.sessionHitsLeft = sessionHits(client);
+            clients.add(client);
+        }
+    }
+
+    /**
+     * @return the next line, in time order, without a line terminator
+     */
+    public String next() {
+        final Client client = clients.poll();
+        final long hitMillis = client.nextHitMillis;
+
+        if(--client.sessionHitsLeft > 0) {
+            client.nextHitMillis += 1+exponential(client.heavy ? MEAN_HEAVY_HIT_GAP_MILLIS : MEAN_HIT_GAP_MILLIS);
+        } else {
+            client.nextHitMillis += SiteSession.MAX_IDLE_MS+1+exponential(MEAN_IDLE_MILLIS);
+            client.sessionHitsLeft = sessionHits(client);
+        }
+        clients.add(client);
+
+        final int status = random.nextInt(10) < 7 ? 200 : random.nextInt(10) < 9 ? 304 : 404;
+        return client.id+" ["+timestamp(hitMillis)+"] \"GET "+url(nextUrlRank())+" HTTP/1.0\" "
+                +status+" "+(status == 200 ? random.nextInt(20000) : 0);
+    }
+
+    private int sessionHits(Client client) {
+        return 1+(int)exponential((client.heavy ? MEAN_HEAVY_SESSION_HITS : MEAN_SESSION_HITS)-1);
+    }
+
+    private double exponential(double mean) {
+        return -mean*Math.log(1-random.nextDouble());
+    }
+
+    private int nextUrlRank() {
+        final double uniform = random.nextDouble();
+        int low = 0;
+        int high = urlCdf.length-1;
+        while(low < high) {
+            final int middle = (low+high) >>> 1;
+            if(urlCdf[middle] < uniform) {
+                low = middle+1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private String timestamp(long millis) {
+        if(millis/1000 != formattedSecond) {
+            formattedSecond = millis/1000;
+            timestamp = format.format(new Date(formattedSecond*1000));
+        }
+        return timestamp;
+    }
+
+    private static String url(int rank) {
+        return DIRECTORIES[rank % DIRECTORIES.length]+"page"+rank+EXTENSIONS[(rank/DIRECTORIES.length) % EXTENSIONS.length];
+    }
+
+    public static void main(String[] args) throws IOException {
+
+        // mvn exec:java -Dexec.mainClass=uk.ac.ncl.cs.csc8101.weblogcoursework.SyntheticLogGenerator -Dexec.args="synthetic.gz 10000000"
+
+        if(args.length < 2) {
+            System.err.println("usage: SyntheticLogGenerator outFile.gz lines [seed]");
+            System.exit(1);
+        }
+        final long lines = Long.parseLong(args[1]);
+        final long seed = args.length > 2 ? Long.parseLong(args[2]) : 0;
+
+        final SyntheticLogGenerator generator = new SyntheticLogGenerator(seed);
+        try (
+                final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                        new GZIPOutputStream(new FileOutputStream(args[0]), 1024*1024), StandardCharsets.US_ASCII))
+        ) {
+            for(long i = 0; i < lines; i++) {
+                writer.write(generator.next());
+                writer.write('\n');
+            }
+        }
+    }
+
+    private static class Client implements Comparable<Client> {
+        private final String id;
+        private final boolean heavy;
+        private long nextHitMillis;
+        private int sessionHitsLeft;
+
+        private Client(String id, boolean heavy) {
+            this.id = id;
+            this.heavy = heavy;
+        }
+
+        @Override
+        public int compareTo(Client other) {
+            return Long.compare(nextHitMillis, other.nextHitMillis);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Plans the reads covering an hour range with the fewest buckets: whole weeks where the range
+ * spans them, whole days at the edges of those, and single hours at the outermost edges.
+ * Rollups are only written once their last hour closes, so coarse buckets are only used
+ * for the part of the range before the closed hour watermark.
+ */
+public class TimeRangePlan {
+
+    private static final TimeResolution[] COARSE_TO_FINE = {TimeResolution.WEEK, TimeResolution.DAY, TimeResolution.HOUR};
+
+    /**
+     * A run of consecutive buckets of one resolution.
+     */
+    public static class Span {
+        private final TimeResolution resolution;
+        private final long firstBucket;
+        private final long lastBucket;
+
+        public Span(TimeResolution resolution, long firstBucket, long lastBucket) {
+            this.resolution = resolution;
+            this.firstBucket = firstBucket;
+            this.lastBucket = lastBucket;
+        }
+
+        public TimeResolution getResolution() {
+            return resolution;
+        }
+
+        public long getFirstBucket() {
+            return firstBucket;
+        }
+
+        /**
+         * @return the last bucket, inclusive
+         */
+        public long getLastBucket() {
+            return lastBucket;
+        }
+
+        @Override
+        public String toString() {
+            return resolution+" "+firstBucket+"-"+lastBucket;
+        }
+    }
+
+    /**
+     * @param startHour the first hour, as hours since unix epoch
+     * @param endHour the last hour, inclusive
+     * @param closedBeforeHour the hour before which rollups are complete
+     * @return the spans covering the range exactly once, in time order
+     */
+    public static List<Span> plan(long startHour, long endHour, long closedBeforeHour) {
+        if(endHour < startHour) {
+            return Collections.emptyList();
+        }
+        final List<Span> spans = new ArrayList<>();
+        plan(startHour, endHour, closedBeforeHour, 0, spans);
+        return spans;
+    }
+
+    private static void plan(long startHour, long endHour, long closedBeforeHour, int level, List<Span> spans) {
+        if(endHour < startHour) {
+            return;
+        }
+
+        final TimeResolution resolution = COARSE_TO_FINE[level];
+        if(resolution == TimeResolution.HOUR) {
+            spans.add(new Span(resolution, startHour, endHour));
+            return;
+        }
+
+        // the whole buckets inside the range and before the watermark
+        final long coarseEndHour = closedBeforeHour <= startHour ? startHour-1 : Math.min(endHour, closedBeforeHour-1);
+        long firstBucket = resolution.bucketOf(startHour);
+        if(resolution.firstHour(firstBucket) < startHour) {
+            firstBucket++;
+        }
+        final long lastBucket = coarseEndHour < startHour ? firstBucket-1 : resolution.bucketOf(coarseEndHour+1)-1;
+
+        if(firstBucket > lastBucket) {
+            plan(startHour, endHour, closedBeforeHour, level+1, spans);
+            return;
+        }
+        plan(startHour, resolution.firstHour(firstBucket)-1, closedBeforeHour, level+1, spans);
+        spans.add(new Span(resolution, firstBucket, lastBucket));
+        plan(resolution.firstHour(lastBucket+1), endHour, closedBeforeHour, level+1, spans);
+    }
+}
@@ -0,0 +1,62 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+/**
+ * The time buckets url access counts are kept in, each in its own table.
+ * Buckets are numbered from the unix epoch; weeks start on Monday.
+ */
+public enum TimeResolution {
+
+    HOUR(1, 0, "query1_hourly", "hour"),
+    DAY(24, 0, "query1_daily", "day"),
+    // the epoch was a Thursday, so shift by three days to start weeks on Monday
+    WEEK(24*7, 24*3, "query1_weekly", "week");
+
+    private final int hours;
+    private final int offsetHours;
+    private final String table;
+    private final String column;
+
+    TimeResolution(int hours, int offsetHours, String table, String column) {
+        this.hours = hours;
+        this.offsetHours = offsetHours;
+        this.table = table;
+        this.column = column;
+    }
+
+    /**
+     * @return the length of a bucket, in hours
+     */
+    public int getHours() {
+        return hours;
+    }
+
+    /**
+     * @return the table holding the counts at this resolution
+     */
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @return the clustering column holding the bucket number
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * @param hour hours since unix epoch
+     * @return the bucket containing the hour
+     */
+    public long bucketOf(long hour) {
+        return Math.floorDiv(hour + offsetHours, hours);
+    }
+
+    /**
+     * @param bucket a bucket number
+     * @return the first hour of the bucket, as hours since unix epoch
+     */
+    public long firstHour(long bucket) {
+        return bucket*hours - offsetHours;
+    }
+}
@@ -0,0 +1,182 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.hash.MurmurHash;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns dense int ids to lower cased urls, so the hot path can count and key on primitives
+ * instead of hashing and comparing Strings.
+ * <p>
+ * The dictionary is shared by all consumer threads, so ids are consistent across them. Lookups of
+ * known urls are lock free; only the assignment of a new id takes the monitor. Each thread should
+ * put a Local in front of it, which resolves raw log line bytes to ids without materializing a String.
+ * The MurmurHash of each url is computed once here, so sessions can offer it to their sketches directly.
+ * <p>
+ * Memory is proportional to the number of distinct urls, which for a single site's logs is small
+ * next to the number of hits.
+ */
+public class UrlDictionary {
+
+    private final ConcurrentHashMap<String, Integer> ids = new ConcurrentHashMap<>();
+
+    // indexed by id. Replaced, never modified in place past size, so readers need no lock
+    private volatile String[] urls = new String[1024];
+    private volatile int[] hashedValues = new int[1024];
+    private int size = 0;
+
+    /**
+     * @param url the lower cased url
+     * @return the id of the url, assigning a new one if required
+     */
+    public int idFor(String url) {
+        final Integer id = ids.get(url);
+        if(id != null) {
+            return id;
+        }
+        return assign(url);
+    }
+
+    private synchronized int assign(String url) {
+        final Integer existing = ids.get(url);
+        if(existing != null) {
+            return existing;
+        }
+
+        final int id = size;
+        String[] newUrls = urls;
+        int[] newHashedValues = hashedValues;
+        if(id == newUrls.length) {
+            newUrls = Arrays.copyOf(newUrls, id*2);
+            newHashedValues = Arrays.copyOf(newHashedValues, id*2);
+        }
+        newUrls[id] = url;
+        newHashedValues[id] = MurmurHash.hash(url);
+        hashedValues = newHashedValues;
+        urls = newUrls;
+        size++;
+
+        // publishes the array entries to threads that later look the url up
+        ids.put(url, id);
+        return id;
+    }
+
+    /**
+     * @param id an id returned by this dictionary
+     * @return the lower cased url
+     */
+    public String getUrl(int id) {
+        return urls[id];
+    }
+
+    /**
+     * @param id an id returned by this dictionary
+     * @return the url hashed as by MurmurHash.hash(Object), for offering to a sketch
+     */
+    public int getHashedValue(int id) {
+        return hashedValues[id];
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return a new front end for use by a single thread
+     */
+    public Local newLocal() {
+        return new Local();
+    }
+
+    /**
+     * Per thread front end to the dictionary, keyed on raw url bytes.
+     * Urls seen before by the thread resolve with no allocation and no shared state.
+     * Instances are not thread safe.
+     */
+    public class Local {
+
+        private byte[][] slotKeys = new byte[1024][];
+        private int[] slotHashes = new int[1024];
+        private int[] slotIds = new int[1024];
+        private int size = 0;
+
+        private Local() {}
+
+        /**
+         * @param bytes the buffer holding the url
+         * @param offset the start of the url in the buffer
+         * @param length the length of the url
+         * @return the id of the url, compared case insensitively
+         */
+        public int idFor(byte[] bytes, int offset, int length) {
+            int hash = 0;
+            for(int i = offset; i < offset+length; i++) {
+                hash = 31*hash + toLowerCase(bytes[i]);
+            }
+            hash ^= hash >>> 16;
+
+            final int mask = slotKeys.length-1;
+            int slot = hash & mask;
+            byte[] key;
+            while((key = slotKeys[slot]) != null) {
+                if(slotHashes[slot] == hash && matches(key, bytes, offset, length)) {
+                    return slotIds[slot];
+                }
+                slot = (slot+1) & mask;
+            }
+
+            final byte[] lowerCased = new byte[length];
+            for(int i = 0; i < length; i++) {
+                lowerCased[i] = toLowerCase(bytes[offset+i]);
+            }
+            final int id = UrlDictionary.this.idFor(new String(lowerCased, StandardCharsets.ISO_8859_1));
+
+            slotKeys[slot] = lowerCased;
+            slotHashes[slot] = hash;
+            slotIds[slot] = id;
+            if(++size*2 > slotKeys.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private boolean matches(byte[] key, byte[] bytes, int offset, int length) {
+            if(key.length != length) {
+                return false;
+            }
+            for(int i = 0; i < length; i++) {
+                if(key[i] != toLowerCase(bytes[offset+i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void rehash() {
+            final byte[][] oldKeys = slotKeys;
+            final int[] oldHashes = slotHashes;
+            final int[] oldIds = slotIds;
+            slotKeys = new byte[oldKeys.length*2][];
+            slotHashes = new int[oldKeys.length*2];
+            slotIds = new int[oldKeys.length*2];
+            final int mask = slotKeys.length-1;
+            for(int i = 0; i < oldKeys.length; i++) {
+                if(oldKeys[i] != null) {
+                    int slot = oldHashes[i] & mask;
+                    while(slotKeys[slot] != null) {
+                        slot = (slot+1) & mask;
+                    }
+                    slotKeys[slot] = oldKeys[i];
+                    slotHashes[slot] = oldHashes[i];
+                    slotIds[slot] = oldIds[i];
+                }
+            }
+        }
+    }
+
+    private static byte toLowerCase(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte)(b + ('a'-'A')) : b;
+    }
+}
@@ -0,0 +1,379 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.membership.BloomFilter;
+import com.datastax.driver.core.*;
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+/**
+ * Bounded write-behind cache of per-user distinct url sketches backing the "query3" table.
+ * <p>
+ * Expired sessions are merged into the cached sketch locally. Dirty sketches are written
+ * back asynchronously when evicted, when they have been dirty for longer than the write-behind
+ * delay (in event time), or on flush. A Bloom filter of users known to have a stored row means
+ * first time users never need a read at all. For the rest the read is issued asynchronously
+ * and only waited on when the sketch is written back, by which time it has usually completed.
+ * A failed read is issued again and the sketch stays dirty, unwritten, until one succeeds, as
+ * writing it without the stored sketch would replace the user's history.
+ * <p>
+ * A sketch evicted while its write may still be held back or in flight is kept aside until the
+ * writes are known to have completed, see writesCompleted, and taken back if its user returns
+ * before then, as a read could still see the row it replaces. Each write carries a version, used
+ * as its write timestamp, that increases for every write of a user, including across evictions and
+ * restarts through the stored write time, so reordered or retried writes never let an older
+ * sketch replace a newer one.
+ * <p>
+ * Instances are not thread safe, use one per MessageHandler.
+ */
+public class UserSketchCache {
+
+    /**
+     * Where the sketches are stored.
+     */
+    public interface Store {
+
+        /**
+         * Starts reading the stored sketch of a user.
+         *
+         * @param userId the user
+         * @return the stored sketch, or null if there is none
+         */
+        Future<StoredSketch> read(String userId);
+
+        /**
+         * @param userId the user
+         * @param sketch the user's sketch
+         * @param version the version of the write, greater than that of any earlier write of the user
+         * @return the write of the sketch
+         */
+        Statement write(String userId, SparseHyperLogLog sketch, long version) throws IOException;
+    }
+
+    /**
+     * A sketch as read from the Store.
+     */
+    public static class StoredSketch {
+
+        private final SparseHyperLogLog sketch;
+        private final long version;
+
+        public StoredSketch(SparseHyperLogLog sketch, long version) {
+            this.sketch = sketch;
+            this.version = version;
+        }
+
+        public SparseHyperLogLog getSketch() {
+            return sketch;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+
+    /**
+     * Stores the sketches in the "query3" table, with the version as the write timestamp.
+     */
+    public static class CassandraStore implements Store {
+
+        private final Session session;
+        private final PreparedStatement selectStatement;
+        private final PreparedStatement insertStatement;
+
+        /**
+         * @param session the session to issue reads on
+         * @param selectStatement reads hyper_log and writetime(hyper_log), binding user_id
+         * @param insertStatement writes a sketch, binding user_id, distinct_url_accessed, hyper_log and the timestamp
+         */
+        public CassandraStore(Session session, PreparedStatement selectStatement, PreparedStatement insertStatement) {
+            this.session = session;
+            this.selectStatement = selectStatement;
+            this.insertStatement = insertStatement;
+        }
+
+        @Override
+        public Future<StoredSketch> read(String userId) {
+            return Futures.transform(session.executeAsync(new BoundStatement(selectStatement).bind(userId)),
+                    new Function<ResultSet, StoredSketch>() {
+                        @Override
+                        public StoredSketch apply(ResultSet resultSet) {
+                            final Row row = resultSet.one();
+                            if(row == null) {
+                                return null;
+                            }
+                            try {
+                                return new StoredSketch(SparseHyperLogLog.fromByteBuffer(row.getBytes(0)), row.getLong(1));
+                            } catch (IOException e) {
+                                throw new IllegalStateException("unreadable sketch for "+row, e);
+                            }
+                        }
+                    });
+        }
+
+        @Override
+        public Statement write(String userId, SparseHyperLogLog sketch, long version) throws IOException {
+            return new BoundStatement(insertStatement).bind(userId, sketch.cardinality(), sketch.toByteBuffer(), version);
+        }
+    }
+
+    private final Store store;
+    private final StatementWriter writer;
+    private final BloomFilter knownUsers;
+    private final int capacity;
+    private final long writeBehindMillis;
+    private final LongSupplier clockMicros;
+
+    private final LinkedHashMap<String, CachedSketch> sketches;
+    // dirty users in the order they became dirty, so overdue write-backs are found at the head
+    private final LinkedHashMap<String, CachedSketch> dirtySketches = new LinkedHashMap<>();
+    // evicted sketches whose writes may not have completed yet
+    private final HashMap<String, CachedSketch> evictedSketches = new HashMap<>();
+    // bumped each time the writes issued so far are known to have completed
+    private long writeGeneration = 0;
+
+    /**
+     * @param store reads the stored sketches and makes their writes
+     * @param writer issues the writes, typically the MessageHandler's GroupingWriter
+     * @param knownUsers users known to have a stored row. Shared, so access is synchronized on it
+     * @param capacity the maximum number of sketches to hold, and of evicted sketches to keep aside
+     * @param writeBehindMillis the maximum time a sketch may stay dirty, in event time
+     */
+    public UserSketchCache(Store store, StatementWriter writer, BloomFilter knownUsers,
+                           int capacity, long writeBehindMillis) {
+        this(store, writer, knownUsers, capacity, writeBehindMillis, new LongSupplier() {
+            @Override
+            public long getAsLong() {
+                return System.currentTimeMillis()*1000L;
+            }
+        });
+    }
+
+    /**
+     * @param clockMicros the wall clock, in microseconds, the versions are kept close to
+     */
+    UserSketchCache(Store store, StatementWriter writer, BloomFilter knownUsers,
+                    final int capacity, long writeBehindMillis, LongSupplier clockMicros) {
+        this.store = store;
+        this.writer = writer;
+        this.knownUsers = knownUsers;
+        this.capacity = capacity;
+        this.writeBehindMillis = writeBehindMillis;
+        this.clockMicros = clockMicros;
+
+        this.sketches = new LinkedHashMap<String, CachedSketch>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedSketch> eldest) {
+                if(size() <= capacity) {
+                    return false;
+                }
+                try {
+                    evict(eldest.getKey(), eldest.getValue());
+                } catch (Exception e) {
+                    System.err.println("ERROR(UserSketchCache) evicting "+eldest.getKey());
+                    e.printStackTrace();
+                }
+                return true;
+            }
+        };
+    }
+
+    /**
+     * Merges the sketch of a finished session into the sketch of its user.
+     *
+     * @param userId the user of the session
+     * @param lastHitMillis the time of the last hit in the session, in milliseconds since unix epoch
+     * @param sketch the sketch of the session. It may be adopted by the cache, so it must not be updated further
+     */
+    public void merge(String userId, long lastHitMillis, SparseHyperLogLog sketch)
+            throws IOException, CardinalityMergeException, InterruptedException {
+
+        CachedSketch cachedSketch = sketches.get(userId);
+
+        if(cachedSketch == null) {
+            cachedSketch = evictedSketches.remove(userId);
+            if(cachedSketch != null) {
+                // its write may not have landed, so it is the latest there is rather than the stored row
+                cachedSketch.sketch.addAll(sketch);
+            } else {
+                cachedSketch = new CachedSketch(sketch);
+                if(isKnownUser(userId)) {
+                    cachedSketch.pendingRead = store.read(userId);
+                }
+            }
+            sketches.put(userId, cachedSketch);
+        } else {
+            cachedSketch.sketch.addAll(sketch);
+        }
+
+        if(!cachedSketch.dirty) {
+            cachedSketch.dirty = true;
+            cachedSketch.dirtySinceMillis = lastHitMillis;
+            dirtySketches.put(userId, cachedSketch);
+        }
+
+        // the session is merged and tracked as dirty by now, so a failed read loses nothing
+        if(cachedSketch.pendingRead != null && cachedSketch.pendingRead.isDone()) {
+            resolvePendingRead(userId, cachedSketch);
+        }
+
+        writeBackOverdue(lastHitMillis);
+    }
+
+    /**
+     * Writes back all dirty sketches. The writes are issued asynchronously. A sketch whose stored
+     * row couldn't be read is not written, and stays dirty for the next flush.
+     *
+     * @throws IOException if a stored row couldn't be read, once every other sketch has been written
+     */
+    public void flush() throws IOException, CardinalityMergeException, InterruptedException {
+        IOException failure = null;
+        for(Map.Entry<String, CachedSketch> entry : new ArrayList<>(dirtySketches.entrySet())) {
+            try {
+                writeBack(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Tells the cache that every write it has issued so far has completed, e.g. after the writer's
+     * awaitOutstanding, so the evicted sketches kept aside can be dropped. Those not yet written,
+     * as their stored row couldn't be read, are kept until they are.
+     */
+    public void writesCompleted() {
+        final Iterator<CachedSketch> iterator = evictedSketches.values().iterator();
+        while(iterator.hasNext()) {
+            if(!iterator.next().dirty) {
+                iterator.remove();
+            }
+        }
+        writeGeneration++;
+    }
+
+    /**
+     * @return the number of evicted sketches kept aside until their writes complete
+     */
+    public int getEvictedCount() {
+        return evictedSketches.size();
+    }
+
+    private void writeBackOverdue(long nowMillis) throws IOException, CardinalityMergeException, InterruptedException {
+        final List<Map.Entry<String, CachedSketch>> overdue = new ArrayList<>();
+        for(Map.Entry<String, CachedSketch> entry : dirtySketches.entrySet()) {
+            if(entry.getValue().dirtySinceMillis+writeBehindMillis > nowMillis) {
+                break;
+            }
+            overdue.add(entry);
+        }
+        IOException failure = null;
+        for(Map.Entry<String, CachedSketch> entry : overdue) {
+            try {
+                writeBack(entry.getKey(), entry.getValue());
+            } catch (IOException e) {
+                failure = failure == null ? e : failure;
+            }
+        }
+        if(failure != null) {
+            throw failure;
+        }
+    }
+
+    private void evict(String userId, CachedSketch cachedSketch) throws IOException, CardinalityMergeException, InterruptedException {
+        try {
+            writeBack(userId, cachedSketch);
+        } catch (IOException e) {
+            // not written, so keep it, still dirty, for a returning user and the next flush
+            evictedSketches.put(userId, cachedSketch);
+            throw e;
+        }
+        if(cachedSketch.writeGeneration != writeGeneration) {
+            // its last write completed before the latest writesCompleted, so a read will see it
+            return;
+        }
+        if(evictedSketches.size() >= capacity) {
+            writer.awaitOutstanding();
+            writesCompleted();
+            return;
+        }
+        evictedSketches.put(userId, cachedSketch);
+    }
+
+    private void writeBack(String userId, CachedSketch cachedSketch) throws IOException, CardinalityMergeException, InterruptedException {
+        if(!cachedSketch.dirty) {
+            return;
+        }
+        // without the stored sketch the write would replace the user's history, so it waits for a good read
+        resolvePendingRead(userId, cachedSketch);
+        dirtySketches.remove(userId);
+
+        cachedSketch.version = Math.max(cachedSketch.version+1, clockMicros.getAsLong());
+        cachedSketch.writeGeneration = writeGeneration;
+        writer.execute(store.write(userId, cachedSketch.sketch, cachedSketch.version));
+        cachedSketch.dirty = false;
+
+        synchronized (knownUsers) {
+            knownUsers.add(userId);
+        }
+    }
+
+    /**
+     * Merges the stored sketch into the cached one once it has been read. If the read failed it is
+     * issued again, so the cached sketch is never taken as complete without it.
+     */
+    private void resolvePendingRead(String userId, CachedSketch cachedSketch) throws IOException, CardinalityMergeException {
+        if(cachedSketch.pendingRead == null) {
+            return;
+        }
+        final StoredSketch stored;
+        try {
+            stored = Uninterruptibles.getUninterruptibly(cachedSketch.pendingRead);
+        } catch (ExecutionException e) {
+            cachedSketch.pendingRead = store.read(userId);
+            throw new IOException("reading sketch of "+userId, e.getCause());
+        }
+        cachedSketch.pendingRead = null;
+
+        if(stored != null) {
+            cachedSketch.sketch.addAll(stored.getSketch());
+            cachedSketch.version = Math.max(cachedSketch.version, stored.getVersion());
+        }
+    }
+
+    private boolean isKnownUser(String userId) {
+        synchronized (knownUsers) {
+            return knownUsers.isPresent(userId);
+        }
+    }
+
+    private static class CachedSketch {
+        private final SparseHyperLogLog sketch;
+        private Future<StoredSketch> pendingRead;
+        private boolean dirty;
+        private long dirtySinceMillis;
+        // the version of the last write, or of the stored row
+        private long version = Long.MIN_VALUE;
+        // the writeGeneration of the last write, -1 if never written
+        private long writeGeneration = -1;
+
+        private CachedSketch(SparseHyperLogLog sketch) {
+            this.sketch = sketch;
+        }
+    }
+}
@@ -0,0 +1,48 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import kafka.producer.Partitioner;
+import kafka.utils.VerifiableProperties;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Assigns messages to partitions by a ClientLoadAssignment, so heavy clients are spread to balance
+ * the load, while all other keys are hashed as by LogPartitioner. Keys stay pinned to one partition.
+ * <p>
+ * The assignment file is given by the "partitioner.assignment.file" producer property, see PartitionLoadReport.
+ * If the topic doesn't have the number of partitions the assignment was built for, all keys are hashed.
+ */
+public class WeightedLogPartitioner implements Partitioner {
+
+    public static final String ASSIGNMENT_FILE_PROPERTY = "partitioner.assignment.file";
+
+    private final LogPartitioner logPartitioner = new LogPartitioner(null);
+    private final ClientLoadAssignment assignment;
+
+    public WeightedLogPartitioner(VerifiableProperties verifiableProperties) {
+        this(loadAssignment(verifiableProperties.getString(ASSIGNMENT_FILE_PROPERTY)));
+    }
+
+    public WeightedLogPartitioner(ClientLoadAssignment assignment) {
+        this.assignment = assignment;
+    }
+
+    private static ClientLoadAssignment loadAssignment(String fileName) {
+        try {
+            return ClientLoadAssignment.load(new File(fileName));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("can't read partition assignment "+fileName, e);
+        }
+    }
+
+    public int partition(Object key, int numPartitions) {
+        if(numPartitions == assignment.getNumPartitions()) {
+            final int partition = assignment.getPartition(key.toString());
+            if(partition >= 0) {
+                return partition;
+            }
+        }
+        return logPartitioner.partition(key, numPartitions);
+    }
+}
@@ -0,0 +1,131 @@
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.Statement;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * StatementWriter that queues writes in a RingBuffer for writer threads of its own to issue,
+ * so the threads handling messages only wait for cassandra when the queue is full.
+ * Shared by all the handlers of a ConsumerPipeline.
+ * <p>
+ * The writer threads issue the writes through another StatementWriter, normally an AsyncWriter,
+ * which bounds those in flight. awaitOutstanding waits for the writes queued before the call to
+ * be issued, then for that writer to complete them. A write taken off the queue may still wait,
+ * e.g. on the writer's limit, while later ones are issued by other threads, so each thread
+ * publishes a lower bound on the queue position of the write it is issuing, and awaitOutstanding
+ * waits for every thread to be past the queue position at the call.
+ */
+public class WriteStage implements StatementWriter {
+
+    private static final long AWAIT_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+    // the issuing position of a writer thread that isn't issuing a write
+    private static final long IDLE = Long.MAX_VALUE;
+
+    private final RingBuffer<Statement> queue;
+    private final StatementWriter writer;
+    private final List<Thread> threads = new ArrayList<>();
+
+    // per writer thread, at most the queue position of the write it is issuing, or IDLE
+    private final AtomicLongArray issuing;
+    private volatile boolean closed = false;
+
+    /**
+     * @param writer issues the writes
+     * @param numThreads the number of writer threads
+     * @param capacity the number of writes queued before execute waits
+     */
+    public WriteStage(StatementWriter writer, int numThreads, int capacity) {
+        this.writer = writer;
+        this.queue = new RingBuffer<>(capacity);
+        this.issuing = new AtomicLongArray(numThreads);
+        for(int i = 0; i < numThreads; i++) {
+            issuing.set(i, IDLE);
+            final int index = i;
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    issueWrites(index);
+                }
+            }, "WriteStage-"+i);
+            thread.setDaemon(true);
+            threads.add(thread);
+            thread.start();
+        }
+    }
+
+    @Override
+    public void execute(Statement statement) throws InterruptedException {
+        if(closed) {
+            throw new IllegalStateException("write stage closed");
+        }
+        queue.put(statement);
+    }
+
+    @Override
+    public void awaitOutstanding() throws InterruptedException {
+        final long target = queue.getWritePosition();
+        while(queue.getReadPosition() < target || oldestIssuing() < target) {
+            if(Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+            LockSupport.parkNanos(AWAIT_PARK_NANOS);
+        }
+        writer.awaitOutstanding();
+    }
+
+    @Override
+    public Map<String, Long> getFailureCounts() {
+        return writer.getFailureCounts();
+    }
+
+    /**
+     * Completes the queued writes and stops the writer threads.
+     */
+    public void close() throws InterruptedException {
+        awaitOutstanding();
+        closed = true;
+        for(Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private long oldestIssuing() {
+        long oldest = IDLE;
+        for(int i = 0; i < issuing.length(); i++) {
+            oldest = Math.min(oldest, issuing.get(i));
+        }
+        return oldest;
+    }
+
+    private void issueWrites(int index) {
+        try {
+            while(!closed || queue.size() > 0) {
+                // published before taking a write, so it is never seen as idle while holding one
+                issuing.set(index, queue.getReadPosition());
+                final Statement statement = queue.poll();
+                if(statement == null) {
+                    issuing.set(index, IDLE);
+                    if(Thread.interrupted()) {
+                        throw new InterruptedException();
+                    }
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                    continue;
+                }
+                writer.execute(statement);
+                issuing.set(index, IDLE);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.err.println("ERROR(WriteStage) writer interrupted");
+        } finally {
+            issuing.set(index, IDLE);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the CheckpointFile class
+ */
+public class CheckpointFileTest {
+
+    private static final long HOUR = HourCloseAggregator.HOUR_MS;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        SiteSession.resetGlobalMax();
+    }
+
+    private static String describe(SessionState sessionState) {
+        return sessionState.getId()+" "+sessionState.getFirstHitMillis()+" "+sessionState.getLastHitMillis()+" "
+                +sessionState.getHitCount()+" "+sessionState.getSketch().cardinality();
+    }
+
+    @Test
+    public void sessionsTest() throws IOException {
+
+        SessionStore onHeap = new OnHeapSessionStore();
+        SessionStore offHeap = new OffHeapSessionStore();
+        for(int i = 0; i < 1000; i++) {
+            onHeap.hit("user"+(i % 100), 1000+i, MurmurHash.hash("/url"+i));
+            offHeap.hit("user"+(i % 100), 1000+i, MurmurHash.hash("/url"+i));
+        }
+
+        File file = temporaryFolder.newFile();
+        try (CheckpointFile.Writer out = CheckpointFile.create(file)) {
+            out.putString("héllo");
+            out.putSessions(onHeap);
+            out.putSessions(offHeap);
+            out.commit();
+        }
+
+        List<String> expected = new ArrayList<>();
+        onHeap.expire(Long.MAX_VALUE, s -> expected.add(describe(s)));
+
+        // restored into stores of the other kind
+        SessionStore restoredOffHeap = new OffHeapSessionStore();
+        SessionStore restoredOnHeap = new OnHeapSessionStore();
+        try (CheckpointFile.Reader in = CheckpointFile.open(file)) {
+            assertEquals("héllo", in.getString());
+            for(int i = 0; i < 100; i++) {
+                restoredOffHeap.restore(in.getSession());
+            }
+            for(int i = 0; i < 100; i++) {
+                restoredOnHeap.restore(in.getSession());
+            }
+        }
+
+        List<String> restored = new ArrayList<>();
+        restoredOffHeap.expire(Long.MAX_VALUE, s -> restored.add(describe(s)));
+        assertEquals(expected, restored);
+        restored.clear();
+        restoredOnHeap.expire(Long.MAX_VALUE, s -> restored.add(describe(s)));
+        assertEquals(expected, restored);
+    }
+
+    @Test
+    public void regionsTest() throws IOException {
+
+        // spans more than one mapped region, with a string across the boundary
+        File file = temporaryFolder.newFile();
+        StringBuilder builder = new StringBuilder();
+        for(int i = 0; i < 100000; i++) {
+            builder.append('x');
+        }
+        String string = builder.toString();
+        try (CheckpointFile.Writer out = CheckpointFile.create(file)) {
+            for(int i = 0; i < 3000000; i++) {
+                out.putLong(i);
+                if(i % 1000000 == 999990) {
+                    out.putString(string);
+                }
+            }
+            out.commit();
+        }
+        assertTrue(file.length() > 24000000);
+
+        try (CheckpointFile.Reader in = CheckpointFile.open(file)) {
+            for(int i = 0; i < 3000000; i++) {
+                assertEquals(i, in.getLong());
+                if(i % 1000000 == 999990) {
+                    assertEquals(string, in.getString());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void uncommittedTest() throws IOException {
+
+        File file = temporaryFolder.newFile();
+        try (CheckpointFile.Writer out = CheckpointFile.create(file)) {
+            out.putLong(1);
+            out.commit();
+        }
+        try (CheckpointFile.Writer out = CheckpointFile.create(file)) {
+            out.putLong(2);
+        }
+
+        // the previous checkpoint is left in place
+        try (CheckpointFile.Reader in = CheckpointFile.open(file)) {
+            assertEquals(1, in.getLong());
+        }
+        assertFalse(new File(file.getPath()+".tmp").exists());
+
+        try {
+            CheckpointFile.open(temporaryFolder.newFile());
+            fail("empty file read as a checkpoint");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void aggregatorTest() throws IOException {
+
+        final Map<String, Long> written = new HashMap<>();
+        HourCloseAggregator.Sink sink = new HourCloseAggregator.Sink() {
+            @Override
+            public void write(TimeResolution resolution, UrlHourCounter total) {
+                written.put(resolution+" "+total.getUrl()+" "+total.getHour(), total.getCounter());
+            }
+        };
+
+        UrlDictionary urlDictionary = new UrlDictionary();
+        int a = urlDictionary.idFor("a");
+        int b = urlDictionary.idFor("b");
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Source source = aggregator.register(sink);
+        source.add(a, 10*HOUR);
+        source.add(a, 11*HOUR);
+        source.add(b, 11*HOUR);
+        source.checkpoint();
+        assertEquals(1L, (long)written.get("HOUR a 10"));
+
+        File file = temporaryFolder.newFile();
+        try (CheckpointFile.Writer out = CheckpointFile.create(file)) {
+            aggregator.writeTo(out);
+            out.commit();
+        }
+
+        // a restarted consumer, with a dictionary that assigned its ids differently
+        written.clear();
+        UrlDictionary restartedDictionary = new UrlDictionary();
+        restartedDictionary.idFor("b");
+        HourCloseAggregator restarted = new HourCloseAggregator(restartedDictionary);
+        try (CheckpointFile.Reader in = CheckpointFile.open(file)) {
+            restarted.readFrom(in);
+        }
+        HourCloseAggregator.Source restartedSource = restarted.register(sink);
+        // hour 10 closed before the checkpoint, so its hit is late
+        restartedSource.add(restartedDictionary.idFor("a"), 10*HOUR);
+        restartedSource.add(restartedDictionary.idFor("a"), 11*HOUR);
+        restartedSource.close();
+
+        assertEquals(1, restarted.getLateHits());
+        assertNull(written.get("HOUR a 10"));
+        assertEquals(2L, (long)written.get("HOUR a 11"));
+        assertEquals(1L, (long)written.get("HOUR b 11"));
+        // the day and week include the hour closed before the checkpoint
+        assertEquals(3L, (long)written.get("DAY a 0"));
+        assertEquals(3L, (long)written.get("WEEK a 0"));
+        assertEquals(1L, (long)written.get("WEEK b 0"));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ClientLoadAssignment and WeightedLogPartitioner classes
+ */
+public class ClientLoadAssignmentTest {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private static long max(long[] loads) {
+        long max = 0;
+        for(long load : loads) {
+            max = Math.max(max, load);
+        }
+        return max;
+    }
+
+    private static ClientLoadAssignment skewedAssignment() {
+        ClientLoadAssignment.Builder builder = new ClientLoadAssignment.Builder(4, 10);
+        // four heavy clients, which LogPartitioner would put on the same partition
+        String[] heavy = {"0", "4", "8", "11"};
+        for(int i = 0; i < 10000; i++) {
+            builder.offer(heavy[i % heavy.length]);
+            builder.offer(Integer.toString(1000+i % 500));
+        }
+        return builder.build();
+    }
+
+    @Test
+    public void balanceTest() {
+
+        ClientLoadAssignment assignment = skewedAssignment();
+
+        long[] hashed = assignment.getHashedLoads();
+        long[] expected = assignment.getExpectedLoads();
+        assertEquals(20000, hashed[0]+hashed[1]+hashed[2]+hashed[3]);
+        assertEquals(20000, expected[0]+expected[1]+expected[2]+expected[3]);
+        assertTrue(max(hashed) > 10000);
+        assertTrue(max(expected) < 6000);
+
+        // the heavy clients are spread over all the partitions
+        boolean[] used = new boolean[4];
+        for(String clientId : new String[] {"0", "4", "8", "11"}) {
+            used[assignment.getPartition(clientId)] = true;
+        }
+        assertTrue(used[0] && used[1] && used[2] && used[3]);
+        assertEquals(-1, assignment.getPartition("no such client"));
+    }
+
+    @Test
+    public void partitionerTest() throws IOException {
+
+        ClientLoadAssignment assignment = skewedAssignment();
+        File file = temporaryFolder.newFile();
+        assignment.save(file);
+
+        WeightedLogPartitioner partitioner = new WeightedLogPartitioner(ClientLoadAssignment.load(file));
+        LogPartitioner logPartitioner = new LogPartitioner(null);
+
+        for(String clientId : new String[] {"0", "4", "8", "11"}) {
+            assertEquals(assignment.getPartition(clientId), partitioner.partition(clientId, 4));
+            // other partition counts fall back to hashing
+            assertEquals(logPartitioner.partition(clientId, 3), partitioner.partition(clientId, 3));
+        }
+        assertEquals(logPartitioner.partition("1001", 4), partitioner.partition("1001", 4));
+    }
+}
@@ -0,0 +1,133 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.BatchStatement;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the GroupingWriter and MessageBatch classes
+ */
+public class GroupingWriterTest {
+
+    /**
+     * Records the writes it is given.
+     */
+    private static class RecordingWriter implements StatementWriter {
+        private final List<Statement> executed = new ArrayList<>();
+        private int awaited = 0;
+
+        @Override
+        public void execute(Statement statement) {
+            executed.add(statement);
+        }
+
+        @Override
+        public void awaitOutstanding() {
+            awaited++;
+        }
+
+        @Override
+        public Map<String, Long> getFailureCounts() {
+            return Collections.emptyMap();
+        }
+    }
+
+    private static Statement insert(String query, String partition) {
+        SimpleStatement statement = new SimpleStatement(query);
+        statement.setRoutingKey(ByteBuffer.wrap(partition.getBytes()));
+        return statement;
+    }
+
+    @Test
+    public void groupingTest() throws InterruptedException {
+
+        RecordingWriter writer = new RecordingWriter();
+        GroupingWriter groupingWriter = new GroupingWriter(writer, 3, 100);
+
+        for(int i = 0; i < 4; i++) {
+            groupingWriter.execute(insert("INSERT INTO query2", "a"));
+        }
+        groupingWriter.execute(insert("INSERT INTO query2", "b"));
+        // same partition key, different table
+        groupingWriter.execute(insert("INSERT INTO query3", "a"));
+        // no routing key, so not held
+        groupingWriter.execute(new SimpleStatement("INSERT INTO query1_hourly"));
+        assertEquals(1, writer.executed.size());
+
+        groupingWriter.flush();
+        // a in a batch of 3 then 1 alone, b alone and query3 a alone
+        assertEquals(5, writer.executed.size());
+        assertEquals(3, ((BatchStatement)writer.executed.get(1)).size());
+        assertFalse(writer.executed.get(2) instanceof BatchStatement);
+        assertFalse(writer.executed.get(3) instanceof BatchStatement);
+        assertEquals("INSERT INTO query3", ((SimpleStatement)writer.executed.get(4)).getQueryString());
+        assertEquals(1, groupingWriter.getBatchCount());
+
+        groupingWriter.flush();
+        assertEquals(5, writer.executed.size());
+    }
+
+    @Test
+    public void heldLimitTest() throws InterruptedException {
+
+        RecordingWriter writer = new RecordingWriter();
+        GroupingWriter groupingWriter = new GroupingWriter(writer, 32, 10);
+
+        for(int i = 0; i < 9; i++) {
+            groupingWriter.execute(insert("INSERT INTO query2", "a"));
+        }
+        assertTrue(writer.executed.isEmpty());
+        groupingWriter.execute(insert("INSERT INTO query2", "a"));
+        assertEquals(1, writer.executed.size());
+        assertEquals(10, ((BatchStatement)writer.executed.get(0)).size());
+
+        groupingWriter.execute(insert("INSERT INTO query2", "a"));
+        groupingWriter.awaitOutstanding();
+        assertEquals(2, writer.executed.size());
+        assertEquals(1, writer.awaited);
+    }
+
+    @Test
+    public void messageBatchTest() {
+
+        MessageBatch batch = new MessageBatch(1);
+        byte[] bytes = "abcdef".getBytes();
+        batch.add(bytes);
+        batch.add(bytes, 2, 3);
+        batch.add(bytes, 5, 1);
+        assertEquals(3, batch.size());
+        assertSame(bytes, batch.getBytes(1));
+        assertEquals(2, batch.getOffset(1));
+        assertEquals(3, batch.getLength(1));
+        assertEquals(6, batch.getLength(0));
+
+        batch.clear();
+        assertTrue(batch.isEmpty());
+        batch.add(bytes, 1, 1);
+        assertEquals(1, batch.getOffset(0));
+    }
+}
@@ -0,0 +1,252 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the HourCloseAggregator class
+ */
+public class HourCloseAggregatorTest {
+
+    private static final long HOUR = HourCloseAggregator.HOUR_MS;
+
+    private final UrlDictionary urlDictionary = new UrlDictionary();
+    private final int a = urlDictionary.idFor("a");
+    private final int b = urlDictionary.idFor("b");
+
+    // hourly totals, and day and week rollups
+    private final Map<String, Long> written = new HashMap<>();
+    private final Map<String, Long> rollups = new HashMap<>();
+
+    private final HourCloseAggregator.Sink sink = new HourCloseAggregator.Sink() {
+        @Override
+        public void write(TimeResolution resolution, UrlHourCounter total) {
+            Map<String, Long> totals = resolution == TimeResolution.HOUR ? written : rollups;
+            String key = (resolution == TimeResolution.HOUR ? "" : resolution+" ")+total.getUrl()+" "+total.getHour();
+            assertFalse("written twice: "+key, totals.containsKey(key));
+            totals.put(key, total.getCounter());
+        }
+    };
+
+    @Test
+    public void singleSourceTest() {
+
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Source source = aggregator.register(sink);
+
+        source.add(a, 10*HOUR);
+        source.add(a, 10*HOUR+1);
+        source.add(b, 10*HOUR+2);
+        assertTrue(written.isEmpty());
+
+        source.add(a, 11*HOUR);
+        assertEquals(2, written.size());
+        assertEquals(2L, (long)written.get("a 10"));
+        assertEquals(1L, (long)written.get("b 10"));
+
+        source.close();
+        assertEquals(1L, (long)written.get("a 11"));
+    }
+
+    @Test
+    public void allowedLatenessTest() {
+
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary, 10000L);
+        HourCloseAggregator.Source source = aggregator.register(sink);
+
+        source.add(a, 10*HOUR);
+        source.add(a, 11*HOUR);
+        // out of order, but within the allowed lateness of the hit that opened hour 11
+        source.add(a, 11*HOUR-1);
+        source.add(b, 11*HOUR+9999);
+        assertTrue(written.isEmpty());
+
+        // the allowed lateness past the end of hour 10, so it closes
+        source.add(b, 11*HOUR+10000);
+        assertEquals(2L, (long)written.get("a 10"));
+        assertEquals(0, aggregator.getLateHits());
+
+        // beyond the allowed lateness, so dropped and counted
+        source.add(a, 11*HOUR-2);
+        assertEquals(1, aggregator.getLateHits());
+        assertEquals(2L, (long)written.get("a 10"));
+
+        source.close();
+        assertEquals(1L, (long)written.get("a 11"));
+        assertEquals(2L, (long)written.get("b 11"));
+    }
+
+    @Test
+    public void sharedSourcesTest() {
+
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Source sourceA = aggregator.register(sink);
+        HourCloseAggregator.Source sourceB = aggregator.register(sink);
+
+        sourceA.add(a, 10*HOUR);
+        sourceB.add(a, 10*HOUR);
+        sourceA.add(a, 12*HOUR);
+        // B still has hour 10 open
+        assertTrue(written.isEmpty());
+
+        sourceB.add(a, 11*HOUR);
+        assertEquals(1, written.size());
+        assertEquals(2L, (long)written.get("a 10"));
+
+        // late hit for an hour that is still open is included
+        sourceA.add(a, 11*HOUR);
+        sourceB.add(a, 12*HOUR);
+        assertEquals(2L, (long)written.get("a 11"));
+
+        // late hit for an hour that has been written is discarded
+        sourceB.add(a, 10*HOUR);
+        assertEquals(1, aggregator.getLateHits());
+
+        sourceA.close();
+        sourceB.close();
+        assertEquals(2L, (long)written.get("a 12"));
+        assertEquals(3, written.size());
+    }
+
+    @Test
+    public void rollupTest() {
+
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Source source = aggregator.register(sink);
+
+        // day 0 is hours 0-23, week 0 is hours -72-95 as weeks start on Monday
+        source.add(a, 0);
+        source.add(a, 23*HOUR);
+        source.add(b, 24*HOUR);
+        source.add(a, 95*HOUR);
+        // closing hour 94 closes days 0 and 1, but not day 3 or the week
+        assertEquals(2, rollups.size());
+        assertEquals(2L, (long)rollups.get("DAY a 0"));
+        assertEquals(1L, (long)rollups.get("DAY b 1"));
+
+        source.add(b, 96*HOUR);
+        assertEquals(1L, (long)rollups.get("DAY a 3"));
+        assertEquals(3L, (long)rollups.get("WEEK a 0"));
+        assertEquals(1L, (long)rollups.get("WEEK b 0"));
+        assertEquals(5, rollups.size());
+
+        source.close();
+        assertEquals(1L, (long)rollups.get("DAY b 4"));
+        assertEquals(1L, (long)rollups.get("WEEK b 1"));
+        assertEquals(5, written.size());
+    }
+
+    @Test
+    public void flusherTest() throws InterruptedException {
+
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Source sourceA = aggregator.register();
+        HourCloseAggregator.Source sourceB = aggregator.register();
+        // long enough that only the explicit flushes emit
+        HourCloseAggregator.Flusher flusher = aggregator.startFlusher(sink, 1, TimeUnit.HOURS);
+
+        sourceA.add(a, 10*HOUR);
+        sourceB.add(a, 10*HOUR);
+        sourceA.add(a, 11*HOUR);
+        sourceB.add(b, 11*HOUR);
+        // hour 10 is closed, but sinkless sources leave it to the flusher
+        assertTrue(written.isEmpty());
+
+        flusher.flush();
+        assertEquals(1, written.size());
+        assertEquals(2L, (long)written.get("a 10"));
+        // two per-source rows for (a, 10) went out as one
+        assertEquals(1, aggregator.getWritesSaved());
+
+        sourceA.close();
+        sourceB.close();
+        assertEquals(1, written.size());
+        flusher.close();
+        assertEquals(1L, (long)written.get("a 11"));
+        assertEquals(1L, (long)written.get("b 11"));
+        assertEquals(3, written.size());
+        assertEquals(1, aggregator.getWritesSaved());
+    }
+
+    @Test
+    public void noSourcesTest() throws InterruptedException {
+
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Flusher flusher = aggregator.startFlusher(sink, 1, TimeUnit.HOURS);
+        // e.g. the consumer's flusher running before its handlers register
+        flusher.flush();
+
+        HourCloseAggregator.Source source = aggregator.register();
+        source.add(a, 10*HOUR);
+        source.add(a, 11*HOUR);
+        flusher.flush();
+        assertEquals(0, aggregator.getLateHits());
+        assertEquals(1L, (long)written.get("a 10"));
+
+        source.close();
+        flusher.close();
+        assertEquals(1L, (long)written.get("a 11"));
+    }
+
+    @Test
+    public void watermarkTest() {
+
+        final List<Long> watermarks = new ArrayList<>();
+        HourCloseAggregator aggregator = new HourCloseAggregator(urlDictionary);
+        HourCloseAggregator.Source sourceA = aggregator.register(new HourCloseAggregator.Sink() {
+            @Override
+            public void write(TimeResolution resolution, UrlHourCounter total) {
+                sink.write(resolution, total);
+            }
+
+            @Override
+            public void hoursClosed(long closedBeforeHour) {
+                watermarks.add(closedBeforeHour);
+            }
+        });
+        HourCloseAggregator.Source sourceB = aggregator.register();
+
+        sourceA.add(a, 10*HOUR);
+        sourceB.add(a, 11*HOUR);
+        sourceA.add(a, 12*HOUR);
+        assertEquals(Arrays.asList(11L), watermarks);
+
+        // every source closed, yet only the hours up to the latest counted are final
+        sourceB.close();
+        sourceA.close();
+        assertEquals(Arrays.asList(11L, 13L), watermarks);
+        assertEquals(1L, (long)written.get("a 12"));
+    }
+
+    @Test
+    public void resolutionTest() {
+        assertEquals(-1, TimeResolution.DAY.bucketOf(-1));
+        assertEquals(0, TimeResolution.WEEK.bucketOf(-72));
+        assertEquals(-1, TimeResolution.WEEK.bucketOf(-73));
+        assertEquals(96, TimeResolution.WEEK.firstHour(1));
+        assertEquals(48, TimeResolution.DAY.firstHour(2));
+    }
+}
@@ -0,0 +1,116 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the InFlightLimiter class
+ */
+public class InFlightLimiterTest {
+
+    private static final long TARGET = TimeUnit.MILLISECONDS.toNanos(50);
+
+    /**
+     * A clock that only moves when told to.
+     */
+    private static class ManualClock implements LongSupplier {
+        private long nanos = 0;
+
+        @Override
+        public long getAsLong() {
+            return nanos;
+        }
+    }
+
+    @Test
+    public void additiveIncreaseTest() throws InterruptedException {
+
+        InFlightLimiter limiter = new InFlightLimiter(1, 4, 8, TARGET);
+
+        // about a window's worth of fast completions grows the limit by one
+        for(int i = 0; i < 5; i++) {
+            limiter.acquire();
+            limiter.release(1, false);
+        }
+        assertEquals(5, limiter.getLimit());
+        assertEquals(0, limiter.getInFlight());
+
+        for(int i = 0; i < 1000; i++) {
+            limiter.acquire();
+            limiter.release(1, false);
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test
+    public void multiplicativeDecreaseTest() throws InterruptedException {
+
+        ManualClock clock = new ManualClock();
+        InFlightLimiter limiter = new InFlightLimiter(2, 8, 8, TARGET, clock);
+
+        limiter.acquire();
+        limiter.release(1, true);
+        assertEquals(4, limiter.getLimit());
+
+        // the same congestion episode is only counted once
+        clock.nanos += TARGET;
+        limiter.acquire();
+        limiter.release(1, true);
+        limiter.observe(TARGET+1, false);
+        assertEquals(4, limiter.getLimit());
+
+        // a later one is counted again, down to the smallest window
+        clock.nanos += TARGET+1;
+        limiter.acquire();
+        limiter.release(1, true);
+        assertEquals(2, limiter.getLimit());
+        clock.nanos += TARGET+1;
+        limiter.acquire();
+        limiter.release(1, true);
+        assertEquals(2, limiter.getLimit());
+    }
+
+    @Test(timeout = 10000)
+    public void blockingTest() throws InterruptedException {
+
+        final InFlightLimiter limiter = new InFlightLimiter(1, 1, 1, TARGET);
+        limiter.acquire();
+
+        Thread releaser = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                limiter.release(1, false);
+            }
+        };
+        releaser.start();
+
+        // blocks until the releaser returns the only permit
+        limiter.acquire();
+        assertEquals(1, limiter.getInFlight());
+        releaser.join();
+    }
+}
@@ -0,0 +1,55 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.Timer;
+import com.datastax.driver.core.*;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * End to end throughput test of the processing against cassandra, driven by the LoadHarness class
+ */
+public class LoadHarnessIT {
+
+    @Test
+    public void throughputTest() throws Exception {
+
+        final int lines = 50000;
+        LoadHarness loadHarness = new LoadHarness(0, 2, 3);
+        long startNanos = System.nanoTime();
+        assertEquals(lines, loadHarness.run(lines));
+        double seconds = (System.nanoTime()-startNanos)/1e9;
+
+        Timer writeLatency = (Timer)loadHarness.getMetricRegistry().getMetrics().get("writeLatency");
+        System.out.println("LoadHarnessIT: "+(long)(lines/seconds)+" lines/s, "
+                +writeLatency.getCount()+" writes, p99 write latency "
+                +writeLatency.getSnapshot().get99thPercentile()/1e6+" ms");
+        assertTrue(writeLatency.getCount() > 0);
+
+        Cluster cluster = QueryManager.connect();
+        try {
+            Session session = cluster.connect("csc8101");
+            // the most popular url is hit in every hour generated
+            Row row = session.execute("SELECT count(*) FROM query1_hourly WHERE url='/english/page0.html'").one();
+            assertTrue(row.getLong(0) > 0);
+        } finally {
+            cluster.close();
+        }
+    }
+}
@@ -0,0 +1,229 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LogArchive class
+ */
+public class LogArchiveTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "log.archive");
+        List<String> lines = writeArchive(file, 20000, 64*1024);
+
+        try (LogArchive.Reader reader = LogArchive.open(file)) {
+            List<LogArchive.BlockInfo> blocks = reader.getBlocks();
+            assertTrue(blocks.size() > 10);
+
+            List<String> read = new ArrayList<>();
+            long offset = 0;
+            for(int i = 0; i < blocks.size(); i++) {
+                LogArchive.BlockInfo block = blocks.get(i);
+                assertEquals(offset, block.getOffset());
+                offset += block.getCompressedLength();
+                assertTrue(block.getLength() <= 64*1024);
+
+                List<String> blockLines = split(reader.readBlock(i));
+                assertEquals(block.getLineCount(), blockLines.size());
+                LogRecord record = new LogRecord();
+                assertTrue(new LogLineParser().parse(blockLines.get(0), record));
+                assertEquals(record.getEpochMillis(), block.getFirstMillis());
+                read.addAll(blockLines);
+            }
+            assertEquals(lines, read);
+        }
+        assertTrue(file.length() < 20000*40);
+    }
+
+    @Test
+    public void parallelReadTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "log.archive");
+        List<String> lines = writeArchive(file, 20000, 16*1024);
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try (final LogArchive.Reader reader = LogArchive.open(file)) {
+            List<Future<byte[]>> futures = new ArrayList<>();
+            for(int i = 0; i < reader.getBlocks().size(); i++) {
+                final int block = i;
+                futures.add(executor.submit(new Callable<byte[]>() {
+                    @Override
+                    public byte[] call() throws IOException {
+                        return reader.readBlock(block);
+                    }
+                }));
+            }
+            List<String> read = new ArrayList<>();
+            for(Future<byte[]> future : futures) {
+                read.addAll(split(future.get()));
+            }
+            assertEquals(lines, read);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void findBlockTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "log.archive");
+        writeArchive(file, 20000, 16*1024);
+
+        try (LogArchive.Reader reader = LogArchive.open(file)) {
+            List<LogArchive.BlockInfo> blocks = reader.getBlocks();
+            assertEquals(0, reader.findBlock(Long.MIN_VALUE));
+            assertEquals(blocks.size()-1, reader.findBlock(Long.MAX_VALUE));
+
+            int middle = blocks.size()/2;
+            long millis = blocks.get(middle).getFirstMillis();
+            int found = reader.findBlock(millis);
+            assertTrue(blocks.get(found).getFirstMillis() < millis);
+            assertTrue(blocks.get(found+1).getFirstMillis() >= millis);
+
+            // every line from the time on is in the found block or later ones
+            LogLineParser parser = new LogLineParser();
+            LogRecord record = new LogRecord();
+            for(int i = 0; i < found; i++) {
+                for(String line : split(reader.readBlock(i))) {
+                    assertTrue(parser.parse(line, record));
+                    assertTrue(record.getEpochMillis() < millis);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void sameSecondBlocksTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "log.archive");
+        // a block size below the line length puts each line in a block of its own
+        try (LogArchive.Writer writer = LogArchive.create(file, 10)) {
+            writer.addLine("1 [30/Apr/1998:21:30:16 +0000] \"GET /a.html HTTP/1.0\" 200 1");
+            writer.addLine("2 [30/Apr/1998:21:30:17 +0000] \"GET /b.html HTTP/1.0\" 200 1");
+            writer.addLine("3 [30/Apr/1998:21:30:17 +0000] \"GET /c.html HTTP/1.0\" 200 1");
+            writer.addLine("4 [30/Apr/1998:21:30:17 +0000] \"GET /d.html HTTP/1.0\" 200 1");
+            writer.addLine("5 [30/Apr/1998:21:30:18 +0000] \"GET /e.html HTTP/1.0\" 200 1");
+        }
+
+        try (LogArchive.Reader reader = LogArchive.open(file)) {
+            List<LogArchive.BlockInfo> blocks = reader.getBlocks();
+            assertEquals(5, blocks.size());
+            assertEquals(893971817000L, blocks.get(1).getFirstMillis());
+            assertEquals(893971817000L, blocks.get(3).getFirstMillis());
+
+            // not block 3, the last one starting in the second, which would miss the lines of blocks 1 and 2
+            assertEquals(0, reader.findBlock(893971817000L));
+            assertEquals(3, reader.findBlock(893971817001L));
+            assertEquals(0, reader.findBlock(893971816000L));
+
+            LogLineParser parser = new LogLineParser();
+            LogRecord record = new LogRecord();
+            int count = 0;
+            for(int i = reader.findBlock(893971817000L); i < blocks.size(); i++) {
+                for(String line : split(reader.readBlock(i))) {
+                    assertTrue(parser.parse(line, record));
+                    if(record.getEpochMillis() == 893971817000L) {
+                        count++;
+                    }
+                }
+            }
+            assertEquals(3, count);
+        }
+    }
+
+    @Test
+    public void malformedTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "log.archive");
+        try (LogArchive.Writer writer = LogArchive.create(file, 100)) {
+            writer.addLine("not a log line");
+            writer.addLine("1 [30/Apr/1998:21:30:17 +0000] \"GET /a.html HTTP/1.0\" 200 1");
+            writer.addLine("a line longer than the block size, which gets a block of its own, that's all it is");
+            writer.addLine("still not a log line");
+        }
+
+        assertTrue(LogArchive.isArchive(file));
+        try (LogArchive.Reader reader = LogArchive.open(file)) {
+            List<LogArchive.BlockInfo> blocks = reader.getBlocks();
+            assertEquals(3, blocks.size());
+            assertEquals(893971817000L, blocks.get(0).getFirstMillis());
+            // no line of the later blocks parses, so they carry on from the first
+            assertEquals(893971817000L, blocks.get(1).getFirstMillis());
+            assertEquals(893971817000L, blocks.get(2).getFirstMillis());
+            assertEquals(2, blocks.get(0).getLineCount());
+            assertEquals(1, blocks.get(1).getLineCount());
+            assertEquals("still not a log line", split(reader.readBlock(2)).get(0));
+        }
+
+        File notArchive = new File(folder.getRoot(), "log");
+        Files.write(notArchive.toPath(), "1 [30/Apr/1998:21:30:17 +0000] \"GET /a.html HTTP/1.0\" 200 1\n".getBytes(StandardCharsets.US_ASCII));
+        assertFalse(LogArchive.isArchive(notArchive));
+        try {
+            LogArchive.open(notArchive);
+            fail("not an archive");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static List<String> writeArchive(File file, int lineCount, int blockBytes) throws IOException {
+        SyntheticLogGenerator generator = new SyntheticLogGenerator(3);
+        List<String> lines = new ArrayList<>();
+        try (LogArchive.Writer writer = LogArchive.create(file, blockBytes)) {
+            for(int i = 0; i < lineCount; i++) {
+                String line = generator.next();
+                lines.add(line);
+                writer.addLine(line);
+            }
+        }
+        return lines;
+    }
+
+    private static List<String> split(byte[] block) {
+        List<String> lines = new ArrayList<>();
+        int start = 0;
+        for(int i = 0; i < block.length; i++) {
+            if(block[i] == '\n') {
+                lines.add(new String(block, start, i-start, StandardCharsets.ISO_8859_1));
+                start = i+1;
+            }
+        }
+        assertEquals(block.length, start);
+        return lines;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LogLineParser class
+ */
+public class LogLineParserTest {
+
+    private final LogLineParser parser = new LogLineParser();
+    private final LogRecord record = new LogRecord();
+
+    @Test
+    public void parseTest() {
+
+        assertTrue(parser.parse("1000 [30/Apr/1998:21:30:17 +0000] \"GET /English/Index.html HTTP/1.0\" 200 1839", record));
+
+        assertEquals("1000", record.getClientId());
+        assertEquals(893971817000L, record.getEpochMillis());
+        assertEquals(21, record.getHour());
+        assertEquals("/english/index.html", record.getUrl());
+    }
+
+    @Test
+    public void parseBytesTest() {
+
+        byte[] bytes = "xx42 [30/Apr/1998:21:30:17 +0000] \"GET /a.gif HTTP/1.0\" 304 0\nxx".getBytes(StandardCharsets.US_ASCII);
+
+        assertTrue(parser.parse(bytes, 2, bytes.length-5, record));
+
+        assertEquals("42", record.getClientId());
+        assertEquals(893971817000L, record.getEpochMillis());
+        assertEquals("/a.gif", record.getUrl());
+    }
+
+    @Test
+    public void statusAndSizeTest() {
+
+        assertTrue(parser.parse("1000 [30/Apr/1998:21:30:17 +0000] \"GET /English/Index.html HTTP/1.0\" 200 1839", record));
+        assertEquals(200, record.getStatus());
+        assertEquals(1839, record.getResponseSize());
+
+        assertTrue(parser.parse("1000 [30/Apr/1998:21:30:17 +0000] \"GET /index.html HTTP/1.0\" 404 -", record));
+        assertEquals(404, record.getStatus());
+        assertEquals(-1, record.getResponseSize());
+
+        assertTrue(parser.parse("1000 [30/Apr/1998:21:30:17 +0000] \"GET /index.html HTTP/1.0\"", record));
+        assertEquals(-1, record.getStatus());
+        assertEquals(-1, record.getResponseSize());
+        assertEquals("/index.html", record.getUrl());
+    }
+
+    @Test
+    public void parseStatusTest() {
+
+        String request = " \"GET /index.html HTTP/1.0\" ";
+        assertEquals(ParseStatus.OK, parser.parseRecord("1 [30/Apr/1998:21:30:17 +0000]"+request+"200 1", record));
+        assertEquals(ParseStatus.NO_CLIENT_ID, parser.parseRecord("", record));
+        assertEquals(ParseStatus.NO_CLIENT_ID, parser.parseRecord(" [30/Apr/1998:21:30:17 +0000]"+request+"200 1", record));
+        assertEquals(ParseStatus.OK, parser.parseRecord("12345678901234567890123456789012 [30/Apr/1998:21:30:17 +0000]"+request+"200 1", record));
+        assertEquals(ParseStatus.LONG_CLIENT_ID, parser.parseRecord("123456789012345678901234567890123 [30/Apr/1998:21:30:17 +0000]"+request+"200 1", record));
+        assertEquals(ParseStatus.BAD_TIMESTAMP, parser.parseRecord("1 [30/Apr/1998:21:30:17]"+request+"200 1", record));
+        assertEquals(ParseStatus.BAD_TIMESTAMP, parser.parseRecord("1 [30/Apr/1998:21:61:17 +0000]"+request+"200 1", record));
+        assertEquals(ParseStatus.BAD_REQUEST, parser.parseRecord("1 [30/Apr/1998:21:30:17 +0000]", record));
+        assertEquals(ParseStatus.BAD_REQUEST, parser.parseRecord("1 [30/Apr/1998:21:30:17 +0000] \"GET \" 200 1", record));
+        assertEquals(ParseStatus.BAD_STATUS, parser.parseRecord("1 [30/Apr/1998:21:30:17 +0000]"+request+"abc 1", record));
+        assertEquals(ParseStatus.BAD_STATUS, parser.parseRecord("1 [30/Apr/1998:21:30:17 +0000]"+request+"999 1", record));
+        assertEquals(ParseStatus.BAD_SIZE, parser.parseRecord("1 [30/Apr/1998:21:30:17 +0000]"+request+"200 1x", record));
+    }
+
+    @Test
+    public void timestampTest() throws Exception {
+
+        DateFormat dateFormat = new SimpleDateFormat("[dd/MMM/yyyy:HH:mm:ss z]");
+        String[] timestamps = {
+                "[01/Jan/1970:00:00:00 +0000]",
+                "[29/Feb/2000:23:59:59 +0000]",
+                "[31/Dec/1999:12:00:01 -0500]",
+                "[15/Jun/1998:08:07:06 +0130]",
+                "[15/Jun/1998:08:07:06 +0130]",
+                "[15/Jun/1998:08:07:07 +0130]",
+        };
+
+        for(String timestamp : timestamps) {
+            assertTrue(parser.parse("1 "+timestamp+" \"GET / HTTP/1.0\" 200 1", record));
+            assertEquals(timestamp, dateFormat.parse(timestamp).getTime(), record.getEpochMillis());
+        }
+    }
+
+    @Test
+    public void missingVersionTest() {
+
+        assertTrue(parser.parse("7 [30/Apr/1998:21:30:17 +0000] \"GET /index.html\" 200 1", record));
+        assertEquals("/index.html", record.getUrl());
+    }
+
+    @Test
+    public void malformedTest() {
+
+        assertFalse(parser.parse("", record));
+        assertFalse(parser.parse("1000", record));
+        assertFalse(parser.parse("1000 [30/Apr/1998:21:30:17 +0000]", record));
+        assertFalse(parser.parse("1000 [30/Xyz/1998:21:30:17 +0000] \"GET / HTTP/1.0\" 200 1", record));
+        assertFalse(parser.parse("1000 [30/Apr/1998:25:30:17 +0000] \"GET / HTTP/1.0\" 200 1", record));
+        assertFalse(parser.parse("1000 [30/Apr/1998 21:30:17 +0000] \"GET / HTTP/1.0\" 200 1", record));
+        assertFalse(parser.parse("1000 [30/Apr/1998:21:30:17 +0000] \"GET  HTTP/1.0\" 200 1", record));
+    }
+}
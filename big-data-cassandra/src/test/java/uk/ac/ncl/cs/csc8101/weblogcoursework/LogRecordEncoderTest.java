@@ -0,0 +1,195 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the LogRecordEncoder and LogRecordDecoder classes
+ */
+public class LogRecordEncoderTest {
+
+    private final LogLineParser parser = new LogLineParser();
+    private final LogRecord expected = new LogRecord();
+    private final LogRecord actual = new LogRecord();
+
+    @Test
+    public void roundTripTest() {
+
+        String[] lines = {
+                "1000 [30/Apr/1998:21:30:17 +0000] \"GET /English/Index.html HTTP/1.0\" 200 1839",
+                "1000 [30/Apr/1998:21:30:17 +0000] \"GET /images/logo.gif HTTP/1.0\" 304 -",
+                "abc [30/Apr/1998:21:30:15 +0000] \"GET /english/index.html HTTP/1.0\" 200 1839",
+                "007 [30/Apr/1998:23:59:59 -0500] \"GET /images/logo.gif\"",
+                "0 [01/May/1998:00:00:01 +0130] \"GET / HTTP/1.0\" 200 0",
+                "123456789012345678 [01/May/1998:00:00:02 +0130] \"GET /images/logo.gif HTTP/1.0\" 500 99",
+        };
+
+        LogRecordEncoder encoder = new LogRecordEncoder(true);
+        byte[] message = encoder.encode(lines, 0, lines.length);
+        assertTrue(LogRecordDecoder.isBlock(message, 0, message.length));
+
+        int textLength = 0;
+        for(String line : lines) {
+            textLength += line.length()+1;
+        }
+        assertTrue(message.length < textLength/2);
+
+        LogRecordDecoder decoder = new LogRecordDecoder(new LogLineParser());
+        assertEquals(lines.length, decoder.start(message, 0, message.length));
+        for(String line : lines) {
+            assertTrue(decoder.hasNext());
+            assertEquals(ParseStatus.OK, decoder.next(actual));
+            assertTrue(parser.parse(line, expected));
+            assertSameRecord(line);
+        }
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void textFallbackTest() {
+
+        String[] lines = {
+                "1 [30/Apr/1998:21:30:17 +0000] \"GET /a.html HTTP/1.0\" 200 1",
+                "not a log line",
+                "2 [30/Apr/1998:21:30:18 +0000] \"GET /a.html HTTP/1.0\" 200 2",
+        };
+
+        byte[] message = new LogRecordEncoder(true).encode(lines, 0, lines.length);
+
+        LogRecordDecoder decoder = new LogRecordDecoder(new LogLineParser());
+        assertEquals(3, decoder.start(message, 0, message.length));
+        assertEquals(ParseStatus.OK, decoder.next(actual));
+        assertEquals("1", actual.getClientId());
+        assertEquals(ParseStatus.BAD_TIMESTAMP, decoder.next(actual));
+        assertEquals("not a log line".length(), decoder.getLineLength());
+        assertEquals(ParseStatus.OK, decoder.next(actual));
+        assertEquals("2", actual.getClientId());
+        assertEquals("/a.html", actual.getUrl());
+        assertEquals(2, actual.getResponseSize());
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void textFormatTest() {
+
+        String line = "42 [30/Apr/1998:21:30:17 +0000] \"GET /a.gif HTTP/1.0\" 304 0";
+        LogRecordEncoder encoder = new LogRecordEncoder(false);
+        byte[] message = encoder.encode(new String[] {line}, 0, 1);
+        assertArrayEquals(line.getBytes(StandardCharsets.ISO_8859_1), message);
+        assertFalse(LogRecordDecoder.isBlock(message, 0, message.length));
+
+        LogRecordDecoder decoder = new LogRecordDecoder(new LogLineParser());
+        assertEquals(1, decoder.start(message, 0, message.length));
+        assertEquals(ParseStatus.OK, decoder.next(actual));
+        assertTrue(parser.parse(line, expected));
+        assertSameRecord(line);
+        assertFalse(decoder.hasNext());
+
+        try {
+            encoder.encode(new String[] {line, line}, 0, 2);
+            fail("text messages hold a single line");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void malformedTest() {
+
+        String[] lines = {
+                "1 [30/Apr/1998:21:30:17 +0000] \"GET /a.html HTTP/1.0\" 200 1",
+                "2 [30/Apr/1998:21:30:18 +0000] \"GET /b.html HTTP/1.0\" 200 2",
+        };
+        byte[] message = new LogRecordEncoder(true).encode(lines, 0, lines.length);
+
+        LogRecordDecoder decoder = new LogRecordDecoder(new LogLineParser());
+        // cut short in the second record
+        assertEquals(2, decoder.start(message, 0, message.length-3));
+        assertEquals(ParseStatus.OK, decoder.next(actual));
+        assertEquals(ParseStatus.BAD_BLOCK, decoder.next(actual));
+        assertFalse(decoder.hasNext());
+
+        assertEquals(-1, decoder.start(new byte[] {0, 1, (byte)0x80}, 0, 3));
+        assertFalse(decoder.hasNext());
+    }
+
+    @Test
+    public void longClientIdTest() {
+
+        String longId = "123456789012345678901234567890123";
+        String[] lines = {
+                longId+" [30/Apr/1998:21:30:17 +0000] \"GET /a.html HTTP/1.0\" 200 1",
+                "2 [30/Apr/1998:21:30:18 +0000] \"GET /b.html HTTP/1.0\" 200 2",
+        };
+        byte[] message = new LogRecordEncoder(true).encode(lines, 0, lines.length);
+
+        LogRecordDecoder decoder = new LogRecordDecoder(new LogLineParser());
+        assertEquals(2, decoder.start(message, 0, message.length));
+        assertEquals(ParseStatus.LONG_CLIENT_ID, decoder.next(actual));
+        assertEquals(lines[0], new String(message, decoder.getLineOffset(), decoder.getLineLength(), StandardCharsets.ISO_8859_1));
+        assertEquals(ParseStatus.OK, decoder.next(actual));
+        assertEquals("2", actual.getClientId());
+
+        // a binary record with a long client id, as written before ids were checked, then a good one
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(LogRecordEncoder.MAGIC);
+        out.write(LogRecordEncoder.VERSION);
+        out.write(2);
+        out.write(0);
+        out.write(longId.length());
+        out.write(longId.getBytes(StandardCharsets.ISO_8859_1), 0, longId.length());
+        // zigzag seconds delta, status+1 as a varint, size+1, url
+        out.write(2);
+        out.write(0xC9);
+        out.write(1);
+        out.write(1);
+        out.write(2);
+        out.write("/a".getBytes(StandardCharsets.ISO_8859_1), 0, 2);
+        // a numeric client id and a reference to the url of the first record, in the same second
+        out.write(LogRecordEncoder.NUMERIC_CLIENT | LogRecordEncoder.URL_REFERENCE);
+        out.write(7);
+        out.write(0);
+        out.write(0xC9);
+        out.write(1);
+        out.write(1);
+        out.write(0);
+        byte[] block = out.toByteArray();
+
+        assertEquals(2, decoder.start(block, 0, block.length));
+        assertEquals(ParseStatus.LONG_CLIENT_ID, decoder.next(actual));
+        assertEquals(longId, new String(block, decoder.getLineOffset(), decoder.getLineLength(), StandardCharsets.ISO_8859_1));
+        assertEquals(ParseStatus.OK, decoder.next(actual));
+        assertEquals("7", actual.getClientId());
+        assertEquals("/a", actual.getUrl());
+        assertEquals(1000L, actual.getEpochMillis());
+        assertFalse(decoder.hasNext());
+    }
+
+    private void assertSameRecord(String line) {
+        assertEquals(line, expected.getClientId(), actual.getClientId());
+        assertEquals(line, expected.getEpochMillis(), actual.getEpochMillis());
+        assertEquals(line, expected.getHour(), actual.getHour());
+        assertEquals(line, expected.getUrl(), actual.getUrl());
+        assertEquals(line, expected.getStatus(), actual.getStatus());
+        assertEquals(line, expected.getResponseSize(), actual.getResponseSize());
+    }
+}
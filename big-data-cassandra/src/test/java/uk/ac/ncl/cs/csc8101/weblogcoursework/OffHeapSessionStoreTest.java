@@ -0,0 +1,101 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the OffHeapSessionStore class
+ */
+public class OffHeapSessionStoreTest {
+
+    private final List<String> onHeapExpired = new ArrayList<>();
+    private final List<String> offHeapExpired = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        SiteSession.resetGlobalMax();
+    }
+
+    private static String describe(SessionState sessionState) {
+        return sessionState.getId()+" "+sessionState.getFirstHitMillis()+" "+sessionState.getLastHitMillis()+" "
+                +sessionState.getHitCount()+" "+sessionState.getSketch().cardinality();
+    }
+
+    @Test
+    public void matchesOnHeapTest() {
+
+        SessionStore onHeap = new OnHeapSessionStore();
+        SessionStore offHeap = new OffHeapSessionStore();
+
+        // enough users to need more than one slab, with some reusing freed slots
+        long time = 1000;
+        for(int i = 0; i < 40000; i++) {
+            String id = "user"+(i % 20000);
+            int hashedUrl = MurmurHash.hash("/url"+(i % 37));
+            onHeap.hit(id, time, hashedUrl);
+            offHeap.hit(id, time, hashedUrl);
+            if(i == 30000) {
+                time += SiteSession.MAX_IDLE_MS+1;
+            }
+            onHeap.expire(time, s -> onHeapExpired.add(describe(s)));
+            offHeap.expire(time, s -> offHeapExpired.add(describe(s)));
+            time++;
+        }
+
+        assertEquals(onHeap.size(), offHeap.size());
+        assertFalse(onHeapExpired.isEmpty());
+        assertEquals(onHeapExpired, offHeapExpired);
+
+        onHeap.expire(Long.MAX_VALUE, s -> onHeapExpired.add(describe(s)));
+        offHeap.expire(Long.MAX_VALUE, s -> offHeapExpired.add(describe(s)));
+        assertEquals(0, offHeap.size());
+        assertEquals(onHeapExpired, offHeapExpired);
+    }
+
+    @Test
+    public void orderTest() {
+
+        SessionStore store = new OffHeapSessionStore();
+        store.hit("a", 100, 1);
+        store.hit("b", 200, 2);
+        store.hit("a", 300, 3);
+
+        List<String> ids = new ArrayList<>();
+        store.forEach(s -> ids.add(s.getId()));
+        assertEquals("b", ids.get(0));
+        assertEquals("a", ids.get(1));
+
+        assertEquals(1, store.expire(201 + SiteSession.MAX_IDLE_MS, s -> offHeapExpired.add(s.getId())));
+        assertEquals("b", offHeapExpired.get(0));
+        assertEquals(1, store.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void outOfOrderTest() {
+
+        SessionStore store = new OffHeapSessionStore();
+        store.hit("a", 200, 1);
+        store.hit("b", 100, 1);
+    }
+}
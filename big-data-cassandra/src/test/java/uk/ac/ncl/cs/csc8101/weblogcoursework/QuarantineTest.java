@@ -0,0 +1,98 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Base64;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the Quarantine class
+ */
+public class QuarantineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void quarantineTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "quarantine");
+        Quarantine quarantine = new Quarantine(file, 100);
+
+        byte[] line = "xxnot a log linexx".getBytes(StandardCharsets.US_ASCII);
+        quarantine.add(ParseStatus.NO_CLIENT_ID, line, 2, line.length-4);
+        byte[] block = {0, 1, (byte)0x80};
+        quarantine.addBinary(ParseStatus.BAD_BLOCK, block, 0, block.length);
+        quarantine.close();
+
+        assertEquals(1, quarantine.getCounter(ParseStatus.NO_CLIENT_ID).getCount());
+        assertEquals(1, quarantine.getCounter(ParseStatus.BAD_BLOCK).getCount());
+        assertEquals(0, quarantine.getCounter(ParseStatus.BAD_TIMESTAMP).getCount());
+        assertEquals(0, quarantine.getDropped().getCount());
+
+        List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII);
+        assertEquals(2, lines.size());
+        assertEquals("no-client-id\tnot a log line", lines.get(0));
+        assertEquals("bad-block\t"+Base64.getEncoder().encodeToString(block), lines.get(1));
+    }
+
+    @Test
+    public void rateLimitTest() throws Exception {
+
+        File file = new File(folder.getRoot(), "quarantine");
+        Quarantine quarantine = new Quarantine(file, 10);
+
+        byte[] line = "1 [bad".getBytes(StandardCharsets.US_ASCII);
+        for(int i = 0; i < 1000; i++) {
+            quarantine.add(ParseStatus.BAD_TIMESTAMP, line, 0, line.length);
+        }
+        quarantine.close();
+
+        assertEquals(1000, quarantine.getCounter(ParseStatus.BAD_TIMESTAMP).getCount());
+        // the loop may straddle a second, letting through a second window's worth
+        int written = Files.readAllLines(file.toPath(), StandardCharsets.US_ASCII).size();
+        assertTrue(written >= 10 && written <= 20);
+        assertEquals(1000-written, quarantine.getDropped().getCount());
+
+        // nothing written, nothing created
+        File unused = new File(folder.getRoot(), "unused");
+        new Quarantine(unused, 0).add(ParseStatus.BAD_SIZE, line, 0, line.length);
+        assertFalse(unused.exists());
+    }
+
+    @Test
+    public void metricsTest() {
+
+        Quarantine quarantine = new Quarantine(new File(folder.getRoot(), "quarantine"), 0);
+        MetricRegistry metricRegistry = new MetricRegistry();
+        quarantine.registerMetrics(metricRegistry);
+
+        quarantine.add(ParseStatus.BAD_STATUS, new byte[1], 0, 1);
+        assertEquals(1, metricRegistry.getCounters().get("malformed.bad-status").getCount());
+        assertEquals(1, metricRegistry.getCounters().get("malformed.dropped").getCount());
+        assertFalse(metricRegistry.getCounters().containsKey("malformed.ok"));
+    }
+}
@@ -0,0 +1,56 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the QueryCache class
+ */
+public class QueryCacheTest {
+
+    @Test
+    public void leastRecentlyUsedTest() {
+
+        QueryCache<String, Long> cache = new QueryCache<>(2);
+        cache.put("a", 1L);
+        cache.put("b", 2L);
+        assertEquals(1L, (long)cache.get("a"));
+
+        // b is now the least recently used
+        cache.put("c", 3L);
+        assertEquals(2, cache.size());
+        assertNull(cache.get("b"));
+        assertEquals(1L, (long)cache.get("a"));
+        assertEquals(3L, (long)cache.get("c"));
+    }
+
+    @Test
+    public void timeToLiveTest() throws InterruptedException {
+
+        QueryCache<String, Long> cache = new QueryCache<>(10, 50, TimeUnit.MILLISECONDS);
+        cache.put("a", 1L);
+        assertEquals(1L, (long)cache.get("a"));
+
+        Thread.sleep(100);
+        assertNull(cache.get("a"));
+        assertEquals(0, cache.size());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.*;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Query path tests for the QueryManager class against cassandra
+ */
+public class QueryManagerIT {
+
+    private static Cluster cluster;
+    private static Session session;
+    private static QueryManager queryManager;
+
+    @BeforeClass
+    public static void staticSetup() {
+
+        cluster = QueryManager.connect();
+
+        final Session bootstrapSession = cluster.connect();
+        bootstrapSession.execute("CREATE KEYSPACE IF NOT EXISTS query_test WITH replication = {'class': 'SimpleStrategy', 'replication_factor': 1 }");
+        bootstrapSession.close();
+
+        session = cluster.connect("query_test");
+
+        session.execute("CREATE TABLE IF NOT EXISTS query1_hourly (url varchar, hour int, access_count bigint, PRIMARY KEY (url, hour))");
+        session.execute("CREATE TABLE IF NOT EXISTS query1_daily (url varchar, day int, access_count bigint, PRIMARY KEY (url, day))");
+        session.execute("CREATE TABLE IF NOT EXISTS query1_weekly (url varchar, week int, access_count bigint, PRIMARY KEY (url, week))");
+        session.execute("CREATE TABLE IF NOT EXISTS query1_watermark (id int PRIMARY KEY, closed_before_hour bigint)");
+        session.execute("CREATE TABLE IF NOT EXISTS query2 (user_id varchar, session_start timestamp, session_end timestamp, " +
+                "no_access bigint, distinct_url_accessed bigint, PRIMARY KEY (user_id, session_end))");
+        session.execute("CREATE TABLE IF NOT EXISTS query3 (user_id varchar, distinct_url_accessed bigint, hyper_log blob, PRIMARY KEY (user_id))");
+
+        final PreparedStatement insert = session.prepare("INSERT INTO query1_hourly (url, hour, access_count) VALUES (?, ?, ?)");
+        for(int url = 0; url < 100; url++) {
+            for(int hour = 10; hour < 20; hour++) {
+                session.execute(new BoundStatement(insert).bind("/url"+url, hour, (long)(url*hour)));
+            }
+        }
+
+        final PreparedStatement insertSession = session.prepare("INSERT INTO query2 " +
+                "(user_id, session_start, session_end, no_access, distinct_url_accessed) VALUES (?, ?, ?, ?, ?)");
+        for(int i = 0; i < 250; i++) {
+            session.execute(new BoundStatement(insertSession).bind("pager", new Date(i*1000L), new Date(i*1000L+500), (long)i, 1L));
+        }
+
+        queryManager = new QueryManager(session);
+    }
+
+    @AfterClass
+    public static void staticCleanup() {
+        session.close();
+        cluster.close();
+    }
+
+    private static void sort(List<UrlHourCounter> counters) {
+        Collections.sort(counters, new Comparator<UrlHourCounter>() {
+            @Override
+            public int compare(UrlHourCounter a, UrlHourCounter b) {
+                final int byUrl = a.getUrl().compareTo(b.getUrl());
+                return byUrl != 0 ? byUrl : a.getHour().compareTo(b.getHour());
+            }
+        });
+    }
+
+    @Test
+    public void parallelMatchesInTest() throws InterruptedException {
+
+        // more urls than the parallel path has in flight at once
+        List<String> urls = new ArrayList<>();
+        for(int url = 0; url < 50; url++) {
+            urls.add("/url"+url);
+        }
+        urls.add("/no-such-url");
+
+        List<UrlHourCounter> in = queryManager.query1(12, 15, urls);
+        List<UrlHourCounter> parallel = new ArrayList<>(queryManager.query1Parallel(12, 15, urls));
+        sort(in);
+        sort(parallel);
+
+        assertEquals(50*4, in.size());
+        assertEquals(in.size(), parallel.size());
+        for(int i = 0; i < in.size(); i++) {
+            assertEquals(in.get(i).getUrl(), parallel.get(i).getUrl());
+            assertEquals(in.get(i).getHour(), parallel.get(i).getHour());
+            assertEquals(in.get(i).getCounter(), parallel.get(i).getCounter());
+        }
+    }
+
+    @Test
+    public void sessionPagingTest() {
+
+        // sessions 10 to 209 in pages of 30
+        Date from = new Date(10*1000L+500);
+        Date to = new Date(209*1000L+500);
+        List<SessionSummary> paged = new ArrayList<>();
+        String token = null;
+        int pages = 0;
+        do {
+            SessionPage page = queryManager.query2Page("pager", from, to, 30, token);
+            paged.addAll(page.getSessions());
+            token = page.getNextPageToken();
+            pages++;
+        } while(token != null);
+
+        assertEquals(7, pages);
+        assertEquals(200, paged.size());
+        for(int i = 0; i < paged.size(); i++) {
+            assertEquals(i+10, paged.get(i).getAccessCount());
+        }
+
+        final List<SessionSummary> streamed = new ArrayList<>();
+        queryManager.forEachSession("pager", null, null, new java.util.function.Consumer<SessionSummary>() {
+            @Override
+            public void accept(SessionSummary sessionSummary) {
+                streamed.add(sessionSummary);
+            }
+        });
+        assertEquals(250, streamed.size());
+        assertEquals(100, queryManager.query2("pager").size());
+    }
+}
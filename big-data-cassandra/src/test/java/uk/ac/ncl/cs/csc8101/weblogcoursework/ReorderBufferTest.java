@@ -0,0 +1,107 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the ReorderBuffer class
+ */
+public class ReorderBufferTest {
+
+    private final List<String> released = new ArrayList<>();
+
+    private final ReorderBuffer.Sink sink = new ReorderBuffer.Sink() {
+        @Override
+        public void hit(String id, long hitMillis, int hashedUrl) {
+            released.add(id+"@"+hitMillis);
+        }
+    };
+
+    @Test
+    public void reorderTest() {
+        ReorderBuffer buffer = new ReorderBuffer(100);
+
+        assertTrue(buffer.add("a", 1000, 0, sink));
+        assertTrue(buffer.add("b", 950, 0, sink));
+        assertTrue(buffer.add("c", 1050, 0, sink));
+        // nothing has fallen behind the watermark of 950 yet but b
+        assertEquals("[b@950]", released.toString());
+
+        assertTrue(buffer.add("d", 1200, 0, sink));
+        assertEquals("[b@950, a@1000, c@1050]", released.toString());
+        assertEquals(1100, buffer.getWatermarkMillis());
+
+        // older than a hit already released
+        assertFalse(buffer.add("e", 1040, 0, sink));
+        assertEquals(1, buffer.getTooLateCount());
+        // late, but still in order with what has been released
+        assertTrue(buffer.add("f", 1060, 0, sink));
+
+        buffer.flush(sink);
+        assertEquals("[b@950, a@1000, c@1050, f@1060, d@1200]", released.toString());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void tiesKeepArrivalOrderTest() {
+        ReorderBuffer buffer = new ReorderBuffer(10);
+        for(int i = 0; i < 5; i++) {
+            buffer.add("x"+i, 500, 0, sink);
+        }
+        buffer.flush(sink);
+        assertEquals("[x0@500, x1@500, x2@500, x3@500, x4@500]", released.toString());
+    }
+
+    @Test
+    public void noLatenessTest() {
+        ReorderBuffer buffer = new ReorderBuffer(0);
+        assertTrue(buffer.add("a", 10, 0, sink));
+        assertTrue(buffer.add("b", 10, 0, sink));
+        assertFalse(buffer.add("c", 9, 0, sink));
+        assertEquals("[a@10, b@10]", released.toString());
+        assertEquals(0, buffer.size());
+    }
+
+    @Test
+    public void shuffledTest() {
+        // hits displaced by up to the allowed lateness all come out in order
+        ReorderBuffer buffer = new ReorderBuffer(1000);
+        Random random = new Random(3);
+        final List<Long> times = new ArrayList<>();
+        ReorderBuffer.Sink recorder = new ReorderBuffer.Sink() {
+            @Override
+            public void hit(String id, long hitMillis, int hashedUrl) {
+                times.add(hitMillis);
+            }
+        };
+        for(int i = 0; i < 10000; i++) {
+            assertTrue(buffer.add("u", i*10L+random.nextInt(1000), 0, recorder));
+        }
+        buffer.flush(recorder);
+        assertEquals(10000, times.size());
+        for(int i = 1; i < times.size(); i++) {
+            assertTrue(times.get(i-1) <= times.get(i));
+        }
+        assertEquals(0, buffer.getTooLateCount());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the RingBuffer class
+ */
+public class RingBufferTest {
+
+    @Test
+    public void fifoTest() throws InterruptedException {
+
+        RingBuffer<Integer> ringBuffer = new RingBuffer<>(3);
+        assertEquals(4, ringBuffer.capacity());
+
+        for(int lap = 0; lap < 3; lap++) {
+            for(int i = 0; i < 4; i++) {
+                assertTrue(ringBuffer.offer(i));
+            }
+            assertFalse(ringBuffer.offer(4));
+            assertEquals(4, ringBuffer.size());
+            for(int i = 0; i < 4; i++) {
+                assertEquals(i, (int)ringBuffer.take());
+            }
+            assertNull(ringBuffer.poll());
+        }
+
+        assertNull(ringBuffer.poll(1, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void concurrentTest() throws InterruptedException {
+
+        final RingBuffer<Long> ringBuffer = new RingBuffer<>(64);
+        final AtomicLong sum = new AtomicLong();
+        final int producers = 3;
+        final int consumers = 3;
+        final long perProducer = 100000;
+
+        List<Thread> threads = new ArrayList<>();
+        for(int p = 0; p < producers; p++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for(long i = 1; i <= perProducer; i++) {
+                            ringBuffer.put(i);
+                        }
+                    } catch (InterruptedException e) {
+                        fail();
+                    }
+                }
+            }));
+        }
+        for(int c = 0; c < consumers; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        long value;
+                        while((value = ringBuffer.take()) != -1) {
+                            sum.addAndGet(value);
+                        }
+                    } catch (InterruptedException e) {
+                        fail();
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads) {
+            thread.start();
+        }
+        for(int p = 0; p < producers; p++) {
+            threads.get(p).join();
+        }
+        for(int c = 0; c < consumers; c++) {
+            ringBuffer.put(-1L);
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(producers*perProducer*(perProducer+1)/2, sum.get());
+    }
+}
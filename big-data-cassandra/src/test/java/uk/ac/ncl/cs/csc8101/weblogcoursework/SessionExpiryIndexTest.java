@@ -0,0 +1,71 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SessionExpiryIndex class
+ */
+public class SessionExpiryIndexTest {
+
+    private final List<String> expired = new ArrayList<>();
+
+    @Before
+    public void setup() {
+        SiteSession.resetGlobalMax();
+    }
+
+    @Test
+    public void expireBehindLiveHeadTest() {
+
+        SessionExpiryIndex index = new SessionExpiryIndex();
+        index.put(new SiteSession("a", 100, "testURL"));
+        index.put(new SiteSession("b", 200, "testURL"));
+        index.put(new SiteSession("c", 300, "testURL"));
+
+        // a is touched again, so b is now the eldest and a is behind c
+        index.get("a").update(400, "testURL");
+
+        assertEquals(0, index.expire(200 + SiteSession.MAX_IDLE_MS, s -> expired.add(s.getId())));
+        assertEquals(2, index.expire(301 + SiteSession.MAX_IDLE_MS, s -> expired.add(s.getId())));
+
+        assertEquals("b", expired.get(0));
+        assertEquals("c", expired.get(1));
+        assertEquals(1, index.size());
+        assertNotNull(index.get("a"));
+    }
+
+    @Test
+    public void expireAllTest() {
+
+        SessionExpiryIndex index = new SessionExpiryIndex();
+        for(int i = 0; i < 100; i++) {
+            index.put(new SiteSession("user"+i, 100+i, "testURL"));
+        }
+
+        assertEquals(100, index.expire(Long.MAX_VALUE, s -> expired.add(s.getId())));
+        assertEquals(0, index.size());
+        assertEquals("user0", expired.get(0));
+        assertEquals("user99", expired.get(99));
+    }
+}
@@ -0,0 +1,45 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SessionPage class
+ */
+public class SessionPageTest {
+
+    @Test
+    public void tokenTest() {
+        for(long millis : new long[] {0, 1, -1, 893964000000L, Long.MIN_VALUE, Long.MAX_VALUE}) {
+            String token = SessionPage.encodeToken(millis);
+            assertTrue(token.matches("[A-Za-z0-9_-]+"));
+            assertEquals(millis, SessionPage.decodeToken(token));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortTokenTest() {
+        SessionPage.decodeToken("AAAA");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void malformedTokenTest() {
+        SessionPage.decodeToken("not a token!");
+    }
+}
@@ -0,0 +1,127 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.stream.cardinality.CardinalityMergeException;
+import com.clearspring.analytics.stream.cardinality.HyperLogLog;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SparseHyperLogLog class
+ */
+public class SparseHyperLogLogTest {
+
+    @Test
+    public void matchesHyperLogLogTest() {
+
+        SparseHyperLogLog sketch = new SparseHyperLogLog(0.05);
+        HyperLogLog hll = new HyperLogLog(0.05);
+
+        for(int i = 0; i < 10000; i++) {
+            sketch.offer("/url/"+i);
+            hll.offer("/url/"+i);
+            if(i % 7 == 0) {
+                assertEquals(hll.cardinality(), sketch.cardinality());
+            }
+        }
+        assertFalse(sketch.isSparse());
+    }
+
+    @Test
+    public void staysSparseTest() throws IOException {
+
+        SparseHyperLogLog sketch = new SparseHyperLogLog(0.05);
+        sketch.offer("testURL");
+        sketch.offer("testURL2");
+        sketch.offer("testURL");
+
+        assertTrue(sketch.isSparse());
+        assertEquals(2, sketch.cardinality());
+
+        ByteBuffer byteBuffer = sketch.toByteBuffer();
+        byte[] denseBytes = sketch.toHyperLogLog().getBytes();
+        assertTrue(byteBuffer.remaining() < denseBytes.length/10);
+
+        SparseHyperLogLog rebuilt = SparseHyperLogLog.fromByteBuffer(byteBuffer);
+        assertTrue(rebuilt.isSparse());
+        assertEquals(2, rebuilt.cardinality());
+    }
+
+    @Test
+    public void denseSerializationTest() throws IOException {
+
+        SparseHyperLogLog sketch = new SparseHyperLogLog(0.05);
+        for(int i = 0; i < 1000; i++) {
+            sketch.offer("/url/"+i);
+        }
+
+        SparseHyperLogLog rebuilt = SparseHyperLogLog.fromByteBuffer(sketch.toByteBuffer());
+        assertEquals(sketch.cardinality(), rebuilt.cardinality());
+
+        // dense sketches are written in the existing length prefixed format
+        ByteBuffer byteBuffer = sketch.toByteBuffer();
+        byte[] bytes = new byte[byteBuffer.getInt()];
+        byteBuffer.get(bytes);
+        assertEquals(sketch.cardinality(), HyperLogLog.Builder.build(bytes).cardinality());
+    }
+
+    @Test
+    public void mergeWithStoredHyperLogLogTest() throws IOException, CardinalityMergeException {
+
+        HyperLogLog stored = new HyperLogLog(0.05);
+        stored.offer("testURL-A");
+        stored.offer("testURL-common");
+        byte[] inputBytes = stored.getBytes();
+        ByteBuffer byteBuffer = ByteBuffer.allocate(4+inputBytes.length);
+        byteBuffer.putInt(inputBytes.length);
+        byteBuffer.put(inputBytes);
+        byteBuffer.flip();
+
+        SparseHyperLogLog sketch = new SparseHyperLogLog(0.05);
+        sketch.offer("testURL-B");
+        sketch.offer("testURL-common");
+        sketch.addAll(SparseHyperLogLog.fromByteBuffer(byteBuffer));
+
+        assertEquals(3, sketch.cardinality());
+    }
+
+    @Test
+    public void sparseMergeTest() throws CardinalityMergeException {
+
+        SparseHyperLogLog a = new SparseHyperLogLog(0.05);
+        SparseHyperLogLog b = new SparseHyperLogLog(0.05);
+        HyperLogLog hll = new HyperLogLog(0.05);
+        for(int i = 0; i < 30; i++) {
+            a.offer("a"+i);
+            b.offer("b"+i);
+            hll.offer("a"+i);
+            hll.offer("b"+i);
+        }
+
+        a.addAll(b);
+        assertEquals(hll.cardinality(), a.cardinality());
+    }
+
+    @Test(expected = CardinalityMergeException.class)
+    public void mismatchedSizeTest() throws CardinalityMergeException {
+        new SparseHyperLogLog(0.05).addAll(new SparseHyperLogLog(0.01));
+    }
+}
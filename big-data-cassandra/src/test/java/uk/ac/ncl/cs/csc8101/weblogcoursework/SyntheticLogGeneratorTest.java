@@ -0,0 +1,79 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the SyntheticLogGenerator class
+ */
+public class SyntheticLogGeneratorTest {
+
+    @Test
+    public void deterministicTest() {
+        SyntheticLogGenerator first = new SyntheticLogGenerator(7);
+        SyntheticLogGenerator second = new SyntheticLogGenerator(7);
+        SyntheticLogGenerator other = new SyntheticLogGenerator(8);
+        boolean differs = false;
+        for(int i = 0; i < 1000; i++) {
+            String line = first.next();
+            assertEquals(line, second.next());
+            differs |= !line.equals(other.next());
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void shapeTest() {
+        SyntheticLogGenerator generator = new SyntheticLogGenerator(1, 2000, 1000, SyntheticLogGenerator.DEFAULT_START_MILLIS);
+        LogLineParser parser = new LogLineParser();
+        LogRecord record = new LogRecord();
+
+        Map<String, Long> lastHits = new HashMap<>();
+        Map<String, Integer> clientHits = new HashMap<>();
+        Map<String, Integer> urlHits = new HashMap<>();
+        int sessionGaps = 0;
+        long lastMillis = Long.MIN_VALUE;
+        for(int i = 0; i < 100000; i++) {
+            assertTrue(parser.parse(generator.next(), record));
+            // the log is in time order, to the second
+            assertTrue(record.getEpochMillis() >= lastMillis);
+            lastMillis = record.getEpochMillis();
+
+            Long lastHit = lastHits.put(record.getClientId(), record.getEpochMillis());
+            if(lastHit != null && record.getEpochMillis()-lastHit > SiteSession.MAX_IDLE_MS) {
+                sessionGaps++;
+            }
+            clientHits.merge(record.getClientId(), 1, Integer::sum);
+            urlHits.merge(record.getUrl(), 1, Integer::sum);
+        }
+
+        // clients come back after their sessions time out
+        assertTrue(sessionGaps > 100);
+        // client 0 is a heavy hitter, client 1 is not
+        assertTrue(clientHits.get("0") > 10*clientHits.getOrDefault("1", 0));
+        // the most popular url is roughly 100 times as popular as the hundredth
+        int top = urlHits.get("/english/page0.html");
+        int hundredth = urlHits.get("/french/news/page99.jpg");
+        assertTrue(top > 50*hundredth);
+        assertTrue(top < 200*hundredth);
+    }
+}
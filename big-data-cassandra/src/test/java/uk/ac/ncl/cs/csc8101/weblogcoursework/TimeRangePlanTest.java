@@ -0,0 +1,84 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the TimeRangePlan class
+ */
+public class TimeRangePlanTest {
+
+    private static String describe(List<TimeRangePlan.Span> spans) {
+        StringBuilder description = new StringBuilder();
+        for(TimeRangePlan.Span span : spans) {
+            description.append(span).append(';');
+        }
+        return description.toString();
+    }
+
+    /**
+     * Checks every hour of the range is covered exactly once, in order.
+     */
+    private static void assertCovers(long startHour, long endHour, List<TimeRangePlan.Span> spans) {
+        long next = startHour;
+        for(TimeRangePlan.Span span : spans) {
+            TimeResolution resolution = span.getResolution();
+            assertEquals(next, resolution.firstHour(span.getFirstBucket()));
+            next = resolution.firstHour(span.getLastBucket()+1);
+        }
+        assertEquals(endHour+1, next);
+    }
+
+    @Test
+    public void closedRangeTest() {
+        // from hour 20 of day 0 to hour 3 of day 12, week 1 is hours 96-263
+        List<TimeRangePlan.Span> spans = TimeRangePlan.plan(20, 291, Long.MAX_VALUE);
+        assertEquals("HOUR 20-23;DAY 1-3;WEEK 1-1;DAY 11-11;HOUR 288-291;", describe(spans));
+        assertCovers(20, 291, spans);
+    }
+
+    @Test
+    public void openRangeTest() {
+        // rollups after the watermark have not been written, so are read as hours
+        List<TimeRangePlan.Span> spans = TimeRangePlan.plan(20, 291, 250);
+        assertEquals("HOUR 20-23;DAY 1-9;HOUR 240-291;", describe(spans));
+        assertCovers(20, 291, spans);
+
+        spans = TimeRangePlan.plan(20, 291, Long.MIN_VALUE);
+        assertEquals("HOUR 20-291;", describe(spans));
+    }
+
+    @Test
+    public void shortRangeTest() {
+        assertEquals("HOUR 5-5;", describe(TimeRangePlan.plan(5, 5, Long.MAX_VALUE)));
+        assertEquals("DAY 1-1;", describe(TimeRangePlan.plan(24, 47, Long.MAX_VALUE)));
+        assertTrue(TimeRangePlan.plan(5, 4, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void coverageTest() {
+        for(long start = -200; start < 400; start += 7) {
+            for(long end = start; end < start+500; end += 13) {
+                assertCovers(start, end, TimeRangePlan.plan(start, end, start+(end-start)/2));
+            }
+        }
+    }
+}
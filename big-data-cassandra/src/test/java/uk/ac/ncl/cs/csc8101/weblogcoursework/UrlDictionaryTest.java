@@ -0,0 +1,81 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.hash.MurmurHash;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the UrlDictionary and LongLongMap classes
+ */
+public class UrlDictionaryTest {
+
+    @Test
+    public void dictionaryTest() {
+
+        UrlDictionary dictionary = new UrlDictionary();
+        UrlDictionary.Local local = dictionary.newLocal();
+
+        byte[] line = "GET /English/Index.html HTTP/1.0".getBytes(StandardCharsets.ISO_8859_1);
+        int id = local.idFor(line, 4, 19);
+        assertEquals("/english/index.html", dictionary.getUrl(id));
+        assertEquals(MurmurHash.hash("/english/index.html"), dictionary.getHashedValue(id));
+
+        // the same url, from the local cache and the shared dictionary
+        assertEquals(id, local.idFor(line, 4, 19));
+        assertEquals(id, dictionary.idFor("/english/index.html"));
+        assertEquals(id, dictionary.newLocal().idFor("/ENGLISH/index.html".getBytes(StandardCharsets.ISO_8859_1), 0, 19));
+
+        // enough urls to grow both the dictionary and the local table
+        for(int i = 0; i < 5000; i++) {
+            byte[] url = ("/images/"+i+".gif").getBytes(StandardCharsets.ISO_8859_1);
+            int urlId = local.idFor(url, 0, url.length);
+            assertEquals("/images/"+i+".gif", dictionary.getUrl(urlId));
+        }
+        assertEquals(5001, dictionary.size());
+        assertEquals(id, local.idFor(line, 4, 19));
+    }
+
+    @Test
+    public void longLongMapTest() {
+
+        LongLongMap map = new LongLongMap();
+        for(long i = 0; i < 1000; i++) {
+            map.addTo(i << 32 | 7, i);
+            map.addTo(i << 32 | 7, 1);
+        }
+        assertEquals(1000, map.size());
+        assertEquals(43, map.get(42L << 32 | 7));
+        assertEquals(0, map.get(42));
+
+        final long[] sum = new long[1];
+        map.forEach(new LongLongMap.Visitor() {
+            @Override
+            public void visit(long key, long value) {
+                sum[0] += value;
+            }
+        });
+        assertEquals(999*1000/2 + 1000, sum[0]);
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertEquals(0, map.get(42L << 32 | 7));
+    }
+}
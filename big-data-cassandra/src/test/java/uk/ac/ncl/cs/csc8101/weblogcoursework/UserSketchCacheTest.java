@@ -0,0 +1,242 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.clearspring.analytics.stream.membership.BloomFilter;
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import com.google.common.util.concurrent.Futures;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.function.LongSupplier;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the UserSketchCache class
+ */
+public class UserSketchCacheTest {
+
+    /**
+     * Stores rows in memory, applying a write only if its version is newer, as a write timestamp would.
+     */
+    private static class MemoryStore implements UserSketchCache.Store {
+        private final Map<String, UserSketchCache.StoredSketch> rows = new HashMap<>();
+        private final Map<Statement, String> users = new IdentityHashMap<>();
+        private final Map<Statement, UserSketchCache.StoredSketch> writes = new IdentityHashMap<>();
+        private int reads = 0;
+        // the number of reads still to fail
+        private int failingReads = 0;
+
+        @Override
+        public Future<UserSketchCache.StoredSketch> read(String userId) {
+            reads++;
+            if(failingReads > 0) {
+                failingReads--;
+                return Futures.immediateFailedFuture(new IOException("read timed out"));
+            }
+            return Futures.immediateFuture(rows.get(userId));
+        }
+
+        @Override
+        public Statement write(String userId, SparseHyperLogLog sketch, long version) {
+            final Statement statement = new SimpleStatement("INSERT INTO query3");
+            users.put(statement, userId);
+            writes.put(statement, new UserSketchCache.StoredSketch(sketch, version));
+            return statement;
+        }
+
+        private void apply(Statement statement) {
+            final String userId = users.get(statement);
+            final UserSketchCache.StoredSketch write = writes.get(statement);
+            final UserSketchCache.StoredSketch row = rows.get(userId);
+            if(row == null || row.getVersion() < write.getVersion()) {
+                rows.put(userId, write);
+            }
+        }
+    }
+
+    /**
+     * Holds the writes it is given until awaitOutstanding, then applies them in reverse order.
+     */
+    private static class HoldingWriter implements StatementWriter {
+        private final MemoryStore store;
+        private final List<Statement> held = new ArrayList<>();
+
+        private HoldingWriter(MemoryStore store) {
+            this.store = store;
+        }
+
+        @Override
+        public void execute(Statement statement) {
+            held.add(statement);
+        }
+
+        @Override
+        public void awaitOutstanding() {
+            Collections.reverse(held);
+            for(Statement statement : held) {
+                store.apply(statement);
+            }
+            held.clear();
+        }
+
+        @Override
+        public Map<String, Long> getFailureCounts() {
+            return Collections.emptyMap();
+        }
+    }
+
+    private static final LongSupplier FIXED_CLOCK = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return 1000L;
+        }
+    };
+
+    private static SparseHyperLogLog sketch(String... urls) {
+        final SparseHyperLogLog sketch = new SparseHyperLogLog(14);
+        for(String url : urls) {
+            sketch.offer(url);
+        }
+        return sketch;
+    }
+
+    @Test
+    public void evictedSketchTest() throws Exception {
+        MemoryStore store = new MemoryStore();
+        HoldingWriter writer = new HoldingWriter(store);
+        UserSketchCache cache = new UserSketchCache(store, writer, new BloomFilter(100, 0.01), 1, 1000000L, FIXED_CLOCK);
+
+        cache.merge("a", 0L, sketch("/1", "/2"));
+        // evicts a, whose write is still held
+        cache.merge("b", 0L, sketch("/1"));
+        assertEquals(1, writer.held.size());
+        assertEquals(1, cache.getEvictedCount());
+
+        // a returns before its write completes, so it is served from the evicted sketch, not the store
+        cache.merge("a", 0L, sketch("/3"));
+        assertEquals(0, store.reads);
+        // a is taken back, and b evicted in turn
+        assertEquals(1, cache.getEvictedCount());
+
+        cache.flush();
+        writer.awaitOutstanding();
+        cache.writesCompleted();
+
+        // all three writes of a landed in reverse, the newest version still wins
+        assertEquals(3, store.rows.get("a").getSketch().cardinality());
+        assertEquals(1, store.rows.get("b").getSketch().cardinality());
+        assertTrue(store.rows.get("a").getVersion() > 1000L);
+    }
+
+    @Test
+    public void storedSketchTest() throws Exception {
+        MemoryStore store = new MemoryStore();
+        HoldingWriter writer = new HoldingWriter(store);
+        BloomFilter knownUsers = new BloomFilter(100, 0.01);
+        UserSketchCache cache = new UserSketchCache(store, writer, knownUsers, 1, 1000000L, FIXED_CLOCK);
+
+        cache.merge("a", 0L, sketch("/1", "/2"));
+        cache.merge("b", 0L, sketch("/1"));
+        writer.awaitOutstanding();
+        cache.writesCompleted();
+        assertEquals(0, cache.getEvictedCount());
+        final long version = store.rows.get("a").getVersion();
+
+        // once its write is known to have completed, a returning user is read from the store
+        cache.merge("a", 0L, sketch("/3"));
+        assertEquals(1, store.reads);
+        cache.flush();
+        writer.awaitOutstanding();
+        assertEquals(3, store.rows.get("a").getSketch().cardinality());
+        assertTrue(store.rows.get("a").getVersion() > version);
+    }
+
+    @Test
+    public void evictedLimitTest() throws Exception {
+        MemoryStore store = new MemoryStore();
+        HoldingWriter writer = new HoldingWriter(store);
+        UserSketchCache cache = new UserSketchCache(store, writer, new BloomFilter(100, 0.01), 2, 1000000L, FIXED_CLOCK);
+
+        for(int i = 0; i < 4; i++) {
+            cache.merge("u"+i, 0L, sketch("/"+i));
+        }
+        assertEquals(2, cache.getEvictedCount());
+
+        // a third eviction waits for the outstanding writes rather than keeping more aside
+        cache.merge("u4", 0L, sketch("/4"));
+        assertEquals(0, cache.getEvictedCount());
+        assertEquals(0, writer.held.size());
+        assertEquals(3, store.rows.size());
+    }
+
+    @Test
+    public void failedReadTest() throws Exception {
+        MemoryStore store = new MemoryStore();
+        HoldingWriter writer = new HoldingWriter(store);
+        BloomFilter knownUsers = new BloomFilter(100, 0.01);
+        knownUsers.add("a");
+        store.rows.put("a", new UserSketchCache.StoredSketch(sketch("/0"), 5000L));
+        UserSketchCache cache = new UserSketchCache(store, writer, knownUsers, 1, 1000000L, FIXED_CLOCK);
+
+        // each failed read is issued again
+        store.failingReads = 4;
+        try {
+            cache.merge("a", 0L, sketch("/1"));
+            fail("read failed");
+        } catch (IOException e) {
+            // expected
+        }
+        // the session is still merged
+        try {
+            cache.merge("a", 0L, sketch("/2"));
+            fail("read failed");
+        } catch (IOException e) {
+            // expected
+        }
+        try {
+            cache.flush();
+            fail("read failed");
+        } catch (IOException e) {
+            // expected
+        }
+        // nothing is written without the stored sketch
+        assertEquals(0, writer.held.size());
+
+        // evicting it is no different, it is kept aside, still dirty, rather than written or dropped
+        cache.merge("b", 0L, sketch("/1"));
+        assertEquals(0, writer.held.size());
+        cache.writesCompleted();
+        assertEquals(1, cache.getEvictedCount());
+
+        cache.flush();
+        writer.awaitOutstanding();
+        cache.writesCompleted();
+        assertEquals(0, cache.getEvictedCount());
+        assertEquals(3, store.rows.get("a").getSketch().cardinality());
+        assertTrue(store.rows.get("a").getVersion() > 5000L);
+        assertEquals(1, store.rows.get("b").getSketch().cardinality());
+    }
+}
@@ -0,0 +1,161 @@
+/*
+Copyright 2015 Red Hat, Inc. and/or its affiliates.
+
+Licensed under the Apache License, Version 2.0 (the "License");
+you may not use this file except in compliance with the License.
+You may obtain a copy of the License at
+
+http://www.apache.org/licenses/LICENSE-2.0
+
+Unless required by applicable law or agreed to in writing, software
+distributed under the License is distributed on an "AS IS" BASIS,
+WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+See the License for the specific language governing permissions and
+limitations under the License.
+ */
+package uk.ac.ncl.cs.csc8101.weblogcoursework;
+
+import com.datastax.driver.core.SimpleStatement;
+import com.datastax.driver.core.Statement;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Unit tests for the WriteStage class
+ */
+public class WriteStageTest {
+
+    /**
+     * Counts the writes it is given, optionally holding them up until released.
+     */
+    private static class CountingWriter implements StatementWriter {
+        private final AtomicInteger executed = new AtomicInteger();
+        private final CountDownLatch release;
+
+        private CountingWriter(CountDownLatch release) {
+            this.release = release;
+        }
+
+        @Override
+        public void execute(Statement statement) throws InterruptedException {
+            release.await();
+            executed.incrementAndGet();
+        }
+
+        @Override
+        public void awaitOutstanding() {
+        }
+
+        @Override
+        public Map<String, Long> getFailureCounts() {
+            return Collections.emptyMap();
+        }
+    }
+
+    @Test
+    public void awaitOutstandingTest() throws InterruptedException {
+        CountingWriter downstream = new CountingWriter(new CountDownLatch(0));
+        WriteStage writeStage = new WriteStage(downstream, 3, 16);
+        for(int i = 0; i < 1000; i++) {
+            writeStage.execute(new SimpleStatement("INSERT "+i));
+        }
+        writeStage.awaitOutstanding();
+        assertEquals(1000, downstream.executed.get());
+        writeStage.close();
+    }
+
+    @Test
+    public void stalledWritesDoNotBlockUntilFullTest() throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountingWriter downstream = new CountingWriter(release);
+        WriteStage writeStage = new WriteStage(downstream, 1, 64);
+
+        // the writer thread is stuck on the first, the rest queue without waiting
+        for(int i = 0; i < 32; i++) {
+            writeStage.execute(new SimpleStatement("INSERT "+i));
+        }
+        assertEquals(0, downstream.executed.get());
+
+        release.countDown();
+        writeStage.close();
+        assertEquals(32, downstream.executed.get());
+    }
+
+    /**
+     * Holds up writes of the slow query until released, as a writer at its in flight limit would.
+     */
+    private static class SlowQueryWriter implements StatementWriter {
+        private final CountDownLatch slowStarted = new CountDownLatch(1);
+        private final CountDownLatch release = new CountDownLatch(1);
+        private final AtomicInteger executed = new AtomicInteger();
+
+        @Override
+        public void execute(Statement statement) throws InterruptedException {
+            if(statement.toString().equals("SLOW")) {
+                slowStarted.countDown();
+                release.await();
+            }
+            executed.incrementAndGet();
+        }
+
+        @Override
+        public void awaitOutstanding() {
+        }
+
+        @Override
+        public Map<String, Long> getFailureCounts() {
+            return Collections.emptyMap();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void awaitTakenWriteTest() throws InterruptedException {
+        final SlowQueryWriter downstream = new SlowQueryWriter();
+        final WriteStage writeStage = new WriteStage(downstream, 2, 16);
+
+        // one writer thread takes the write off the queue, then waits before issuing it
+        writeStage.execute(new SimpleStatement("SLOW"));
+        downstream.slowStarted.await();
+
+        final CountDownLatch returned = new CountDownLatch(1);
+        Thread awaiter = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    writeStage.awaitOutstanding();
+                    returned.countDown();
+                } catch (InterruptedException e) {
+                    // the test fails by timing out
+                }
+            }
+        };
+        awaiter.start();
+        Thread.sleep(50);
+
+        // a later write issued by the other thread doesn't stand in for the held up one
+        writeStage.execute(new SimpleStatement("FAST"));
+        while(downstream.executed.get() < 1) {
+            Thread.sleep(1);
+        }
+        assertFalse(returned.await(200, TimeUnit.MILLISECONDS));
+
+        downstream.release.countDown();
+        assertTrue(returned.await(5, TimeUnit.SECONDS));
+        assertEquals(2, downstream.executed.get());
+        writeStage.close();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void closedTest() throws InterruptedException {
+        WriteStage writeStage = new WriteStage(new CountingWriter(new CountDownLatch(0)), 1, 16);
+        writeStage.close();
+        writeStage.execute(new SimpleStatement("INSERT"));
+    }
+}